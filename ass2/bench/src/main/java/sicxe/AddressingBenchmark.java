@@ -0,0 +1,86 @@
+package sicxe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of operand resolution per addressing mode: memory is filled with
+ * one LDA variant repeated {@value #COUNT} times and executed straight
+ * through. The code starts at {@value #CODE_ADDRESS} so that the direct
+ * operands and the indirect pointer below it stay intact.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddressingBenchmark {
+    static final int COUNT = 1000;
+    static final int CODE_ADDRESS = 0x1000;
+
+    @Param({"immediate", "simple", "pcRelative", "baseRelative", "indexed", "indirect", "extended"})
+    public String mode;
+
+    private Machine machine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        machine = new Machine();
+        byte[] instruction = instruction(mode);
+        byte[] code = new byte[instruction.length * COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            System.arraycopy(instruction, 0, code, i * instruction.length, instruction.length);
+        }
+        machine.writeBlock(CODE_ADDRESS, code, 0, code.length);
+        machine.setLoadInfo(CODE_ADDRESS, code.length);
+        machine.setB(0x8000);
+        machine.setX(0x30);
+        machine.setWord(0x0800, 0x9000);
+    }
+
+    /**
+     * LDA with the given addressing mode; every variant reads a valid word.
+     */
+    static byte[] instruction(String mode) {
+        switch (mode) {
+            case "immediate":
+                return new byte[] {0x01, 0x00, 0x05};
+            case "simple":
+                return new byte[] {0x03, 0x08, 0x00};
+            case "pcRelative":
+                return new byte[] {0x03, 0x21, 0x00};
+            case "baseRelative":
+                return new byte[] {0x03, 0x40, 0x10};
+            case "indexed":
+                return new byte[] {0x03, (byte) 0x88, 0x00};
+            case "indirect":
+                return new byte[] {0x02, 0x08, 0x00};
+            case "extended":
+                return new byte[] {0x03, 0x10, (byte) 0x90, 0x00};
+            default:
+                throw new IllegalArgumentException("Unknown addressing mode: " + mode);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int resolveOperand() {
+        machine.setPC(CODE_ADDRESS);
+        machine.run(COUNT);
+        return machine.getA();
+    }
+}
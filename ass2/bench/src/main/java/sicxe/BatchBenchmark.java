@@ -0,0 +1,83 @@
+package sicxe;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One program run for many inputs: the lockstep {@link BatchMachine} against
+ * restoring and running a single {@link Machine} once per input. The input
+ * is the word {@code x} of {@code poly} or the first array element of the
+ * summing loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    /** Address of {@code x} in poly.obj. */
+    private static final int POLY_X = 0x51;
+
+    @Param({"poly", "sum64"})
+    public String workload;
+
+    @Param({"64", "1024"})
+    public int lanes;
+
+    private Machine machine;
+    private Machine.Snapshot start;
+    private int inputAddress;
+    private int instructions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        machine = new Machine();
+        if (workload.equals("poly")) {
+            if (!ObjectLoader.load(machine, Workloads.sampleProgram("poly"))) {
+                throw new IllegalStateException("Cannot load poly");
+            }
+            inputAddress = POLY_X;
+            instructions = 32;
+        } else {
+            Workloads.install(machine, Workloads.sumLoop(64), 64);
+            inputAddress = Workloads.ARRAY_ADDRESS;
+            instructions = Workloads.sumLoopInstructions(64);
+        }
+        start = machine.createSnapshot();
+    }
+
+    @Benchmark
+    public long batch() {
+        machine.restoreSnapshot(start);
+        BatchMachine batch = new BatchMachine(machine, lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            batch.setWord(lane, inputAddress, lane);
+        }
+        return batch.run(instructions + 1);
+    }
+
+    @Benchmark
+    public long separateMachines() {
+        long total = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            machine.restoreSnapshot(start);
+            machine.setWord(inputAddress, lane);
+            total += machine.run(instructions + 1);
+        }
+        return total;
+    }
+}
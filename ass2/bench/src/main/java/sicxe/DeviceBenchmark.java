@@ -0,0 +1,131 @@
+package sicxe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-byte cost of the device implementations and of a guest RD/WD copy
+ * loop running through the interpreter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceBenchmark {
+    static final int BYTES = 4096;
+    static final int INPUT_DEVICE = 0x10;
+    static final int OUTPUT_DEVICE = 0x11;
+
+    private final byte[] data = new byte[BYTES];
+    private Path readFile;
+    private Path writeFile;
+    private FileDevice fileReader;
+    private FileDevice fileWriter;
+    private OutputDevice nullOutput;
+    private Machine machine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        readFile = Files.createTempFile("sicxe-bench-read", ".dat");
+        writeFile = Files.createTempFile("sicxe-bench-write", ".dat");
+        Files.write(readFile, new byte[64 << 20]);
+        nullOutput = new OutputDevice(OutputStream.nullOutputStream());
+
+        machine = new Machine();
+        machine.setDevice(INPUT_DEVICE, new Device() {
+            private int next;
+
+            @Override
+            public byte read() {
+                return (byte) next++;
+            }
+        });
+        machine.setDevice(OUTPUT_DEVICE, new Device());
+        // loop RD #0x10 / WD #0x11 / J loop
+        byte[] loop = {(byte) 0xD9, 0x00, INPUT_DEVICE, (byte) 0xDD, 0x00, OUTPUT_DEVICE, 0x3F, 0x2F, (byte) 0xF7};
+        machine.writeBlock(0, loop, 0, loop.length);
+        machine.setLoadInfo(0, loop.length);
+    }
+
+    @Setup(Level.Iteration)
+    public void openFiles() {
+        fileReader = new FileDevice(readFile.toString());
+        fileWriter = new FileDevice(writeFile.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(readFile);
+        Files.deleteIfExists(writeFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int inputDeviceRead() {
+        InputDevice device = new InputDevice(new ByteArrayInputStream(data));
+        int sum = 0;
+        for (int i = 0; i < BYTES; i++) {
+            sum += device.read();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void outputDeviceWrite() {
+        for (int i = 0; i < BYTES; i++) {
+            nullOutput.write(data[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int fileDeviceRead() {
+        int sum = 0;
+        for (int i = 0; i < BYTES; i++) {
+            sum += fileReader.read();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void fileDeviceWrite() {
+        for (int i = 0; i < BYTES; i++) {
+            fileWriter.write(data[i]);
+        }
+    }
+
+    /**
+     * One guest RD, WD and J per byte.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int guestCopyLoop() {
+        machine.setPC(0);
+        return machine.run(BYTES * 3);
+    }
+}
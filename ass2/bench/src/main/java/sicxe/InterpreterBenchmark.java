@@ -0,0 +1,84 @@
+package sicxe;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Interpreter throughput on the sample programs and on a generated array
+ * summing loop. Each invocation runs the program from its entry point to the
+ * halt loop; results are per executed guest instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"arith", "poly", "sum64", "sum4096"})
+    public String workload;
+
+    private Machine machine;
+    private Machine.Snapshot start;
+    private int instructions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        machine = new Machine();
+        if (workload.startsWith("sum")) {
+            int words = Integer.parseInt(workload.substring(3));
+            Workloads.install(machine, Workloads.sumLoop(words), words);
+            instructions = Workloads.sumLoopInstructions(words);
+        } else {
+            if (!ObjectLoader.load(machine, Workloads.sampleProgram(workload))) {
+                throw new IllegalStateException("Cannot load " + workload);
+            }
+            instructions = countUntilHalt();
+        }
+        start = machine.createSnapshot();
+    }
+
+    /**
+     * Counts instructions until the program reaches a "J *" halt loop.
+     */
+    private int countUntilHalt() {
+        int count = 0;
+        while (count < 10_000_000) {
+            int pc = machine.getPC();
+            machine.step();
+            count++;
+            if (machine.getPC() == pc) {
+                return count - 1;
+            }
+        }
+        throw new IllegalStateException(workload + " does not halt");
+    }
+
+    @Benchmark
+    public int executeProgram() {
+        machine.restoreSnapshot(start);
+        return machine.run(instructions);
+    }
+
+    @Benchmark
+    public int executeSingleSteps() {
+        machine.restoreSnapshot(start);
+        for (int i = 0; i < instructions; i++) {
+            machine.step();
+        }
+        return machine.getPC();
+    }
+}
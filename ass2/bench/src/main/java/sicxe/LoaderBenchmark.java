@@ -0,0 +1,54 @@
+package sicxe;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading generated object files of increasing size with the Reader based
+ * {@code Machine.loadSection} and with the byte based {@code ObjectLoader}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+    @Param({"4096", "65536", "1000000"})
+    public int length;
+
+    private Machine machine;
+    private String text;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        machine = new Machine();
+        text = Workloads.objectText(length);
+        bytes = text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public boolean loadSection() {
+        return machine.loadSection(new StringReader(text));
+    }
+
+    @Benchmark
+    public boolean objectLoader() {
+        return ObjectLoader.load(machine, bytes);
+    }
+}
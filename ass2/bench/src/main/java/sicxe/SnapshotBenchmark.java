@@ -0,0 +1,56 @@
+package sicxe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Undo snapshot creation and restore for loaded programs of various sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    @Param({"64", "4096", "65536"})
+    public int programLength;
+
+    private Machine machine;
+    private Machine.Snapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        machine = new Machine();
+        byte[] image = new byte[programLength];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i * 31);
+        }
+        machine.writeBlock(0, image, 0, image.length);
+        machine.setLoadInfo(0, programLength);
+        snapshot = machine.createSnapshot();
+    }
+
+    @Benchmark
+    public Machine.Snapshot create() {
+        return machine.createSnapshot();
+    }
+
+    @Benchmark
+    public int restore() {
+        machine.restoreSnapshot(snapshot);
+        return machine.getPC();
+    }
+}
@@ -0,0 +1,100 @@
+package sicxe;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generated guest programs and object files shared by the benchmarks.
+ */
+final class Workloads {
+    static final int ARRAY_ADDRESS = 0x1000;
+    static final int RESULT_ADDRESS = 0x0F00;
+
+    private Workloads() {
+    }
+
+    /**
+     * Directory with the sample object files; override with
+     * {@code -Dsicxe.programs=<dir>}.
+     */
+    static Path programsDirectory() {
+        return Path.of(System.getProperty("sicxe.programs", "../sim/programs"));
+    }
+
+    static byte[] sampleProgram(String name) throws IOException {
+        return Files.readAllBytes(programsDirectory().resolve(name + ".obj"));
+    }
+
+    /**
+     * Sums {@code words} words of an array with an indexed format 4 ADD,
+     * stores the result and halts. Executes {@link #sumLoopInstructions}
+     * instructions before reaching the halt loop.
+     *
+     * <pre>
+     *        LDX   #0
+     *        LDA   #0
+     *        LDS   #3
+     *        +LDT  #words*3
+     * loop   +ADD  ARRAY,X
+     *        ADDR  S,X
+     *        COMPR X,T
+     *        JLT   loop
+     *        +STA  RESULT
+     * halt   J     halt
+     * </pre>
+     */
+    static byte[] sumLoop(int words) {
+        int limit = words * 3;
+        return new byte[] {
+            0x05, 0x00, 0x00,
+            0x01, 0x00, 0x00,
+            0x6D, 0x00, 0x03,
+            0x75, (byte) (0x10 | (limit >> 16)), (byte) (limit >> 8), (byte) limit,
+            0x1B, (byte) (0x90 | (ARRAY_ADDRESS >> 16)), (byte) (ARRAY_ADDRESS >> 8), (byte) ARRAY_ADDRESS,
+            (byte) 0x90, 0x41,
+            (byte) 0xA0, 0x15,
+            0x3B, 0x2F, (byte) 0xF5,
+            0x0F, (byte) (0x10 | (RESULT_ADDRESS >> 16)), (byte) (RESULT_ADDRESS >> 8), (byte) RESULT_ADDRESS,
+            0x3F, 0x2F, (byte) 0xFD,
+        };
+    }
+
+    static int sumLoopInstructions(int words) {
+        return 4 + words * 4 + 1;
+    }
+
+    /**
+     * Loads raw code at address 0 and fills the array used by
+     * {@link #sumLoop(int)}.
+     */
+    static void install(Machine machine, byte[] code, int arrayWords) {
+        machine.writeBlock(0, code, 0, code.length);
+        for (int i = 0; i < arrayWords; i++) {
+            machine.setWord(ARRAY_ADDRESS + i * 3, i);
+        }
+        machine.setLoadInfo(0, Math.max(code.length, ARRAY_ADDRESS + arrayWords * 3));
+        machine.setPC(0);
+    }
+
+    /**
+     * Builds caret separated object text with {@code length} bytes of
+     * pseudo-random data in 30 byte text records.
+     */
+    static String objectText(int length) {
+        StringBuilder sb = new StringBuilder(length * 3);
+        sb.append(String.format("H^BIG   ^000000^%06X%n", length));
+        int seed = 0x1234567;
+        for (int address = 0; address < length; address += 30) {
+            int count = Math.min(30, length - address);
+            sb.append(String.format("T^%06X^%02X^", address, count));
+            for (int i = 0; i < count; i++) {
+                seed = seed * 1103515245 + 12345;
+                sb.append(String.format("%02X", (seed >>> 16) & 0xFF));
+            }
+            sb.append(System.lineSeparator());
+        }
+        sb.append("E^000000").append(System.lineSeparator());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,332 @@
+import java.util.BitSet;
+
+/**
+ * Base class of the code generated by {@link AotTranslator}. A translated
+ * program is a set of straight-line segments, each entered at a known PC;
+ * the generated {@link #execute(int, int)} runs segments while the next PC
+ * is another segment entry and returns where translated code ends. Every
+ * other instruction, and every instruction while breakpoints, tracing or
+ * profiling are active, is executed by the interpreter.
+ *
+ * <p>Registers live in fields of this object while translated code runs
+ * and are copied back to the machine when it returns. Memory is read
+ * directly; writes go through {@link Machine#setWord(int, int)} and
+ * {@link Machine#setByte(int, int)}, so page versions, watch bookkeeping and
+ * code-write listeners see them. A write into translated bytes marks the
+ * program stale, after which it never runs again.
+ */
+public abstract class AotProgram {
+    protected int a;
+    protected int x;
+    protected int l;
+    protected int b;
+    protected int s;
+    protected int t;
+    protected int sw;
+    /** Instructions completed since the machine entered translated code. */
+    protected int executed;
+    /** Set to return to the machine after the current segment. */
+    protected boolean leave;
+    /** Set when translated bytes were overwritten. */
+    protected boolean stale;
+    protected byte[] memory;
+    protected Machine machine;
+
+    private BitSet entries;
+    private BitSet translatedBytes;
+    private CodeWriteListener listener;
+    private String source;
+    private int segmentCount;
+    private int translatedInstructions;
+    private int interpretedInstructions;
+    private long translatedSteps;
+    private long interpretedSteps;
+
+    /**
+     * Runs translated segments from {@code pc} until the next PC is not a
+     * segment entry, a segment would exceed {@code budget} instructions in
+     * total, or {@link #leave} is set. Returns the next PC.
+     */
+    protected abstract int execute(int pc, int budget);
+
+    void bind(Machine machine, String source, BitSet entries, BitSet translatedBytes,
+            int segmentCount, int translatedInstructions, int interpretedInstructions) {
+        this.machine = machine;
+        this.memory = machine.rawMemory();
+        this.source = source;
+        this.entries = entries;
+        this.translatedBytes = translatedBytes;
+        this.segmentCount = segmentCount;
+        this.translatedInstructions = translatedInstructions;
+        this.interpretedInstructions = interpretedInstructions;
+        listener = (start, end) -> {
+            int hit = translatedBytes.nextSetBit(start);
+            if (hit >= 0 && hit < end) {
+                stale = true;
+            }
+        };
+        machine.addCodeWriteListener(listener);
+    }
+
+    /**
+     * Executes up to {@code steps} instructions like {@link Machine#run(int)},
+     * using translated code wherever the PC is a segment entry. Returns the
+     * number of instructions executed.
+     */
+    public int run(int steps) {
+        int done = 0;
+        while (done < steps) {
+            int translated = machine.enterTranslated(this, steps - done, false);
+            if (translated > 0) {
+                done += translated;
+                translatedSteps += translated;
+                continue;
+            }
+            int interpreted = machine.run(1, done == 0);
+            done += interpreted;
+            interpretedSteps += interpreted;
+            if (interpreted == 0 || machine.getLastBreak() != null) {
+                break;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Runs up to {@code steps} instructions and repeats every translated
+     * segment on a private interpreter started from the same state,
+     * comparing registers and the memory pages either of them wrote.
+     * Interpreted instructions are copied to the reference instead of being
+     * repeated, so device I/O happens once. Stops at the first difference.
+     */
+    public Check check(int steps) {
+        Machine reference = new Machine();
+        byte[] copy = new byte[Machine.MEMORY_SIZE];
+        machine.readMemory(0, copy, 0, copy.length);
+        reference.writeBlock(0, copy, 0, copy.length);
+        copyRegisters(machine, reference);
+        long[] versions = pageVersions(machine);
+        long[] referenceVersions = pageVersions(reference);
+        Check check = new Check();
+        while (check.steps < steps) {
+            int start = machine.getPC();
+            int translated = machine.enterTranslated(this, steps - check.steps, true);
+            if (translated > 0) {
+                check.steps += translated;
+                check.translated += translated;
+                check.segments++;
+                translatedSteps += translated;
+                reference.run(translated, false);
+                String difference = compare(machine, reference, versions, referenceVersions);
+                if (difference != null) {
+                    check.mismatch = String.format("segment at %06X (%d instructions): %s", start, translated, difference);
+                    break;
+                }
+                continue;
+            }
+            int interpreted = machine.run(1, check.steps == 0);
+            check.steps += interpreted;
+            interpretedSteps += interpreted;
+            copyRegisters(machine, reference);
+            for (int page = 0; page < MemoryPages.PAGE_COUNT; page++) {
+                long version = machine.getPageVersion(page);
+                if (version != versions[page]) {
+                    int base = page << MemoryPages.PAGE_BITS;
+                    machine.readMemory(base, copy, base, MemoryPages.PAGE_SIZE);
+                    reference.writeBlock(base, copy, base, MemoryPages.PAGE_SIZE);
+                    versions[page] = version;
+                    referenceVersions[page] = reference.getPageVersion(page);
+                }
+            }
+            if (interpreted == 0 || machine.getLastBreak() != null) {
+                break;
+            }
+        }
+        return check;
+    }
+
+    private static String compare(Machine actual, Machine expected, long[] versions, long[] expectedVersions) {
+        Machine.Registers got = actual.readRegisters();
+        Machine.Registers want = expected.readRegisters();
+        int[] gotValues = {got.getA(), got.getX(), got.getL(), got.getB(), got.getS(), got.getT(), got.getPC(), got.getSW()};
+        int[] wantValues = {want.getA(), want.getX(), want.getL(), want.getB(), want.getS(), want.getT(), want.getPC(), want.getSW()};
+        String[] names = {"A", "X", "L", "B", "S", "T", "PC", "SW"};
+        for (int i = 0; i < names.length; i++) {
+            if (gotValues[i] != wantValues[i]) {
+                return String.format("%s=%06X, interpreter %06X", names[i], gotValues[i], wantValues[i]);
+            }
+        }
+        byte[] gotPage = new byte[MemoryPages.PAGE_SIZE];
+        byte[] wantPage = new byte[MemoryPages.PAGE_SIZE];
+        String difference = null;
+        for (int page = 0; page < MemoryPages.PAGE_COUNT; page++) {
+            long version = actual.getPageVersion(page);
+            long expectedVersion = expected.getPageVersion(page);
+            if (version == versions[page] && expectedVersion == expectedVersions[page]) {
+                continue;
+            }
+            versions[page] = version;
+            expectedVersions[page] = expectedVersion;
+            int base = page << MemoryPages.PAGE_BITS;
+            actual.readMemory(base, gotPage, 0, gotPage.length);
+            expected.readMemory(base, wantPage, 0, wantPage.length);
+            for (int i = 0; i < gotPage.length && difference == null; i++) {
+                if (gotPage[i] != wantPage[i]) {
+                    difference = String.format("byte %06X=%02X, interpreter %02X", base + i, gotPage[i] & 0xFF, wantPage[i] & 0xFF);
+                }
+            }
+        }
+        return difference;
+    }
+
+    private static void copyRegisters(Machine from, Machine to) {
+        Machine.Registers registers = from.readRegisters();
+        to.setA(registers.getA());
+        to.setX(registers.getX());
+        to.setL(registers.getL());
+        to.setB(registers.getB());
+        to.setS(registers.getS());
+        to.setT(registers.getT());
+        to.setF(registers.getF());
+        to.setPC(registers.getPC());
+        to.setSW(registers.getSW());
+    }
+
+    private static long[] pageVersions(Machine machine) {
+        long[] versions = new long[MemoryPages.PAGE_COUNT];
+        for (int page = 0; page < versions.length; page++) {
+            versions[page] = machine.getPageVersion(page);
+        }
+        return versions;
+    }
+
+    /**
+     * Called by the machine with its execution lock held.
+     */
+    int enter(int budget, boolean single) {
+        int pc = machine.getPC();
+        if (stale || !entries.get(pc)) {
+            return 0;
+        }
+        a = machine.getA();
+        x = machine.getX();
+        l = machine.getL();
+        b = machine.getB();
+        s = machine.getS();
+        t = machine.getT();
+        sw = machine.getSW();
+        executed = 0;
+        leave = single;
+        pc = execute(pc, budget);
+        machine.setA(a);
+        machine.setX(x);
+        machine.setL(l);
+        machine.setB(b);
+        machine.setS(s);
+        machine.setT(t);
+        machine.setSW(sw);
+        machine.setPC(pc);
+        return executed;
+    }
+
+    /**
+     * Unsigned 24-bit word at an address already checked to be in range.
+     */
+    protected final int word(int address) {
+        return (memory[address] & 0xFF) << 16 | (memory[address + 1] & 0xFF) << 8 | (memory[address + 2] & 0xFF);
+    }
+
+    /**
+     * Condition code of comparing two 24-bit values as signed numbers.
+     */
+    protected static int compare(int left, int right) {
+        int comparison = Integer.compare(left << 8, right << 8);
+        return comparison < 0 ? 0x00 : comparison > 0 ? 0x80 : 0x40;
+    }
+
+    /**
+     * Leaves translated code at {@code pc}, where {@code rest} instructions
+     * counted for the current segment were not executed.
+     */
+    protected final int bail(int pc, int rest) {
+        executed -= rest;
+        leave = true;
+        return pc;
+    }
+
+    /**
+     * Stops listening for code writes; the program cannot be run afterwards.
+     */
+    public void close() {
+        machine.removeCodeWriteListener(listener);
+        stale = true;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public boolean isEntry(int pc) {
+        return entries.get(pc);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Reachable instructions compiled to Java.
+     */
+    public int getTranslatedInstructions() {
+        return translatedInstructions;
+    }
+
+    /**
+     * Reachable instructions always left to the interpreter: device I/O,
+     * supervisor calls, floating point and invalid forms.
+     */
+    public int getInterpretedInstructions() {
+        return interpretedInstructions;
+    }
+
+    public long getTranslatedSteps() {
+        return translatedSteps;
+    }
+
+    public long getInterpretedSteps() {
+        return interpretedSteps;
+    }
+
+    /**
+     * Outcome of {@link AotProgram#check(int)}.
+     */
+    public static final class Check {
+        private int steps;
+        private int translated;
+        private int segments;
+        private String mismatch;
+
+        public int getSteps() {
+            return steps;
+        }
+
+        public int getTranslated() {
+            return translated;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        /**
+         * First difference found, or {@code null}.
+         */
+        public String getMismatch() {
+            return mismatch;
+        }
+    }
+}
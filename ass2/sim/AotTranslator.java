@@ -0,0 +1,649 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Translates the code found by a {@link Disassembler} into a Java subclass
+ * of {@link AotProgram} and compiles it in memory with the system Java
+ * compiler. Each basic block becomes one or more segments: straight-line
+ * methods over the register fields that return the next PC. Instructions
+ * the translation does not cover (device I/O, supervisor calls, floating
+ * point, invalid forms) end a segment and are left to the interpreter, as
+ * are jumps to addresses that are not segment entries.
+ */
+public final class AotTranslator {
+    /** Generated class name; every translation gets its own class loader. */
+    public static final String CLASS_NAME = "TranslatedProgram";
+
+    private static final String[] REGISTERS = {"a", "x", "l", "b", "s", "t"};
+    private static final int CASES_PER_DISPATCH = 200;
+    private static final String MASK = "0xFFFFFF";
+
+    private final Disassembler disassembler;
+    private final StringBuilder segments = new StringBuilder();
+    private final List<Integer> entryList = new ArrayList<>();
+    private final List<Integer> entrySizes = new ArrayList<>();
+    private final BitSet entries = new BitSet(Machine.MEMORY_SIZE);
+    private final BitSet translatedBytes = new BitSet(Machine.MEMORY_SIZE);
+    private int translatedInstructions;
+    private int interpretedInstructions;
+    /** Format 3/4 instructions are emitted in a block of their own. */
+    private String indent = "        ";
+
+    private AotTranslator(Disassembler disassembler) {
+        this.disassembler = disassembler;
+    }
+
+    /**
+     * Translates and compiles the analysed program and binds the result to
+     * {@code machine}, whose pages holding translated code are flagged so
+     * that overwriting them makes the program stale.
+     *
+     * @throws IllegalStateException when no compiler is available or the
+     *         generated source does not compile
+     */
+    public static AotProgram translate(Machine machine, Disassembler disassembler) {
+        if (!disassembler.isAnalyzed()) {
+            throw new IllegalStateException("The program has not been analysed.");
+        }
+        if (machine.isPaged()) {
+            throw new IllegalStateException("Translated code needs the dense memory layout.");
+        }
+        AotTranslator translator = new AotTranslator(disassembler);
+        String source = translator.generate();
+        AotProgram program = compile(source);
+        program.bind(machine, source, translator.entries, translator.translatedBytes,
+                translator.entryList.size(), translator.translatedInstructions, translator.interpretedInstructions);
+        for (int start = translator.translatedBytes.nextSetBit(0); start >= 0;
+                start = translator.translatedBytes.nextSetBit(start)) {
+            int end = translator.translatedBytes.nextClearBit(start);
+            machine.markCode(start, end);
+            start = end;
+        }
+        return program;
+    }
+
+    private String generate() {
+        for (Disassembler.Block block : disassembler.getBlocks()) {
+            List<Disassembler.Instruction> instructions = block.getInstructions();
+            int i = 0;
+            while (i < instructions.size()) {
+                if (!isTranslatable(instructions.get(i))) {
+                    interpretedInstructions++;
+                    i++;
+                    continue;
+                }
+                int j = i;
+                while (j < instructions.size() && isTranslatable(instructions.get(j))) {
+                    j++;
+                }
+                emitSegment(instructions.subList(i, j));
+                i = j;
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("/**\n");
+        out.append(String.format(" * Translated from %06X-%06X, entry %06X.%n",
+                disassembler.getStart(), disassembler.getEnd(), disassembler.getEntry()));
+        out.append(" */\n");
+        out.append("public final class ").append(CLASS_NAME).append(" extends AotProgram {\n");
+        out.append("    @Override\n");
+        out.append("    protected int execute(int pc, int budget) {\n");
+        out.append("        while (true) {\n");
+        int dispatchCount = (entryList.size() + CASES_PER_DISPATCH - 1) / CASES_PER_DISPATCH;
+        if (dispatchCount == 0) {
+            out.append("            int next = -1;\n");
+        } else if (dispatchCount == 1) {
+            out.append("            int next = dispatch0(pc, budget);\n");
+        } else {
+            out.append("            int next;\n");
+            for (int d = 0; d < dispatchCount; d++) {
+                if (d == 0) {
+                    out.append("            if ");
+                } else if (d < dispatchCount - 1) {
+                    out.append(" else if ");
+                } else {
+                    out.append(" else ");
+                }
+                if (d < dispatchCount - 1) {
+                    int last = (d + 1) * CASES_PER_DISPATCH - 1;
+                    out.append(String.format("(pc <= 0x%06X) ", entryList.get(last)));
+                }
+                out.append(String.format("{%n                next = dispatch%d(pc, budget);%n            }", d));
+            }
+            out.append("\n");
+        }
+        out.append("            if (next < 0) {\n");
+        out.append("                return pc;\n");
+        out.append("            }\n");
+        out.append("            pc = next;\n");
+        out.append("            if (leave) {\n");
+        out.append("                return pc;\n");
+        out.append("            }\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        for (int d = 0; d < dispatchCount; d++) {
+            out.append("\n");
+            out.append(String.format("    private int dispatch%d(int pc, int budget) {%n", d));
+            out.append("        switch (pc) {\n");
+            int last = Math.min(entryList.size(), (d + 1) * CASES_PER_DISPATCH);
+            for (int i = d * CASES_PER_DISPATCH; i < last; i++) {
+                int entry = entryList.get(i);
+                out.append(String.format("            case 0x%06X:%n", entry));
+                out.append(String.format("                return executed + %d > budget ? -1 : s%06X();%n",
+                        entrySizes.get(i), entry));
+            }
+            out.append("            default:\n");
+            out.append("                return -1;\n");
+            out.append("        }\n");
+            out.append("    }\n");
+        }
+        out.append(segments);
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private void emitSegment(List<Disassembler.Instruction> instructions) {
+        Disassembler.Instruction first = instructions.get(0);
+        Disassembler.Instruction last = instructions.get(instructions.size() - 1);
+        int count = instructions.size();
+        entryList.add(first.getAddress());
+        entrySizes.add(count);
+        entries.set(first.getAddress());
+        translatedBytes.set(first.getAddress(), last.getAddress() + last.getLength());
+        translatedInstructions += count;
+
+        segments.append("\n");
+        segments.append(String.format("    private int s%06X() {%n", first.getAddress()));
+        segments.append(String.format("        executed += %d;%n", count));
+        boolean returned = false;
+        for (int i = 0; i < count; i++) {
+            Disassembler.Instruction insn = instructions.get(i);
+            segments.append(String.format("        // %06X  %s%n", insn.getAddress(), insn));
+            returned = emit(insn, count - i);
+        }
+        if (!returned) {
+            segments.append(String.format("        return 0x%06X;%n", last.getAddress() + last.getLength()));
+        }
+        segments.append("    }\n");
+    }
+
+    private static boolean isTranslatable(Disassembler.Instruction insn) {
+        int opcode = insn.getOpcode();
+        if (insn.getLength() == 1) {
+            return false;
+        }
+        if (insn.getLength() == 2) {
+            int r1 = (insn.getOperand() >> 4) & 0x0F;
+            int r2 = insn.getOperand() & 0x0F;
+            switch (opcode) {
+                case Opcode.ADDR:
+                case Opcode.SUBR:
+                case Opcode.MULR:
+                case Opcode.DIVR:
+                case Opcode.COMPR:
+                case Opcode.RMO:
+                    return r1 < REGISTERS.length && r2 < REGISTERS.length;
+                case Opcode.SHIFTL:
+                case Opcode.SHIFTR:
+                case Opcode.CLEAR:
+                case Opcode.TIXR:
+                    return r1 < REGISTERS.length;
+                default:
+                    return false;
+            }
+        }
+        if (opcode == Opcode.RSUB) {
+            return true;
+        }
+        int ni = insn.getNi();
+        if (ni == 0) {
+            return false;
+        }
+        int width;
+        switch (opcode) {
+            case Opcode.LDA:
+            case Opcode.LDX:
+            case Opcode.LDL:
+            case Opcode.LDB:
+            case Opcode.LDS:
+            case Opcode.LDT:
+            case Opcode.ADD:
+            case Opcode.SUB:
+            case Opcode.MUL:
+            case Opcode.DIV:
+            case Opcode.COMP:
+            case Opcode.TIX:
+            case Opcode.AND:
+            case Opcode.OR:
+                width = 3;
+                break;
+            case Opcode.LDCH:
+                width = 1;
+                break;
+            case Opcode.STA:
+            case Opcode.STX:
+            case Opcode.STL:
+            case Opcode.STB:
+            case Opcode.STS:
+            case Opcode.STT:
+            case Opcode.STSW:
+                if (ni == 1) {
+                    return false;
+                }
+                width = 3;
+                break;
+            case Opcode.STCH:
+                if (ni == 1) {
+                    return false;
+                }
+                width = 1;
+                break;
+            case Opcode.J:
+            case Opcode.JEQ:
+            case Opcode.JGT:
+            case Opcode.JLT:
+            case Opcode.JSUB:
+                if (ni == 1) {
+                    return false;
+                }
+                width = 0;
+                break;
+            default:
+                return false;
+        }
+        // Constant addresses that the interpreter would reject stay with it.
+        if (isConstantBase(insn)) {
+            int address = constantBase(insn);
+            if (ni == 2 && address > Machine.MEMORY_SIZE - 3) {
+                return false;
+            }
+            if (ni == 3 && width > 0 && address > Machine.MEMORY_SIZE - width) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Emits one instruction; {@code rest} counts it and the instructions
+     * after it in the segment. Returns true when the code ends in a return.
+     */
+    private boolean emit(Disassembler.Instruction insn, int rest) {
+        int next = insn.getAddress() + insn.getLength();
+        String bail = String.format("return bail(0x%06X, %d);", insn.getAddress(), rest);
+        String staleBail = String.format("return bail(0x%06X, %d);", next, rest - 1);
+        if (insn.getLength() == 2) {
+            emitRegisterInstruction(insn, bail);
+            return false;
+        }
+        int opcode = insn.getOpcode();
+        if (opcode == Opcode.RSUB) {
+            line("return l & 0xFFFFF;");
+            return true;
+        }
+        line("{");
+        indent = "            ";
+        boolean returned = emitOperation(insn, bail, staleBail);
+        indent = "        ";
+        line("}");
+        return returned;
+    }
+
+    private boolean emitOperation(Disassembler.Instruction insn, String bail, String staleBail) {
+        int opcode = insn.getOpcode();
+        int next = insn.getAddress() + insn.getLength();
+        int ni = insn.getNi();
+        String value;
+        String byteValue;
+        boolean memory = ni != 1;
+        if (memory) {
+            int width = opcode == Opcode.LDCH || opcode == Opcode.STCH ? 1 : 3;
+            boolean jump = isJump(opcode);
+            line("int e = " + baseAddress(insn) + ";");
+            if (ni == 2) {
+                if (!isConstantBase(insn)) {
+                    rangeCheck(3, bail);
+                }
+                line("e = word(e) & 0xFFFFF;");
+                if (!jump) {
+                    rangeCheck(width, bail);
+                }
+            } else if (!jump && !isConstantBase(insn)) {
+                rangeCheck(width, bail);
+            }
+            value = "word(e)";
+            byteValue = "(memory[e] & 0xFF)";
+        } else {
+            int xbpe = insn.getXbpe();
+            if (insn.getLength() == 4 || (xbpe & 0x06) != 0) {
+                String base = baseAddress(insn);
+                value = base;
+                byteValue = "(" + base + " & 0xFF)";
+            } else {
+                int immediate = signExtend12(insn.getOperand());
+                value = String.format("0x%06X", immediate & 0xFFFFFF);
+                byteValue = String.format("0x%02X", immediate & 0xFF);
+            }
+        }
+        switch (opcode) {
+            case Opcode.LDA:
+            case Opcode.LDX:
+            case Opcode.LDL:
+            case Opcode.LDB:
+            case Opcode.LDS:
+            case Opcode.LDT:
+                line(loadTarget(opcode) + " = " + value + ";");
+                return false;
+            case Opcode.ADD:
+                line("a = (a + " + value + ") & " + MASK + ";");
+                return false;
+            case Opcode.SUB:
+                line("a = (a - " + value + ") & " + MASK + ";");
+                return false;
+            case Opcode.MUL:
+                line("a = (a * " + value + ") & " + MASK + ";");
+                return false;
+            case Opcode.DIV:
+                line("int d = " + value + " << 8 >> 8;");
+                line("if (d == 0) {");
+                line("    " + bail);
+                line("}");
+                line("a = ((a << 8 >> 8) / d) & " + MASK + ";");
+                return false;
+            case Opcode.COMP:
+                line("sw = compare(a, " + value + ");");
+                return false;
+            case Opcode.TIX:
+                // The operand is resolved with X before the increment.
+                line("int v = " + value + ";");
+                line("x = (x + 1) & " + MASK + ";");
+                line("sw = compare(x, v);");
+                return false;
+            case Opcode.AND:
+                line("a &= " + value + ";");
+                return false;
+            case Opcode.OR:
+                line("a |= " + value + ";");
+                return false;
+            case Opcode.LDCH:
+                line("a = (a & 0xFFFF00) | " + byteValue + ";");
+                return false;
+            case Opcode.STA:
+            case Opcode.STX:
+            case Opcode.STL:
+            case Opcode.STB:
+            case Opcode.STS:
+            case Opcode.STT:
+            case Opcode.STSW:
+                line("machine.setWord(e, " + storeSource(opcode) + ");");
+                line("if (stale) {");
+                line("    " + staleBail);
+                line("}");
+                return false;
+            case Opcode.STCH:
+                line("machine.setByte(e, a & 0xFF);");
+                line("if (stale) {");
+                line("    " + staleBail);
+                line("}");
+                return false;
+            case Opcode.J:
+                line("return e;");
+                return true;
+            case Opcode.JEQ:
+                line(String.format("return (sw & 0xC0) == 0x40 ? e : 0x%06X;", next));
+                return true;
+            case Opcode.JGT:
+                line(String.format("return (sw & 0xC0) == 0x80 ? e : 0x%06X;", next));
+                return true;
+            case Opcode.JLT:
+                line(String.format("return (sw & 0xC0) == 0x00 ? e : 0x%06X;", next));
+                return true;
+            case Opcode.JSUB:
+                line(String.format("l = 0x%06X;", next));
+                line("return e;");
+                return true;
+            default:
+                throw new IllegalStateException("Untranslatable opcode " + Machine.opcodeToMnemonic(opcode));
+        }
+    }
+
+    private void emitRegisterInstruction(Disassembler.Instruction insn, String bail) {
+        int r1 = (insn.getOperand() >> 4) & 0x0F;
+        int r2 = insn.getOperand() & 0x0F;
+        String first = REGISTERS[r1];
+        String second = r2 < REGISTERS.length ? REGISTERS[r2] : null;
+        switch (insn.getOpcode()) {
+            case Opcode.ADDR:
+                line(second + " = (" + first + " + " + second + ") & " + MASK + ";");
+                break;
+            case Opcode.SUBR:
+                line(second + " = (" + second + " - " + first + ") & " + MASK + ";");
+                break;
+            case Opcode.MULR:
+                line(second + " = (" + first + " * " + second + ") & " + MASK + ";");
+                break;
+            case Opcode.DIVR:
+                line("{");
+                line("    int d = " + first + " << 8 >> 8;");
+                line("    if (d == 0) {");
+                line("        " + bail);
+                line("    }");
+                line("    " + second + " = ((" + second + " << 8 >> 8) / d) & " + MASK + ";");
+                line("}");
+                break;
+            case Opcode.COMPR:
+                line("sw = compare(" + first + ", " + second + ");");
+                break;
+            case Opcode.RMO:
+                line(second + " = " + first + ";");
+                break;
+            case Opcode.SHIFTL:
+                line(first + " = (" + first + " << " + r2 + ") & " + MASK + ";");
+                break;
+            case Opcode.SHIFTR:
+                line(first + " = " + first + " >>> " + r2 + ";");
+                break;
+            case Opcode.CLEAR:
+                line(first + " = 0;");
+                break;
+            case Opcode.TIXR:
+                line("x = (x + 1) & " + MASK + ";");
+                line("sw = compare(x, " + first + ");");
+                break;
+            default:
+                throw new IllegalStateException("Untranslatable opcode " + Machine.opcodeToMnemonic(insn.getOpcode()));
+        }
+    }
+
+    private void line(String statement) {
+        segments.append(indent).append(statement).append('\n');
+    }
+
+    private void rangeCheck(int width, String bail) {
+        line(String.format("if (e > 0x%06X) {", Machine.MEMORY_SIZE - width));
+        line("    " + bail);
+        line("}");
+    }
+
+    /**
+     * Java expression for the target address before indirection, following
+     * the interpreter's operand resolution.
+     */
+    private static String baseAddress(Disassembler.Instruction insn) {
+        int xbpe = insn.getXbpe();
+        String base;
+        if (insn.getLength() == 4 || (xbpe & 0x04) == 0 || (xbpe & 0x02) != 0) {
+            base = String.format("0x%06X", constantBase(insn));
+        } else {
+            base = "((b + " + signExtend12(insn.getOperand()) + ") & 0xFFFFF)";
+        }
+        if ((xbpe & 0x08) != 0) {
+            base = "((" + base + " + x) & 0xFFFFF)";
+        }
+        return base;
+    }
+
+    private static boolean isConstantBase(Disassembler.Instruction insn) {
+        int xbpe = insn.getXbpe();
+        return (xbpe & 0x08) == 0 && (insn.getLength() == 4 || (xbpe & 0x04) == 0 || (xbpe & 0x02) != 0);
+    }
+
+    /**
+     * Address part of an operand that does not depend on B or X.
+     */
+    private static int constantBase(Disassembler.Instruction insn) {
+        int operand = insn.getOperand();
+        if (insn.getLength() == 4) {
+            return operand & Machine.MAX_ADDRESS;
+        }
+        if ((insn.getXbpe() & 0x02) != 0) {
+            return (insn.getAddress() + insn.getLength() + signExtend12(operand)) & Machine.MAX_ADDRESS;
+        }
+        return operand & 0x0FFF;
+    }
+
+    private static boolean isJump(int opcode) {
+        return opcode == Opcode.J || opcode == Opcode.JEQ || opcode == Opcode.JGT
+                || opcode == Opcode.JLT || opcode == Opcode.JSUB;
+    }
+
+    private static String loadTarget(int opcode) {
+        switch (opcode) {
+            case Opcode.LDA:
+                return "a";
+            case Opcode.LDX:
+                return "x";
+            case Opcode.LDL:
+                return "l";
+            case Opcode.LDB:
+                return "b";
+            case Opcode.LDS:
+                return "s";
+            default:
+                return "t";
+        }
+    }
+
+    private static String storeSource(int opcode) {
+        switch (opcode) {
+            case Opcode.STA:
+                return "a";
+            case Opcode.STX:
+                return "x";
+            case Opcode.STL:
+                return "l";
+            case Opcode.STB:
+                return "b";
+            case Opcode.STS:
+                return "s";
+            case Opcode.STT:
+                return "t";
+            default:
+                return "sw";
+        }
+    }
+
+    private static int signExtend12(int value) {
+        return (value & 0x800) != 0 ? (value & 0xFFF) - 0x1000 : value & 0xFFF;
+    }
+
+    private static AotProgram compile(String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available; run the simulator on a JDK.");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, byte[]> classes = new HashMap<>();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className,
+                    JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("memory:///" + className + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                classes.put(className, toByteArray());
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + CLASS_NAME + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        List<String> options = List.of("-classpath", classPath(), "-proc:none", "-nowarn");
+        boolean compiled = compiler.getTask(null, manager, diagnostics, options, null, List.of(file)).call();
+        try {
+            manager.close();
+        } catch (IOException ignored) {
+            // Nothing was written to disk.
+        }
+        if (!compiled) {
+            StringBuilder message = new StringBuilder("Translated source did not compile:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    message.append(String.format("%n  line %d: %s", diagnostic.getLineNumber(), diagnostic.getMessage(null)));
+                }
+            }
+            throw new IllegalStateException(message.toString());
+        }
+        ClassLoader loader = new ClassLoader(AotProgram.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = classes.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return (AotProgram) loader.loadClass(CLASS_NAME).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Cannot load translated class: " + ex, ex);
+        }
+    }
+
+    /**
+     * Class path for the generated source: where {@link AotProgram} was
+     * loaded from, followed by the JVM class path.
+     */
+    private static String classPath() {
+        String path = System.getProperty("java.class.path", "");
+        try {
+            URI location = AotProgram.class.getProtectionDomain().getCodeSource().getLocation().toURI();
+            return Path.of(location) + File.pathSeparator + path;
+        } catch (URISyntaxException | RuntimeException ex) {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,981 @@
+import java.util.Arrays;
+
+/**
+ * Runs one loaded program for many inputs at once. The lanes share a single
+ * memory image; each lane keeps its registers in one array per register
+ * (struct of arrays) and gets a private copy of a 256-byte page only when it
+ * writes to it.
+ *
+ * <p>Every step executes the instruction at the lowest PC of all running
+ * lanes for every lane that is there, so lanes that took different branches
+ * wait for each other and run together again once they reconverge. While
+ * all lanes agree, register operations are plain loops over the register
+ * arrays, which the JIT compiles to SIMD code. Instructions outside the
+ * integer subset (device I/O, floating point, SVC) and anything the
+ * interpreter reports as an error move the lane to its own {@link Machine},
+ * which finishes the run with the normal interpreter.
+ */
+public final class BatchMachine {
+    /** Still running when the step budget ran out. */
+    public static final int RUNNING = 0;
+    /** Reached a {@code J} to itself. */
+    public static final int HALTED = 1;
+    /** Stopped by a runtime error or while waiting for device input. */
+    public static final int FAULTED = 2;
+
+    private static final int MASK = 0xFFFFFF;
+    private static final int PAGE_BITS = MemoryPages.PAGE_BITS;
+    private static final int PAGE_MASK = MemoryPages.PAGE_SIZE - 1;
+    private static final int CC_LESS = 0x00;
+    private static final int CC_EQUAL = 0x40;
+    private static final int CC_GREATER = 0x80;
+
+    private final Machine template;
+    private final int lanes;
+    private final byte[] image = new byte[Machine.MEMORY_SIZE];
+    private final byte[][][] laneCopies = new byte[MemoryPages.PAGE_COUNT][][];
+    /** Per page, the offsets any lane has written; elsewhere all lanes match the image. */
+    private final long[][] written = new long[MemoryPages.PAGE_COUNT][];
+    private final int[][] regs = new int[6][];
+    private final int[] pc;
+    private final int[] sw;
+    private final long[] steps;
+    private final byte[] state;
+    private final String[] faults;
+    private final Machine[] scalar;
+    private final double initialF;
+
+    // Scratch arrays indexed by position in the current group.
+    private final int[] group;
+    private final int[] values;
+    private final int[] addresses;
+    private final int[] gathered;
+    private final int[] gatheredSource;
+    private final int[] gatheredCc;
+    private boolean uniformAddress;
+
+    /**
+     * Creates {@code lanes} copies of the memory and registers of
+     * {@code template}.
+     */
+    public BatchMachine(Machine template, int lanes) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("A batch needs at least one lane.");
+        }
+        this.template = template;
+        this.lanes = lanes;
+        template.readMemory(0, image, 0, image.length);
+        Machine.Registers initial = template.readRegisters();
+        int[] values = {initial.getA(), initial.getX(), initial.getL(), initial.getB(), initial.getS(), initial.getT()};
+        for (int reg = 0; reg < regs.length; reg++) {
+            regs[reg] = new int[lanes];
+            Arrays.fill(regs[reg], values[reg]);
+        }
+        pc = new int[lanes];
+        Arrays.fill(pc, initial.getPC());
+        sw = new int[lanes];
+        Arrays.fill(sw, initial.getSW());
+        initialF = initial.getF();
+        steps = new long[lanes];
+        state = new byte[lanes];
+        faults = new String[lanes];
+        scalar = new Machine[lanes];
+        group = new int[lanes];
+        this.values = new int[lanes];
+        addresses = new int[lanes];
+        gathered = new int[lanes];
+        gatheredSource = new int[lanes];
+        gatheredCc = new int[lanes];
+    }
+
+    public int getLaneCount() {
+        return lanes;
+    }
+
+    /**
+     * Runs every lane until it halts, faults or has executed
+     * {@code maxSteps} instructions in total. Returns the number of
+     * instructions executed by all lanes in this call.
+     */
+    public long run(long maxSteps) {
+        long before = totalSteps();
+        int count;
+        while ((count = collectGroup(maxSteps)) > 0) {
+            int at = pc[group[0]];
+            boolean dense = count == lanes;
+            long slack = dense ? maxSteps - maxLaneSteps() : 1;
+            while (true) {
+                count = dropModifiedCode(at, count);
+                if (count == 0) {
+                    break;
+                }
+                boolean uniform = execute(at, count, dense && count == lanes);
+                if (!uniform || --slack <= 0) {
+                    break;
+                }
+                at = pc[group[0]];
+            }
+        }
+        runScalarLanes(maxSteps);
+        return totalSteps() - before;
+    }
+
+    public int getState(int lane) {
+        return state[lane];
+    }
+
+    public long getSteps(int lane) {
+        return steps[lane];
+    }
+
+    /**
+     * Why the lane faulted, or {@code null}.
+     */
+    public String getFault(int lane) {
+        return faults[lane];
+    }
+
+    /**
+     * Whether the lane left the batch and runs on its own interpreter.
+     */
+    public boolean isScalar(int lane) {
+        return scalar[lane] != null;
+    }
+
+    /**
+     * Register by its format 2 number: A, X, L, B, S, T (0-5), PC (8) or
+     * SW (9).
+     */
+    public int getReg(int lane, int reg) {
+        if (scalar[lane] != null) {
+            return scalar[lane].getReg(reg);
+        }
+        switch (reg) {
+            case 8:
+                return pc[lane];
+            case 9:
+                return sw[lane];
+            default:
+                checkRegister(reg);
+                return regs[reg][lane];
+        }
+    }
+
+    public void setReg(int lane, int reg, int value) {
+        if (scalar[lane] != null) {
+            scalar[lane].setReg(reg, value);
+            return;
+        }
+        switch (reg) {
+            case 8:
+                pc[lane] = value & Machine.MAX_ADDRESS;
+                break;
+            case 9:
+                sw[lane] = value & 0xFF;
+                break;
+            default:
+                checkRegister(reg);
+                regs[reg][lane] = value & MASK;
+                break;
+        }
+    }
+
+    public int getByte(int lane, int address) {
+        checkRange(address, 1);
+        if (scalar[lane] != null) {
+            return scalar[lane].getByte(address);
+        }
+        return laneByte(lane, address);
+    }
+
+    public int getWord(int lane, int address) {
+        checkRange(address, 3);
+        if (scalar[lane] != null) {
+            return scalar[lane].getWord(address);
+        }
+        return laneWord(lane, address);
+    }
+
+    public void setWord(int lane, int address, int value) {
+        checkRange(address, 3);
+        if (scalar[lane] != null) {
+            scalar[lane].setWord(address, value);
+            return;
+        }
+        setLaneWord(lane, address, value);
+    }
+
+    /**
+     * Builds a separate machine with the lane's memory and registers, for
+     * inspection or to continue it interactively.
+     */
+    public Machine toMachine(int lane) {
+        if (scalar[lane] != null) {
+            Machine copy = materialize(lane);
+            byte[] memory = new byte[Machine.MEMORY_SIZE];
+            scalar[lane].readMemory(0, memory, 0, memory.length);
+            copy.writeBlock(0, memory, 0, memory.length);
+            for (int reg : new int[] {0, 1, 2, 3, 4, 5, 8, 9}) {
+                copy.setReg(reg, scalar[lane].getReg(reg));
+            }
+            copy.setF(scalar[lane].getF());
+            return copy;
+        }
+        return materialize(lane);
+    }
+
+    private static void checkRegister(int reg) {
+        if (reg < 0 || reg > 5) {
+            throw new IllegalArgumentException("Invalid register index: " + reg);
+        }
+    }
+
+    private static void checkRange(int address, int length) {
+        if (!Machine.isValidRange(address, length)) {
+            throw new IllegalArgumentException(String.format("Address outside memory: %06X", address));
+        }
+    }
+
+    private long totalSteps() {
+        long total = 0;
+        for (long count : steps) {
+            total += count;
+        }
+        return total;
+    }
+
+    private long maxLaneSteps() {
+        long max = 0;
+        for (long count : steps) {
+            max = Math.max(max, count);
+        }
+        return max;
+    }
+
+    private boolean isActive(int lane, long maxSteps) {
+        return state[lane] == RUNNING && scalar[lane] == null && steps[lane] < maxSteps;
+    }
+
+    /**
+     * Puts the active lanes with the lowest PC into {@link #group}.
+     */
+    private int collectGroup(long maxSteps) {
+        int lowest = Integer.MAX_VALUE;
+        for (int lane = 0; lane < lanes; lane++) {
+            if (isActive(lane, maxSteps) && pc[lane] < lowest) {
+                lowest = pc[lane];
+            }
+        }
+        int count = 0;
+        for (int lane = 0; lane < lanes && lowest != Integer.MAX_VALUE; lane++) {
+            if (pc[lane] == lowest && isActive(lane, maxSteps)) {
+                group[count++] = lane;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Instructions are decoded once from the shared image. Lanes whose
+     * private copy of the code page holds different instruction bytes
+     * modified their code and continue on their own interpreter.
+     */
+    private int dropModifiedCode(int at, int count) {
+        if (at + 4 > Machine.MEMORY_SIZE) {
+            return handOverAll(count);
+        }
+        int length = Machine.instructionLength(image[at] & 0xFF, image[at + 1] & 0xFF);
+        if (!isWritten(at, length)) {
+            return count;
+        }
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            int lane = group[k];
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = laneByte(lane, at + i) == (image[at + i] & 0xFF);
+            }
+            if (same) {
+                group[kept++] = lane;
+            } else {
+                handOver(lane);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Executes the instruction at {@code at} for the lanes in the group.
+     * Returns true when they all still run together at one PC.
+     */
+    private boolean execute(int at, int count, boolean dense) {
+        int first = image[at] & 0xFF;
+        if (Machine.isFormat1(first)) {
+            handOverAll(count);
+            return false;
+        }
+        if (Machine.isFormat2(first)) {
+            return executeFormat2(first, image[at + 1] & 0xFF, at, count, dense);
+        }
+        int opcode = first & 0xFC;
+        if (!Machine.isFormat34(opcode) || !isSupported(opcode)) {
+            handOverAll(count);
+            return false;
+        }
+        int ni = first & 0x03;
+        int second = image[at + 1] & 0xFF;
+        int third = image[at + 2] & 0xFF;
+        int xbpe = second >> 4;
+        boolean extended = (xbpe & 0x1) != 0;
+        int raw = extended
+                ? ((second & 0x0F) << 16) | (third << 8) | (image[at + 3] & 0xFF)
+                : ((second & 0x0F) << 8) | third;
+        int next = (at + (extended ? 4 : 3)) & Machine.MAX_ADDRESS;
+
+        if (opcode == Opcode.RSUB) {
+            int[] l = regs[2];
+            for (int k = 0; k < count; k++) {
+                int lane = group[k];
+                pc[lane] = l[lane] & Machine.MAX_ADDRESS;
+                steps[lane]++;
+            }
+            return false;
+        }
+        if (ni == 0) {
+            handOverAll(count);
+            return false;
+        }
+        boolean immediate = ni == 1;
+        if (immediate && !acceptsImmediate(opcode)) {
+            handOverAll(count);
+            return false;
+        }
+        count = resolveOperands(ni, xbpe, raw, extended, next, count);
+        int size = opcode == Opcode.LDCH || opcode == Opcode.STCH ? 1 : 3;
+        if (!immediate) {
+            count = dropOutOfRange(count, size);
+        }
+        boolean compact = dense && count == lanes;
+
+        switch (opcode) {
+            case Opcode.J:
+            case Opcode.JEQ:
+            case Opcode.JGT:
+            case Opcode.JLT:
+            case Opcode.JSUB:
+                jump(opcode, at, next, count);
+                return false;
+            case Opcode.STA:
+            case Opcode.STX:
+            case Opcode.STL:
+            case Opcode.STB:
+            case Opcode.STS:
+            case Opcode.STT:
+            case Opcode.STSW:
+            case Opcode.STCH:
+                store(opcode, count);
+                break;
+            default:
+                fetchValues(immediate, size, count);
+                if (opcode == Opcode.DIV) {
+                    count = dropZeroDivisors(count);
+                    compact = dense && count == lanes;
+                }
+                applyMemoryOperation(opcode, count, compact);
+                break;
+        }
+        finish(next, count, compact);
+        return compact;
+    }
+
+    private static boolean isSupported(int opcode) {
+        switch (opcode) {
+            case Opcode.LDA:
+            case Opcode.LDX:
+            case Opcode.LDL:
+            case Opcode.LDB:
+            case Opcode.LDS:
+            case Opcode.LDT:
+            case Opcode.LDCH:
+            case Opcode.STA:
+            case Opcode.STX:
+            case Opcode.STL:
+            case Opcode.STB:
+            case Opcode.STS:
+            case Opcode.STT:
+            case Opcode.STCH:
+            case Opcode.STSW:
+            case Opcode.ADD:
+            case Opcode.SUB:
+            case Opcode.MUL:
+            case Opcode.DIV:
+            case Opcode.AND:
+            case Opcode.OR:
+            case Opcode.COMP:
+            case Opcode.TIX:
+            case Opcode.J:
+            case Opcode.JEQ:
+            case Opcode.JGT:
+            case Opcode.JLT:
+            case Opcode.JSUB:
+            case Opcode.RSUB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean acceptsImmediate(int opcode) {
+        switch (opcode) {
+            case Opcode.STA:
+            case Opcode.STX:
+            case Opcode.STL:
+            case Opcode.STB:
+            case Opcode.STS:
+            case Opcode.STT:
+            case Opcode.STCH:
+            case Opcode.STSW:
+            case Opcode.J:
+            case Opcode.JEQ:
+            case Opcode.JGT:
+            case Opcode.JLT:
+            case Opcode.JSUB:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Computes the operand address (or immediate value) of every lane into
+     * {@link #addresses}, following {@code Machine.resolveOperand}.
+     * Indirect pointers that lie outside memory move the lane out.
+     */
+    private int resolveOperands(int ni, int xbpe, int raw, boolean extended, int next, int count) {
+        boolean indexed = (xbpe & 0x08) != 0;
+        boolean baseRelative = (xbpe & 0x04) != 0;
+        boolean pcRelative = (xbpe & 0x02) != 0;
+        int disp = raw & 0x0FFF;
+        int signedDisp = (disp << 20) >> 20;
+        int base;
+        if (extended) {
+            base = raw & 0xFFFFF;
+        } else if (pcRelative) {
+            base = (next + signedDisp) & Machine.MAX_ADDRESS;
+        } else {
+            base = disp;
+        }
+        boolean perLaneBase = !extended && !pcRelative && baseRelative;
+        if (ni == 1 && !(extended || baseRelative || pcRelative)) {
+            // Plain immediates ignore X, as in the interpreter.
+            uniformAddress = true;
+            Arrays.fill(addresses, 0, count, signedDisp);
+            return count;
+        }
+        uniformAddress = !perLaneBase && !indexed && (ni != 2 || (base + 3 <= Machine.MEMORY_SIZE && !isWritten(base, 3)));
+        if (uniformAddress) {
+            int address = ni == 2 ? wordAt(base) & Machine.MAX_ADDRESS : base;
+            Arrays.fill(addresses, 0, count, address);
+            return count;
+        }
+        int[] b = regs[3];
+        int[] x = regs[1];
+        for (int k = 0; k < count; k++) {
+            int lane = group[k];
+            int address = perLaneBase ? (b[lane] + signedDisp) & Machine.MAX_ADDRESS : base;
+            if (indexed) {
+                address = (address + x[lane]) & Machine.MAX_ADDRESS;
+            }
+            addresses[k] = address;
+        }
+        if (ni == 2) {
+            for (int k = 0; k < count; k++) {
+                int address = addresses[k];
+                addresses[k] = address + 3 <= Machine.MEMORY_SIZE
+                        ? laneWord(group[k], address) & Machine.MAX_ADDRESS
+                        : -1;
+            }
+            return dropInvalidAddresses(count);
+        }
+        return count;
+    }
+
+    private int dropInvalidAddresses(int count) {
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            if (addresses[k] >= 0) {
+                group[kept] = group[k];
+                addresses[kept++] = addresses[k];
+            } else {
+                handOver(group[k]);
+            }
+        }
+        return kept;
+    }
+
+    private int dropOutOfRange(int count, int size) {
+        for (int k = 0; k < count; k++) {
+            if (addresses[k] < 0 || addresses[k] + size > Machine.MEMORY_SIZE) {
+                addresses[k] = -1;
+            }
+        }
+        return dropInvalidAddresses(count);
+    }
+
+    private void fetchValues(boolean immediate, int size, int count) {
+        if (immediate) {
+            for (int k = 0; k < count; k++) {
+                values[k] = size == 1 ? addresses[k] & 0xFF : addresses[k] & MASK;
+            }
+            return;
+        }
+        if (uniformAddress && !isWritten(addresses[0], size)) {
+            int address = addresses[0];
+            Arrays.fill(values, 0, count, size == 1 ? image[address] & 0xFF : wordAt(address));
+            return;
+        }
+        for (int k = 0; k < count; k++) {
+            values[k] = size == 1 ? laneByte(group[k], addresses[k]) : laneWord(group[k], addresses[k]);
+        }
+    }
+
+    private int dropZeroDivisors(int count) {
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            if ((values[k] & MASK) != 0) {
+                group[kept] = group[k];
+                values[kept++] = values[k];
+            } else {
+                handOver(group[k]);
+            }
+        }
+        return kept;
+    }
+
+    private void applyMemoryOperation(int opcode, int count, boolean compact) {
+        int[] target;
+        switch (opcode) {
+            case Opcode.LDX:
+            case Opcode.TIX:
+                target = regs[1];
+                break;
+            case Opcode.LDL:
+                target = regs[2];
+                break;
+            case Opcode.LDB:
+                target = regs[3];
+                break;
+            case Opcode.LDS:
+                target = regs[4];
+                break;
+            case Opcode.LDT:
+                target = regs[5];
+                break;
+            default:
+                target = regs[0];
+                break;
+        }
+        int[] r = compact ? target : gather(target, gathered, count);
+        int[] cc = compact ? sw : gatheredCc;
+        int[] v = values;
+        switch (opcode) {
+            case Opcode.LDA:
+            case Opcode.LDX:
+            case Opcode.LDL:
+            case Opcode.LDB:
+            case Opcode.LDS:
+            case Opcode.LDT:
+                System.arraycopy(v, 0, r, 0, count);
+                break;
+            case Opcode.LDCH:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (r[k] & 0xFFFF00) | v[k];
+                }
+                break;
+            case Opcode.ADD:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (r[k] + v[k]) & MASK;
+                }
+                break;
+            case Opcode.SUB:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (r[k] - v[k]) & MASK;
+                }
+                break;
+            case Opcode.MUL:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (r[k] * v[k]) & MASK;
+                }
+                break;
+            case Opcode.DIV:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (signed(r[k]) / signed(v[k])) & MASK;
+                }
+                break;
+            case Opcode.AND:
+                for (int k = 0; k < count; k++) {
+                    r[k] = r[k] & v[k];
+                }
+                break;
+            case Opcode.OR:
+                for (int k = 0; k < count; k++) {
+                    r[k] = r[k] | v[k];
+                }
+                break;
+            case Opcode.COMP:
+                for (int k = 0; k < count; k++) {
+                    cc[k] = condition(signed(r[k]), signed(v[k]));
+                }
+                break;
+            case Opcode.TIX:
+                for (int k = 0; k < count; k++) {
+                    r[k] = (r[k] + 1) & MASK;
+                    cc[k] = condition(signed(r[k]), signed(v[k]));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected opcode " + opcode);
+        }
+        if (!compact) {
+            scatter(r, target, count);
+            if (opcode == Opcode.COMP || opcode == Opcode.TIX) {
+                scatter(cc, sw, count);
+            }
+        }
+    }
+
+    private void store(int opcode, int count) {
+        for (int k = 0; k < count; k++) {
+            int lane = group[k];
+            int address = addresses[k];
+            switch (opcode) {
+                case Opcode.STCH:
+                    setLaneByte(lane, address, regs[0][lane]);
+                    break;
+                case Opcode.STSW:
+                    setLaneWord(lane, address, sw[lane]);
+                    break;
+                default:
+                    setLaneWord(lane, address, storedRegister(opcode)[lane]);
+                    break;
+            }
+        }
+    }
+
+    private int[] storedRegister(int opcode) {
+        switch (opcode) {
+            case Opcode.STX:
+                return regs[1];
+            case Opcode.STL:
+                return regs[2];
+            case Opcode.STB:
+                return regs[3];
+            case Opcode.STS:
+                return regs[4];
+            case Opcode.STT:
+                return regs[5];
+            default:
+                return regs[0];
+        }
+    }
+
+    private void jump(int opcode, int at, int next, int count) {
+        int[] l = regs[2];
+        for (int k = 0; k < count; k++) {
+            int lane = group[k];
+            int target = addresses[k];
+            int code = sw[lane] & 0xC0;
+            steps[lane]++;
+            switch (opcode) {
+                case Opcode.J:
+                    if (target == at) {
+                        state[lane] = HALTED;
+                    }
+                    pc[lane] = target;
+                    break;
+                case Opcode.JSUB:
+                    l[lane] = next;
+                    pc[lane] = target;
+                    break;
+                case Opcode.JEQ:
+                    pc[lane] = code == CC_EQUAL ? target : next;
+                    break;
+                case Opcode.JGT:
+                    pc[lane] = code == CC_GREATER ? target : next;
+                    break;
+                default:
+                    pc[lane] = code == CC_LESS ? target : next;
+                    break;
+            }
+        }
+    }
+
+    private boolean executeFormat2(int opcode, int operand, int at, int count, boolean dense) {
+        int r1 = (operand >> 4) & 0x0F;
+        int r2 = operand & 0x0F;
+        boolean twoRegisters = opcode == Opcode.ADDR || opcode == Opcode.SUBR || opcode == Opcode.MULR
+                || opcode == Opcode.DIVR || opcode == Opcode.COMPR || opcode == Opcode.RMO;
+        boolean oneRegister = opcode == Opcode.SHIFTL || opcode == Opcode.SHIFTR || opcode == Opcode.CLEAR
+                || opcode == Opcode.TIXR;
+        if (!(twoRegisters || oneRegister) || r1 > 5 || (twoRegisters && r2 > 5)) {
+            handOverAll(count);
+            return false;
+        }
+        if (opcode == Opcode.DIVR) {
+            int[] divisors = regs[r1];
+            int kept = 0;
+            for (int k = 0; k < count; k++) {
+                if (divisors[group[k]] != 0) {
+                    group[kept++] = group[k];
+                } else {
+                    handOver(group[k]);
+                }
+            }
+            count = kept;
+        }
+        boolean compact = dense && count == lanes;
+        int[] first = regs[r1];
+        int[] second = opcode == Opcode.TIXR ? regs[1] : twoRegisters ? regs[r2] : first;
+        int[] s = compact ? first : gather(first, gatheredSource, count);
+        int[] d = compact ? second : (second == first ? s : gather(second, gathered, count));
+        int[] cc = compact ? sw : gatheredCc;
+        int count24 = r2;
+        switch (opcode) {
+            case Opcode.ADDR:
+                for (int k = 0; k < count; k++) {
+                    d[k] = (d[k] + s[k]) & MASK;
+                }
+                break;
+            case Opcode.SUBR:
+                for (int k = 0; k < count; k++) {
+                    d[k] = (d[k] - s[k]) & MASK;
+                }
+                break;
+            case Opcode.MULR:
+                for (int k = 0; k < count; k++) {
+                    d[k] = (d[k] * s[k]) & MASK;
+                }
+                break;
+            case Opcode.DIVR:
+                for (int k = 0; k < count; k++) {
+                    d[k] = (signed(d[k]) / signed(s[k])) & MASK;
+                }
+                break;
+            case Opcode.COMPR:
+                for (int k = 0; k < count; k++) {
+                    cc[k] = condition(signed(s[k]), signed(d[k]));
+                }
+                break;
+            case Opcode.RMO:
+                System.arraycopy(s, 0, d, 0, count);
+                break;
+            case Opcode.SHIFTL:
+                for (int k = 0; k < count; k++) {
+                    s[k] = (s[k] << count24) & MASK;
+                }
+                break;
+            case Opcode.SHIFTR:
+                for (int k = 0; k < count; k++) {
+                    s[k] = s[k] >>> count24;
+                }
+                break;
+            case Opcode.CLEAR:
+                Arrays.fill(s, 0, count, 0);
+                break;
+            default:
+                // TIXR: d holds X, s the register compared with it.
+                for (int k = 0; k < count; k++) {
+                    d[k] = (d[k] + 1) & MASK;
+                    cc[k] = condition(signed(d[k]), signed(first == second ? d[k] : s[k]));
+                }
+                break;
+        }
+        if (!compact) {
+            boolean writesFirst = opcode == Opcode.SHIFTL || opcode == Opcode.SHIFTR || opcode == Opcode.CLEAR;
+            boolean writesSecond = opcode != Opcode.COMPR && !writesFirst;
+            if (writesFirst) {
+                scatter(s, first, count);
+            }
+            if (writesSecond) {
+                scatter(d, second, count);
+            }
+            if (opcode == Opcode.COMPR || opcode == Opcode.TIXR) {
+                scatter(cc, sw, count);
+            }
+        }
+        finish((at + 2) & Machine.MAX_ADDRESS, count, compact);
+        return compact;
+    }
+
+    /**
+     * Advances the group to {@code next} and counts the instruction.
+     */
+    private void finish(int next, int count, boolean compact) {
+        if (compact) {
+            Arrays.fill(pc, next);
+            for (int lane = 0; lane < lanes; lane++) {
+                steps[lane]++;
+            }
+            return;
+        }
+        for (int k = 0; k < count; k++) {
+            int lane = group[k];
+            pc[lane] = next;
+            steps[lane]++;
+        }
+    }
+
+    private int[] gather(int[] source, int[] target, int count) {
+        for (int k = 0; k < count; k++) {
+            target[k] = source[group[k]];
+        }
+        return target;
+    }
+
+    private void scatter(int[] source, int[] target, int count) {
+        for (int k = 0; k < count; k++) {
+            target[group[k]] = source[k];
+        }
+    }
+
+    private static int signed(int value) {
+        return (value << 8) >> 8;
+    }
+
+    private static int condition(int left, int right) {
+        return left < right ? CC_LESS : left == right ? CC_EQUAL : CC_GREATER;
+    }
+
+    private int laneByte(int lane, int address) {
+        byte[][] copies = laneCopies[address >>> PAGE_BITS];
+        if (copies != null) {
+            byte[] page = copies[lane];
+            if (page != null) {
+                return page[address & PAGE_MASK] & 0xFF;
+            }
+        }
+        return image[address] & 0xFF;
+    }
+
+    private int laneWord(int lane, int address) {
+        int offset = address & PAGE_MASK;
+        byte[][] copies = laneCopies[address >>> PAGE_BITS];
+        if (offset > PAGE_MASK - 2 || copies == null) {
+            return (laneByte(lane, address) << 16) | (laneByte(lane, address + 1) << 8) | laneByte(lane, address + 2);
+        }
+        byte[] page = copies[lane];
+        if (page == null) {
+            return wordAt(address);
+        }
+        return ((page[offset] & 0xFF) << 16) | ((page[offset + 1] & 0xFF) << 8) | (page[offset + 2] & 0xFF);
+    }
+
+    private int wordAt(int address) {
+        return ((image[address] & 0xFF) << 16) | ((image[address + 1] & 0xFF) << 8) | (image[address + 2] & 0xFF);
+    }
+
+    /**
+     * Whether any lane has written a byte of {@code [address, address + length)}.
+     */
+    private boolean isWritten(int address, int length) {
+        for (int i = address; i < address + length; i++) {
+            long[] bits = written[i >>> PAGE_BITS];
+            if (bits != null && (bits[(i & PAGE_MASK) >>> 6] & (1L << i)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setLaneByte(int lane, int address, int value) {
+        int index = address >>> PAGE_BITS;
+        byte[][] copies = laneCopies[index];
+        if (copies == null) {
+            copies = new byte[lanes][];
+            laneCopies[index] = copies;
+            written[index] = new long[MemoryPages.PAGE_SIZE / Long.SIZE];
+        }
+        written[index][(address & PAGE_MASK) >>> 6] |= 1L << address;
+        byte[] page = copies[lane];
+        if (page == null) {
+            page = Arrays.copyOfRange(image, index << PAGE_BITS, (index + 1) << PAGE_BITS);
+            copies[lane] = page;
+        }
+        page[address & PAGE_MASK] = (byte) value;
+    }
+
+    private void setLaneWord(int lane, int address, int value) {
+        setLaneByte(lane, address, value >> 16);
+        setLaneByte(lane, address + 1, value >> 8);
+        setLaneByte(lane, address + 2, value);
+    }
+
+    private int handOverAll(int count) {
+        for (int k = 0; k < count; k++) {
+            handOver(group[k]);
+        }
+        return 0;
+    }
+
+    /**
+     * Moves a lane to its own interpreter before it executes the current
+     * instruction; it is run by {@link #runScalarLanes(long)}.
+     */
+    private void handOver(int lane) {
+        scalar[lane] = materialize(lane);
+    }
+
+    private Machine materialize(int lane) {
+        Machine machine = new Machine();
+        machine.setStopOnHalt(true);
+        machine.setHostServices(template.isHostServices());
+        for (int device = 0; device < Machine.DEVICE_COUNT; device++) {
+            machine.setDevice(device, template.getDevice(device));
+        }
+        machine.writeBlock(0, image, 0, image.length);
+        for (int index = 0; index < laneCopies.length; index++) {
+            byte[][] copies = laneCopies[index];
+            if (copies != null && copies[lane] != null) {
+                machine.writeBlock(index << PAGE_BITS, copies[lane], 0, MemoryPages.PAGE_SIZE);
+            }
+        }
+        for (int reg = 0; reg < regs.length; reg++) {
+            machine.setReg(reg, regs[reg][lane]);
+        }
+        machine.setF(initialF);
+        machine.setPC(pc[lane]);
+        machine.setSW(sw[lane]);
+        machine.setLoadInfo(template.getLastLoadStart(), template.getLastLoadLength());
+        return machine;
+    }
+
+    /**
+     * Runs the lanes that left the batch, stopping at a halt exactly where
+     * the batch would notice it.
+     */
+    private void runScalarLanes(long maxSteps) {
+        for (int lane = 0; lane < lanes; lane++) {
+            Machine machine = scalar[lane];
+            if (machine == null || state[lane] != RUNNING) {
+                continue;
+            }
+            try {
+                while (steps[lane] < maxSteps) {
+                    steps[lane] += machine.run((int) Math.min(maxSteps - steps[lane], Integer.MAX_VALUE));
+                    if (machine.isHalted()) {
+                        state[lane] = HALTED;
+                        break;
+                    }
+                    if (machine.getInputWaitDevice() >= 0) {
+                        state[lane] = FAULTED;
+                        faults[lane] = "waiting for input on device " + machine.getInputWaitDevice();
+                        break;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                state[lane] = FAULTED;
+                faults[lane] = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Breakpoints and watchpoints of a Machine. Addresses are kept in bitmaps
+ * over the 20-bit address space, so the per-instruction check is a single
+ * bit test; conditions are only evaluated when the bit is set. The bitmaps
+ * are allocated with the first address breakpoint, so machines without
+ * any, such as forks, do not pay for them.
+ */
+public final class Breakpoints {
+    public static final int EXECUTE = 1;
+    public static final int READ = 2;
+    public static final int WRITE = 4;
+
+    private static final int BITMAP_WORDS = Machine.MEMORY_SIZE >>> 6;
+
+    private long[] executeBits;
+    private long[] readBits;
+    private long[] writeBits;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Entry> global = new ArrayList<>();
+    private int nextId = 1;
+
+    /**
+     * Adds a breakpoint or watchpoint on a single address. {@code kinds} is
+     * a combination of {@link #EXECUTE}, {@link #READ} and {@link #WRITE}.
+     */
+    public Entry add(int address, int kinds, Condition condition) {
+        Entry entry = new Entry(nextId++, address & Machine.MAX_ADDRESS, kinds, condition);
+        entries.add(entry);
+        mark(entry);
+        return entry;
+    }
+
+    /**
+     * Adds a condition checked before every instruction, independent of
+     * the address.
+     */
+    public Entry addGlobal(Condition condition) {
+        Entry entry = new Entry(nextId++, -1, EXECUTE, condition);
+        entries.add(entry);
+        global.add(entry);
+        return entry;
+    }
+
+    public boolean remove(int id) {
+        Entry removed = null;
+        for (Entry entry : entries) {
+            if (entry.id == id) {
+                removed = entry;
+                break;
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+        entries.remove(removed);
+        global.remove(removed);
+        if (removed.address >= 0) {
+            clear(executeBits, removed.address);
+            clear(readBits, removed.address);
+            clear(writeBits, removed.address);
+            for (Entry entry : entries) {
+                if (entry.address == removed.address) {
+                    mark(entry);
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the breakpoint that fires before executing at {@code pc}, or
+     * {@code null}.
+     */
+    Entry checkExecute(Machine machine, int pc) {
+        if (isSet(executeBits, pc)) {
+            for (Entry entry : entries) {
+                if (entry.address == pc && (entry.kinds & EXECUTE) != 0 && entry.matches(machine)) {
+                    return entry.hit();
+                }
+            }
+        }
+        for (int i = 0; i < global.size(); i++) {
+            Entry entry = global.get(i);
+            if (entry.matches(machine)) {
+                return entry.hit();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the watchpoint triggered by accessing {@code length} bytes at
+     * {@code address}, or {@code null}.
+     */
+    Entry checkAccess(Machine machine, int address, int length, boolean write) {
+        long[] bits = write ? writeBits : readBits;
+        int kind = write ? WRITE : READ;
+        for (int i = 0; i < length; i++) {
+            int addr = (address + i) & Machine.MAX_ADDRESS;
+            if (!isSet(bits, addr)) {
+                continue;
+            }
+            for (Entry entry : entries) {
+                if (entry.address == addr && (entry.kinds & kind) != 0 && entry.matches(machine)) {
+                    return entry.hit();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void mark(Entry entry) {
+        if (executeBits == null) {
+            executeBits = new long[BITMAP_WORDS];
+            readBits = new long[BITMAP_WORDS];
+            writeBits = new long[BITMAP_WORDS];
+        }
+        if ((entry.kinds & EXECUTE) != 0) {
+            set(executeBits, entry.address);
+        }
+        if ((entry.kinds & READ) != 0) {
+            set(readBits, entry.address);
+        }
+        if ((entry.kinds & WRITE) != 0) {
+            set(writeBits, entry.address);
+        }
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        return bits != null && (bits[address >>> 6] & (1L << address)) != 0;
+    }
+
+    private static void set(long[] bits, int address) {
+        bits[address >>> 6] |= 1L << address;
+    }
+
+    private static void clear(long[] bits, int address) {
+        bits[address >>> 6] &= ~(1L << address);
+    }
+
+    /**
+     * One breakpoint or watchpoint.
+     */
+    public static final class Entry {
+        private final int id;
+        private final int address;
+        private final int kinds;
+        private final Condition condition;
+        private int hits;
+
+        private Entry(int id, int address, int kinds, Condition condition) {
+            this.id = id;
+            this.address = address;
+            this.kinds = kinds;
+            this.condition = condition;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Address of the breakpoint, or -1 for a global condition.
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        public int getKinds() {
+            return kinds;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        boolean matches(Machine machine) {
+            return condition == null || condition.test(machine);
+        }
+
+        Entry hit() {
+            hits++;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('#').append(id).append(' ');
+            if ((kinds & (READ | WRITE)) != 0) {
+                sb.append("watch");
+                if ((kinds & READ) != 0) {
+                    sb.append('r');
+                }
+                if ((kinds & WRITE) != 0) {
+                    sb.append('w');
+                }
+            } else {
+                sb.append("break");
+            }
+            if (address >= 0) {
+                sb.append(String.format(" %06X", address));
+            }
+            if (condition != null) {
+                sb.append(" if ").append(condition);
+            }
+            return sb.toString();
+        }
+    }
+}
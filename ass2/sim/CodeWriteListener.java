@@ -0,0 +1,13 @@
+/**
+ * Told when memory that has been executed as code is written, so cached
+ * decodings or translations of that memory can be dropped.
+ */
+@FunctionalInterface
+public interface CodeWriteListener {
+    /**
+     * {@code [start, end)} was written. Called on the writing thread with
+     * the machine's execution lock held, so it must not call back into
+     * Machine methods that take the lock.
+     */
+    void codeWritten(int start, int end);
+}
@@ -0,0 +1,353 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Boolean expression over registers and memory, compiled once into a tree of
+ * small evaluators so that checking it does not re-parse the text.
+ *
+ * <p>Grammar:
+ * <pre>
+ *  or      := and ('||' and)*
+ *  and     := compare ('&amp;&amp;' compare)*
+ *  compare := '(' or ')' | '!' compare | value [('=='|'!='|'&lt;'|'&lt;='|'&gt;'|'&gt;=') value]
+ *  value   := term (('+'|'-'|'&amp;') term)*
+ *  term    := number | register | '$'name | '[' value ']' | 'byte' '[' value ']' | '(' value ')'
+ * </pre>
+ * Registers are A, X, L, B, S, T, PC and SW; {@code [v]} is the word and
+ * {@code byte[v]} the byte at address {@code v}. Words compare as signed
+ * 24-bit values. A value on its own is true when it is non-zero.
+ * {@code $name} reads a variable from the map given to
+ * {@link #compile(String, Map)}; it must exist when the condition is
+ * compiled and is looked up again on every evaluation.
+ */
+public final class Condition {
+    private final String source;
+    private final Predicate root;
+
+    private Condition(String source, Predicate root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    public static Condition compile(String text) {
+        return compile(text, null);
+    }
+
+    public static Condition compile(String text, Map<String, Integer> variables) {
+        Parser parser = new Parser(tokenize(text), variables);
+        Predicate root = parser.or();
+        if (!parser.atEnd()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in condition: " + text);
+        }
+        return new Condition(text.trim(), root);
+    }
+
+    /**
+     * Compiles an arithmetic expression (the {@code value} rule).
+     */
+    static Value compileValue(String text, Map<String, Integer> variables) {
+        Parser parser = new Parser(tokenize(text), variables);
+        Value value = parser.value();
+        if (!parser.atEnd()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in expression: " + text);
+        }
+        return value;
+    }
+
+    public boolean test(Machine machine) {
+        return root.test(machine);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    interface Predicate {
+        boolean test(Machine machine);
+    }
+
+    interface Value {
+        int eval(Machine machine);
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '$') {
+                int start = i;
+                while (i < text.length()
+                        && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '$')) {
+                    i++;
+                }
+                tokens.add(text.substring(start, i));
+                continue;
+            }
+            String two = i + 1 < text.length() ? text.substring(i, i + 2) : "";
+            if (two.equals("==") || two.equals("!=") || two.equals("<=") || two.equals(">=")
+                    || two.equals("&&") || two.equals("||")) {
+                tokens.add(two);
+                i += 2;
+                continue;
+            }
+            if ("<>()[]+-&!".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+                continue;
+            }
+            if (c == '=') {
+                tokens.add("==");
+                i++;
+                continue;
+            }
+            throw new IllegalArgumentException("Unexpected character '" + c + "' in condition: " + text);
+        }
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("Empty condition.");
+        }
+        return tokens;
+    }
+
+    private static final class Parser {
+        private final List<String> tokens;
+        private final Map<String, Integer> variables;
+        private int pos;
+
+        Parser(List<String> tokens, Map<String, Integer> variables) {
+            this.tokens = tokens;
+            this.variables = variables;
+        }
+
+        boolean atEnd() {
+            return pos >= tokens.size();
+        }
+
+        String peek() {
+            return atEnd() ? "" : tokens.get(pos);
+        }
+
+        private boolean accept(String token) {
+            if (peek().equals(token)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("Expected '" + token + "' but found '" + peek() + "'.");
+            }
+        }
+
+        Predicate or() {
+            Predicate left = and();
+            while (accept("||")) {
+                Predicate a = left;
+                Predicate b = and();
+                left = m -> a.test(m) || b.test(m);
+            }
+            return left;
+        }
+
+        Predicate and() {
+            Predicate left = compare();
+            while (accept("&&")) {
+                Predicate a = left;
+                Predicate b = compare();
+                left = m -> a.test(m) && b.test(m);
+            }
+            return left;
+        }
+
+        Predicate compare() {
+            if (accept("!")) {
+                Predicate inner = compare();
+                return m -> !inner.test(m);
+            }
+            if (peek().equals("(") && isParenthesisedPredicate()) {
+                expect("(");
+                Predicate inner = or();
+                expect(")");
+                return inner;
+            }
+            Value left = value();
+            String op = peek();
+            switch (op) {
+                case "==": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) == right.eval(m);
+                }
+                case "!=": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) != right.eval(m);
+                }
+                case "<": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) < right.eval(m);
+                }
+                case "<=": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) <= right.eval(m);
+                }
+                case ">": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) > right.eval(m);
+                }
+                case ">=": {
+                    pos++;
+                    Value right = value();
+                    return m -> left.eval(m) >= right.eval(m);
+                }
+                default:
+                    return m -> left.eval(m) != 0;
+            }
+        }
+
+        /**
+         * Tells "(A == 1) || ..." from "(A + 1) == 2" by looking for a
+         * comparison or logical operator before the matching parenthesis.
+         */
+        private boolean isParenthesisedPredicate() {
+            int depth = 0;
+            for (int i = pos; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (token.equals("(") || token.equals("[")) {
+                    depth++;
+                } else if (token.equals(")") || token.equals("]")) {
+                    depth--;
+                    if (depth == 0) {
+                        return false;
+                    }
+                } else if (depth == 1 && isPredicateOperator(token)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isPredicateOperator(String token) {
+            switch (token) {
+                case "==":
+                case "!=":
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                case "&&":
+                case "||":
+                case "!":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        Value value() {
+            Value left = term();
+            while (true) {
+                if (accept("+")) {
+                    Value a = left;
+                    Value b = term();
+                    left = m -> a.eval(m) + b.eval(m);
+                } else if (accept("-")) {
+                    Value a = left;
+                    Value b = term();
+                    left = m -> a.eval(m) - b.eval(m);
+                } else if (accept("&")) {
+                    Value a = left;
+                    Value b = term();
+                    left = m -> a.eval(m) & b.eval(m);
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        Value term() {
+            if (atEnd()) {
+                throw new IllegalArgumentException("Unexpected end of condition.");
+            }
+            if (accept("(")) {
+                Value inner = value();
+                expect(")");
+                return inner;
+            }
+            if (accept("[")) {
+                Value address = value();
+                expect("]");
+                return m -> {
+                    // A word running past the end of memory reads as 0.
+                    int addr = address.eval(m) & Machine.MAX_ADDRESS;
+                    return Machine.isValidRange(addr, 3) ? toSigned24(m.getWord(addr)) : 0;
+                };
+            }
+            if (accept("-")) {
+                Value inner = term();
+                return m -> -inner.eval(m);
+            }
+            String token = tokens.get(pos++);
+            if (token.equalsIgnoreCase("byte") && accept("[")) {
+                Value address = value();
+                expect("]");
+                return m -> m.getByte(address.eval(m) & Machine.MAX_ADDRESS);
+            }
+            if (token.startsWith("$")) {
+                String name = token.substring(1);
+                if (variables == null || !variables.containsKey(name)) {
+                    throw new IllegalArgumentException("Unknown variable: " + token);
+                }
+                return m -> variables.getOrDefault(name, 0);
+            }
+            if (Character.isDigit(token.charAt(0))) {
+                try {
+                    int constant = Integer.decode(token);
+                    return m -> constant;
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid number: " + token);
+                }
+            }
+            switch (token.toUpperCase(Locale.ROOT)) {
+                case "A":
+                    return m -> toSigned24(m.getA());
+                case "X":
+                    return m -> toSigned24(m.getX());
+                case "L":
+                    return m -> toSigned24(m.getL());
+                case "B":
+                    return m -> toSigned24(m.getB());
+                case "S":
+                    return m -> toSigned24(m.getS());
+                case "T":
+                    return m -> toSigned24(m.getT());
+                case "PC":
+                    return Machine::getPC;
+                case "SW":
+                    return Machine::getSW;
+                default:
+                    throw new IllegalArgumentException("Unknown register or value: " + token);
+            }
+        }
+    }
+
+    private static int toSigned24(int value) {
+        int masked = value & 0xFFFFFF;
+        if ((masked & 0x800000) != 0) {
+            masked -= 1 << 24;
+        }
+        return masked;
+    }
+}
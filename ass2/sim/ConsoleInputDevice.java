@@ -0,0 +1,28 @@
+/**
+ * Device 0 fed from the {@link ConsoleMux} guest queue. TD reports whether
+ * a byte is queued, and RD on an empty queue makes the machine retry the
+ * instruction instead of blocking the execution thread.
+ */
+public class ConsoleInputDevice extends Device {
+    private final ConsoleMux console;
+
+    public ConsoleInputDevice(ConsoleMux console) {
+        this.console = console;
+    }
+
+    @Override
+    public boolean test() {
+        return console.hasGuestInput();
+    }
+
+    @Override
+    public boolean readWouldBlock() {
+        return !console.hasGuestInput();
+    }
+
+    @Override
+    public byte read() {
+        int value = console.pollGuest();
+        return value < 0 ? 0 : (byte) value;
+    }
+}
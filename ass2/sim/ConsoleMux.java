@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Owns standard input and hands each line either to the command
+ * interpreter or to the guest. While attached, lines are queued as bytes
+ * for {@link ConsoleInputDevice}. After an {@code attach} command line the
+ * reader waits until the interpreter has executed it, then routes input to
+ * the guest until a line containing only {@value #DETACH}.
+ */
+public final class ConsoleMux {
+    public static final String DETACH = "~.";
+
+    private static final String END = new String("");
+
+    private final InputStream input;
+    private final Charset charset;
+    private final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+    private volatile boolean attached;
+    private volatile boolean guestEof;
+    private volatile boolean closed;
+    private byte[] guest = new byte[256];
+    private int guestHead;
+    private int guestSize;
+    private boolean started;
+
+    public ConsoleMux(InputStream input) {
+        this(input, Charset.defaultCharset());
+    }
+
+    public ConsoleMux(InputStream input, Charset charset) {
+        this.input = input;
+        this.charset = charset;
+    }
+
+    /**
+     * Starts the reader thread; called once before the first command.
+     */
+    public synchronized void start() {
+        start(task -> {
+            Thread reader = new Thread(task, "sicxe-console");
+            reader.setDaemon(true);
+            reader.start();
+        });
+    }
+
+    /**
+     * Starts reading on {@code executor} instead of a thread of its own.
+     */
+    public synchronized void start(java.util.concurrent.Executor executor) {
+        if (started) {
+            return;
+        }
+        started = true;
+        executor.execute(this::readLines);
+    }
+
+    /**
+     * Waits for the next command line. Returns {@link #DETACH} once after the
+     * guest gave the console back and {@code null} at end of input.
+     */
+    public String nextCommand() {
+        try {
+            String line = commands.take();
+            if (line == END) {
+                commands.add(END);
+                return null;
+            }
+            return line;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Routes the following input lines to the guest.
+     */
+    public synchronized void attach() {
+        attached = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops the reader once the interpreter is done: a reader waiting for
+     * an {@code attach} that will never run is released, and no further
+     * lines are read.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public void detach() {
+        attached = false;
+    }
+
+    public boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * True when a guest read can be answered right away: either input is
+     * queued or the console reached end of input.
+     */
+    public synchronized boolean hasGuestInput() {
+        return guestSize > 0 || guestEof;
+    }
+
+    /**
+     * Next queued guest byte, or -1 when nothing is queued.
+     */
+    public synchronized int pollGuest() {
+        if (guestSize == 0) {
+            return -1;
+        }
+        int value = guest[guestHead] & 0xFF;
+        guestHead = (guestHead + 1) % guest.length;
+        guestSize--;
+        return value;
+    }
+
+    /**
+     * Queues bytes for the guest as if they had been typed while attached.
+     */
+    public synchronized void offerGuest(byte[] data) {
+        if (guestSize + data.length > guest.length) {
+            byte[] grown = new byte[Math.max(guest.length * 2, guestSize + data.length)];
+            for (int i = 0; i < guestSize; i++) {
+                grown[i] = guest[(guestHead + i) % guest.length];
+            }
+            guest = grown;
+            guestHead = 0;
+        }
+        for (byte b : data) {
+            guest[(guestHead + guestSize) % guest.length] = b;
+            guestSize++;
+        }
+    }
+
+    private void readLines() {
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(input, charset))) {
+            String line;
+            while (!closed && (line = lines.readLine()) != null) {
+                if (!attached) {
+                    commands.add(line);
+                    if (isAttachCommand(line)) {
+                        // Lines typed ahead belong to the guest, but only
+                        // once the commands before them have run.
+                        awaitAttach();
+                    }
+                } else if (line.trim().equals(DETACH)) {
+                    attached = false;
+                    commands.add(DETACH);
+                } else {
+                    offerGuest((line + "\n").getBytes(charset));
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Console input failed: " + ex.getMessage());
+        }
+        guestEof = true;
+        commands.add(END);
+    }
+
+    private synchronized void awaitAttach() throws InterruptedIOException {
+        while (!attached && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Console reader interrupted");
+            }
+        }
+    }
+
+    private static boolean isAttachCommand(String line) {
+        return line.trim().split("\\s+")[0].equalsIgnoreCase("attach");
+    }
+}
@@ -0,0 +1,517 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Remote debug server on a local TCP port or Unix-domain socket. A single
+ * selector thread serves all clients with a binary, big-endian protocol.
+ *
+ * <p>Every frame is {@code u8 type, u32 length, payload}. A request frame
+ * (type 1) holds any number of commands, each an opcode byte followed by
+ * its arguments; the response frame (type 1) holds, per command, the
+ * opcode, a status byte and the results. Status 1 is followed by
+ * {@code u16 length} and a UTF-8 message, and the remaining commands of
+ * the batch are skipped. Event frames (type 2) are sent whenever
+ * automatic execution stops. The opcodes and their layouts are listed in
+ * the readme.
+ */
+public final class DebugServer {
+    public static final int DEFAULT_PORT = 2159;
+
+    public static final int FRAME_REPLY = 1;
+    public static final int FRAME_EVENT = 2;
+
+    public static final int GET_REGS = 0x01;
+    public static final int SET_REG = 0x02;
+    public static final int READ_MEM = 0x03;
+    public static final int WRITE_MEM = 0x04;
+    public static final int STEP = 0x05;
+    public static final int START = 0x06;
+    public static final int STOP = 0x07;
+    public static final int ADD_BREAK = 0x08;
+    public static final int DELETE_BREAK = 0x09;
+    public static final int STATUS = 0x0A;
+    public static final int SAVE_SNAPSHOT = 0x0B;
+    public static final int RESTORE_SNAPSHOT = 0x0C;
+    public static final int DROP_SNAPSHOT = 0x0D;
+
+    public static final int EVENT_STOPPED = 1;
+
+    public static final int STEP_COMPLETED = 0;
+    public static final int STEP_BREAK = 1;
+    public static final int STEP_INPUT_WAIT = 2;
+
+    /** Largest memory block moved by a single READ_MEM or WRITE_MEM. */
+    public static final int MAX_TRANSFER = 64 * 1024;
+    /**
+     * Most instructions a single STEP runs; it runs on the selector thread,
+     * so a larger request would hold up every client.
+     */
+    public static final int MAX_STEP = 1_000_000;
+    private static final int MAX_FRAME = 1 << 20;
+    private static final int MAX_SNAPSHOTS = 16;
+    private static final int HEADER_SIZE = 5;
+
+    private final Machine machine;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final String description;
+    private final Path socketFile;
+    private final Queue<ByteBuffer> events = new ConcurrentLinkedQueue<>();
+    private final Consumer<String> breakListener = this::machineStopped;
+    private final Thread thread;
+    private ByteBuffer reply = ByteBuffer.allocate(64 * 1024);
+    private volatile boolean closed;
+
+    private DebugServer(Machine machine, ServerSocketChannel server, String description, Path socketFile)
+            throws IOException {
+        this.machine = machine;
+        this.server = server;
+        this.description = description;
+        this.socketFile = socketFile;
+        this.selector = Selector.open();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        machine.addBreakListener(breakListener);
+        thread = new Thread(this::serve, "sicxe-debug-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts a server on {@code address}: a TCP port on the loopback
+     * interface, or {@code unix:<path>} for a Unix-domain socket.
+     */
+    public static DebugServer open(Machine machine, String address) throws IOException {
+        if (address.startsWith("unix:")) {
+            Path path = Path.of(address.substring(5));
+            ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.bind(UnixDomainSocketAddress.of(path));
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            return new DebugServer(machine, channel, "unix:" + path, path);
+        }
+        int port = Integer.parseInt(address);
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port: " + address);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        SocketAddress bound = channel.getLocalAddress();
+        return new DebugServer(machine, channel, bound.toString(), null);
+    }
+
+    public String getAddress() {
+        return description;
+    }
+
+    public void close() {
+        closed = true;
+        machine.removeBreakListener(breakListener);
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a stop notification for every client. Runs on the machine's
+     * timer thread, so the selector thread does the actual writing.
+     */
+    private void machineStopped(String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 0xFFFF);
+        ByteBuffer event = ByteBuffer.allocate(HEADER_SIZE + 7 + length);
+        event.put((byte) FRAME_EVENT).putInt(7 + length);
+        event.put((byte) EVENT_STOPPED).putInt(machine.readRegisters().getPC());
+        event.putShort((short) length).put(text, 0, length);
+        events.add(event.flip());
+        selector.wakeup();
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                broadcastEvents();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            flush(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            receive(key);
+                        }
+                    } catch (IOException ex) {
+                        disconnect(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Debug server failed: " + ex.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Closing anyway.
+            }
+        }
+        try {
+            selector.close();
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+            }
+        } catch (IOException ignored) {
+            // Nothing left to release.
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        if (socketFile == null) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already gone.
+        }
+    }
+
+    private void broadcastEvents() {
+        ByteBuffer event;
+        while ((event = events.poll()) != null) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Client) {
+                    try {
+                        send(key, event.duplicate());
+                    } catch (IOException ex) {
+                        disconnect(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads what is available and answers every complete request frame.
+     */
+    private void receive(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(client.input) < 0) {
+            disconnect(key);
+            return;
+        }
+        ByteBuffer input = client.input;
+        input.flip();
+        while (input.remaining() >= HEADER_SIZE) {
+            int type = input.get(input.position()) & 0xFF;
+            int length = input.getInt(input.position() + 1);
+            if (type != FRAME_REPLY || length < 0 || length > MAX_FRAME) {
+                disconnect(key);
+                return;
+            }
+            if (input.remaining() < HEADER_SIZE + length) {
+                break;
+            }
+            input.position(input.position() + HEADER_SIZE);
+            ByteBuffer request = input.slice(input.position(), length);
+            input.position(input.position() + length);
+            send(key, execute(client, request));
+        }
+        input.compact();
+        if (input.position() == input.capacity() && input.capacity() < HEADER_SIZE + MAX_FRAME) {
+            client.input = ByteBuffer.allocate(Math.min(input.capacity() * 2, HEADER_SIZE + MAX_FRAME))
+                    .put(input.flip());
+        }
+    }
+
+    /**
+     * Writes {@code data} now if nothing is queued before it; the rest is
+     * copied and written when the channel becomes writable. Reading from a
+     * client pauses while its replies are backed up.
+     */
+    private void send(SelectionKey key, ByteBuffer data) throws IOException {
+        Client client = (Client) key.attachment();
+        if (client.output.isEmpty()) {
+            ((SocketChannel) key.channel()).write(data);
+            if (!data.hasRemaining()) {
+                return;
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        client.output.add(copy.put(data).flip());
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!client.output.isEmpty()) {
+            ByteBuffer data = client.output.peek();
+            channel.write(data);
+            if (data.hasRemaining()) {
+                return;
+            }
+            client.output.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs the commands of one request frame and returns the reply frame,
+     * which stays valid until the next call.
+     */
+    private ByteBuffer execute(Client client, ByteBuffer request) {
+        reply.clear();
+        reply.put((byte) FRAME_REPLY).putInt(0);
+        while (request.hasRemaining()) {
+            int opcode = request.get() & 0xFF;
+            ensureReply(2);
+            reply.put((byte) opcode);
+            int statusPosition = reply.position();
+            reply.put((byte) 0);
+            try {
+                executeCommand(client, opcode, request);
+            } catch (BufferUnderflowException ex) {
+                fail(statusPosition, "Truncated arguments for command " + opcode + ".");
+                break;
+            } catch (RuntimeException ex) {
+                fail(statusPosition, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+                break;
+            }
+        }
+        reply.putInt(1, reply.position() - HEADER_SIZE);
+        return reply.flip();
+    }
+
+    private void executeCommand(Client client, int opcode, ByteBuffer request) {
+        switch (opcode) {
+            case GET_REGS: {
+                Machine.Registers regs = machine.readRegisters();
+                ensureReply(40);
+                reply.putInt(regs.getA()).putInt(regs.getX()).putInt(regs.getL()).putInt(regs.getB())
+                        .putInt(regs.getS()).putInt(regs.getT()).putInt(regs.getPC()).putInt(regs.getSW())
+                        .putDouble(regs.getF());
+                break;
+            }
+            case SET_REG: {
+                int register = request.get() & 0xFF;
+                int value = request.getInt();
+                requireStopped();
+                machine.setReg(register, value);
+                break;
+            }
+            case READ_MEM: {
+                int address = request.getInt();
+                int length = request.getInt();
+                checkTransfer(address, length);
+                ensureReply(4 + length);
+                reply.putInt(length);
+                machine.readMemory(address, reply.array(), reply.arrayOffset() + reply.position(), length);
+                reply.position(reply.position() + length);
+                break;
+            }
+            case WRITE_MEM: {
+                int address = request.getInt();
+                int length = request.getInt();
+                checkTransfer(address, length);
+                if (request.remaining() < length) {
+                    throw new BufferUnderflowException();
+                }
+                requireStopped();
+                byte[] data = new byte[length];
+                request.get(data);
+                machine.writeBlock(address, data, 0, length);
+                break;
+            }
+            case STEP: {
+                int count = request.getInt();
+                if (count <= 0 || count > MAX_STEP) {
+                    throw new IllegalArgumentException("Step count must be between 1 and " + MAX_STEP + ".");
+                }
+                requireStopped();
+                int executed = machine.run(count);
+                int reason = machine.getLastBreak() != null ? STEP_BREAK
+                        : machine.getInputWaitDevice() >= 0 ? STEP_INPUT_WAIT : STEP_COMPLETED;
+                ensureReply(9);
+                reply.putInt(executed).putInt(machine.getPC()).put((byte) reason);
+                break;
+            }
+            case START:
+                machine.start();
+                break;
+            case STOP:
+                if (machine.isRunning()) {
+                    machine.stop();
+                    machineStopped(String.format("stopped by client at %06X", machine.getPC()));
+                }
+                break;
+            case ADD_BREAK: {
+                int kinds = request.get() & 0xFF;
+                int address = request.getInt();
+                byte[] text = new byte[request.getShort() & 0xFFFF];
+                request.get(text);
+                Condition condition = text.length == 0 ? null
+                        : Condition.compile(new String(text, StandardCharsets.UTF_8));
+                Breakpoints.Entry entry;
+                if (kinds == 0) {
+                    if (condition == null) {
+                        throw new IllegalArgumentException("A global breakpoint needs a condition.");
+                    }
+                    entry = machine.addConditionBreakpoint(condition);
+                } else if ((kinds & ~(Breakpoints.EXECUTE | Breakpoints.READ | Breakpoints.WRITE)) != 0) {
+                    throw new IllegalArgumentException("Invalid breakpoint kinds: " + kinds);
+                } else {
+                    entry = machine.addBreakpoint(address, kinds, condition);
+                }
+                ensureReply(4);
+                reply.putInt(entry.getId());
+                break;
+            }
+            case DELETE_BREAK:
+                if (!machine.removeBreakpoint(request.getInt())) {
+                    throw new IllegalArgumentException("No such breakpoint.");
+                }
+                break;
+            case STATUS:
+                ensureReply(14);
+                reply.put((byte) (machine.isRunning() ? 1 : 0)).putInt(machine.readRegisters().getPC())
+                        .put((byte) machine.getInputWaitDevice()).putLong(machine.getInstructionCount());
+                break;
+            case SAVE_SNAPSHOT: {
+                if (client.snapshots.size() >= MAX_SNAPSHOTS) {
+                    throw new IllegalStateException("Too many snapshots; drop one first.");
+                }
+                int handle = client.nextSnapshot++;
+                client.snapshots.put(handle, machine.createSnapshot());
+                ensureReply(4);
+                reply.putInt(handle);
+                break;
+            }
+            case RESTORE_SNAPSHOT:
+                machine.restoreSnapshot(snapshot(client, request.getInt()));
+                break;
+            case DROP_SNAPSHOT: {
+                int handle = request.getInt();
+                snapshot(client, handle);
+                client.snapshots.remove(handle);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown command " + opcode + ".");
+        }
+    }
+
+    private Machine.Snapshot snapshot(Client client, int handle) {
+        Machine.Snapshot snapshot = client.snapshots.get(handle);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("No such snapshot: " + handle);
+        }
+        return snapshot;
+    }
+
+    private void requireStopped() {
+        if (machine.isRunning()) {
+            throw new IllegalStateException("Stop automatic execution first.");
+        }
+    }
+
+    private static void checkTransfer(int address, int length) {
+        if (length < 0 || length > MAX_TRANSFER) {
+            throw new IllegalArgumentException("Transfer length must be 0.." + MAX_TRANSFER + ".");
+        }
+        if (!Machine.isValidRange(address, Math.max(length, 1))) {
+            throw new IllegalArgumentException(String.format("Address range outside memory: %06X", address));
+        }
+    }
+
+    /**
+     * Rewrites the current command's status as an error with a message.
+     */
+    private void fail(int statusPosition, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 0xFFFF);
+        reply.position(statusPosition);
+        ensureReply(3 + length);
+        reply.put((byte) 1).putShort((short) length).put(text, 0, length);
+    }
+
+    private void ensureReply(int extra) {
+        if (reply.remaining() < extra) {
+            int capacity = reply.capacity();
+            while (capacity - reply.position() < extra) {
+                capacity *= 2;
+            }
+            reply = ByteBuffer.allocate(capacity).put(reply.flip());
+        }
+    }
+
+    /**
+     * Per-connection state: the partial request, queued replies and the
+     * client's snapshot handles.
+     */
+    private static final class Client {
+        ByteBuffer input = ByteBuffer.allocate(8 * 1024);
+        final Deque<ByteBuffer> output = new ArrayDeque<>();
+        final Map<Integer, Machine.Snapshot> snapshots = new HashMap<>();
+        int nextSnapshot = 1;
+    }
+}
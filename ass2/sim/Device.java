@@ -13,4 +13,21 @@ public class Device {
     public void write(byte value) {
         // no-op by default
     }
+
+    /**
+     * True when {@link #read()} has no data yet; the machine then leaves PC
+     * on the RD and retries it later instead of blocking.
+     */
+    public boolean readWouldBlock() {
+        return false;
+    }
+
+    /**
+     * Device for a {@link Machine#fork()}: an independent copy for devices
+     * with a position of their own, this same device otherwise. Streams
+     * and the console cannot be duplicated, so forks share them.
+     */
+    public Device copy() {
+        return this;
+    }
 }
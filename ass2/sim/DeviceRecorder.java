@@ -0,0 +1,144 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records every byte returned by {@link Device#read()}, every
+ * {@link Device#test()} result and every time {@link Device#readWouldBlock()}
+ * said a read would have to wait, together with the instruction count at
+ * which it happened, so that {@link DeviceReplayer} can feed the same
+ * sequence back later.
+ *
+ * <p>Log layout: "SXIO", a version byte, then one event per device call:
+ * a tag byte, the device number, the instruction count delta as an
+ * unsigned LEB128 varint and, for reads, the byte that was read. Version 1
+ * logs have no would-block events.
+ */
+public final class DeviceRecorder implements Closeable {
+    static final int MAGIC = 0x5358494F; // "SXIO"
+    static final int VERSION = 2;
+    static final int TAG_READ = 0x01;
+    static final int TAG_TEST_FALSE = 0x02;
+    static final int TAG_TEST_TRUE = 0x03;
+    static final int TAG_WOULD_BLOCK = 0x04;
+
+    private final Machine machine;
+    private final DataOutputStream out;
+    private final Device[] originals = new Device[Machine.DEVICE_COUNT];
+    private long lastInstruction;
+    private long events;
+
+    private DeviceRecorder(Machine machine, DataOutputStream out) {
+        this.machine = machine;
+        this.out = out;
+    }
+
+    /**
+     * Opens the log and wraps every device of the machine with a recording
+     * device.
+     */
+    public static DeviceRecorder start(Machine machine, Path path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        DeviceRecorder recorder = new DeviceRecorder(machine, out);
+        recorder.lastInstruction = machine.getRetiredInstructions();
+        for (int i = 0; i < Machine.DEVICE_COUNT; i++) {
+            Device original = machine.getDevice(i);
+            recorder.originals[i] = original;
+            machine.setDevice(i, original == null ? null : new RecordingDevice(recorder, i, original));
+        }
+        return recorder;
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    /**
+     * Puts the original devices back and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < Machine.DEVICE_COUNT; i++) {
+            machine.setDevice(i, originals[i]);
+        }
+        out.close();
+    }
+
+    private void log(int tag, int device, int value) {
+        long now = machine.getRetiredInstructions();
+        try {
+            out.writeByte(tag);
+            out.writeByte(device);
+            writeVarLong(now - lastInstruction);
+            if (tag == TAG_READ) {
+                out.writeByte(value);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        lastInstruction = now;
+        events++;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static final class RecordingDevice extends Device {
+        private final DeviceRecorder recorder;
+        private final int number;
+        private final Device delegate;
+
+        RecordingDevice(DeviceRecorder recorder, int number, Device delegate) {
+            this.recorder = recorder;
+            this.number = number;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean test() {
+            boolean ready = delegate.test();
+            recorder.log(ready ? TAG_TEST_TRUE : TAG_TEST_FALSE, number, 0);
+            return ready;
+        }
+
+        /**
+         * Forks get the plain device; their accesses are not logged.
+         */
+        @Override
+        public Device copy() {
+            return delegate.copy();
+        }
+
+        @Override
+        public boolean readWouldBlock() {
+            boolean blocked = delegate.readWouldBlock();
+            if (blocked) {
+                recorder.log(TAG_WOULD_BLOCK, number, 0);
+            }
+            return blocked;
+        }
+
+        @Override
+        public byte read() {
+            byte value = delegate.read();
+            recorder.log(TAG_READ, number, value & 0xFF);
+            return value;
+        }
+
+        @Override
+        public void write(byte value) {
+            delegate.write(value);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Feeds a log written by {@link DeviceRecorder} back into the machine.
+ * Reads and tests are answered from the log in order, and a read is
+ * reported as having to wait exactly where the recording waited, so that
+ * stalled and partial reads repeat; writes still go to the original
+ * devices. A call that does not match the next logged event
+ * (other device, other kind of access, or other instruction count) marks
+ * the replay as diverged.
+ */
+public final class DeviceReplayer {
+    private final Machine machine;
+    private final byte[] log;
+    private final Device[] originals = new Device[Machine.DEVICE_COUNT];
+    private int pos;
+    private long expectedInstruction;
+    private long events;
+    private String divergence;
+
+    private DeviceReplayer(Machine machine, byte[] log) {
+        this.machine = machine;
+        this.log = log;
+    }
+
+    public static DeviceReplayer start(Machine machine, Path path) throws IOException {
+        byte[] log = Files.readAllBytes(path);
+        if (log.length < 5 || readInt(log, 0) != DeviceRecorder.MAGIC) {
+            throw new IOException("Not a device log: " + path);
+        }
+        if (log[4] < 1 || log[4] > DeviceRecorder.VERSION) {
+            throw new IOException("Unsupported device log version " + log[4]);
+        }
+        DeviceReplayer replayer = new DeviceReplayer(machine, log);
+        replayer.pos = 5;
+        replayer.expectedInstruction = machine.getRetiredInstructions();
+        for (int i = 0; i < Machine.DEVICE_COUNT; i++) {
+            Device original = machine.getDevice(i);
+            replayer.originals[i] = original;
+            machine.setDevice(i, new ReplayDevice(replayer, i, original));
+        }
+        return replayer;
+    }
+
+    /**
+     * Puts the original devices back.
+     */
+    public void stop() {
+        for (int i = 0; i < Machine.DEVICE_COUNT; i++) {
+            machine.setDevice(i, originals[i]);
+        }
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    public boolean isFinished() {
+        return pos >= log.length;
+    }
+
+    /**
+     * Description of the first mismatch, or {@code null} while the run still
+     * follows the log.
+     */
+    public String getDivergence() {
+        return divergence;
+    }
+
+    /**
+     * Consumes the next event when it says that a read of {@code device}
+     * waited at this instruction; any other event is left for the access
+     * that follows.
+     */
+    private boolean nextWouldBlock(int device) {
+        if (divergence != null || pos + 2 >= log.length
+                || (log[pos] & 0xFF) != DeviceRecorder.TAG_WOULD_BLOCK || (log[pos + 1] & 0xFF) != device) {
+            return false;
+        }
+        int p = pos + 2;
+        long delta = 0;
+        int shift = 0;
+        int b = 0x80;
+        while ((b & 0x80) != 0 && p < log.length) {
+            b = log[p++] & 0xFF;
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        long instruction = expectedInstruction + delta;
+        if ((b & 0x80) != 0 || instruction != machine.getRetiredInstructions()) {
+            return false;
+        }
+        pos = p;
+        expectedInstruction = instruction;
+        events++;
+        return true;
+    }
+
+    private int next(int device, boolean read) {
+        if (divergence != null) {
+            return -1;
+        }
+        if (pos >= log.length) {
+            diverge("log exhausted at device " + device);
+            return -1;
+        }
+        int tag = log[pos] & 0xFF;
+        int p = pos + 1;
+        int loggedDevice = p < log.length ? log[p++] & 0xFF : -1;
+        long delta = 0;
+        int shift = 0;
+        int b = 0x80;
+        while ((b & 0x80) != 0 && p < log.length) {
+            b = log[p++] & 0xFF;
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        if (tag == DeviceRecorder.TAG_WOULD_BLOCK) {
+            diverge(String.format("expected a waiting read on device %d, got %s on device %d",
+                    loggedDevice, read ? "read" : "test", device));
+            return -1;
+        }
+        boolean loggedRead = tag == DeviceRecorder.TAG_READ;
+        if ((b & 0x80) != 0 || (loggedRead && p >= log.length)) {
+            diverge("truncated device log");
+            return -1;
+        }
+        if (loggedDevice != device || loggedRead != read) {
+            diverge(String.format("expected %s on device %d, got %s on device %d",
+                    loggedRead ? "read" : "test", loggedDevice, read ? "read" : "test", device));
+            return -1;
+        }
+        long instruction = expectedInstruction + delta;
+        if (instruction != machine.getRetiredInstructions()) {
+            diverge(String.format("device %d accessed at instruction %d, log says %d",
+                    device, machine.getRetiredInstructions(), instruction));
+            return -1;
+        }
+        int value = loggedRead ? log[p++] & 0xFF : (tag == DeviceRecorder.TAG_TEST_TRUE ? 1 : 0);
+        pos = p;
+        expectedInstruction = instruction;
+        events++;
+        return value;
+    }
+
+    private void diverge(String reason) {
+        divergence = reason;
+        System.err.println("Replay diverged: " + reason);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static final class ReplayDevice extends Device {
+        private final DeviceReplayer replayer;
+        private final int number;
+        private final Device delegate;
+
+        ReplayDevice(DeviceReplayer replayer, int number, Device delegate) {
+            this.replayer = replayer;
+            this.number = number;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean test() {
+            return replayer.next(number, false) == 1;
+        }
+
+        @Override
+        public boolean readWouldBlock() {
+            return replayer.nextWouldBlock(number);
+        }
+
+        @Override
+        public byte read() {
+            int value = replayer.next(number, true);
+            return value < 0 ? 0 : (byte) value;
+        }
+
+        @Override
+        public void write(byte value) {
+            if (delegate != null) {
+                delegate.write(value);
+            }
+        }
+
+        /**
+         * Forks get the plain device; the log is not consumed by them.
+         */
+        @Override
+        public Device copy() {
+            return delegate == null ? null : delegate.copy();
+        }
+    }
+}
@@ -0,0 +1,515 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Static disassembler for a loaded program. Code is discovered by recursive
+ * descent from the entry point, following statically known jump and JSUB
+ * targets; every byte of the range that is never reached is treated as data.
+ * Decoded instructions and basic blocks are cached in tables indexed by
+ * address until {@link #invalidate()} is called.
+ */
+public final class Disassembler {
+    /** Byte was not reached by the analysis. */
+    public static final int DATA = 0;
+    /** First byte of an instruction. */
+    public static final int CODE = 1;
+    /** Operand byte of an instruction. */
+    public static final int OPERAND = 2;
+
+    private static final String[] REGISTER_NAMES = {"A", "X", "L", "B", "S", "T", "F", "R7", "PC", "SW"};
+
+    private final Machine machine;
+    private int start;
+    private int end;
+    private int entry;
+    private byte[] kinds;
+    private Instruction[] instructions;
+    private Block[] blockStarts;
+    private final List<Block> blocks = new ArrayList<>();
+    private volatile boolean analyzed;
+
+    public Disassembler(Machine machine) {
+        this.machine = machine;
+    }
+
+    /**
+     * Analyses {@code length} bytes from {@code start}, beginning at
+     * {@code entry}. Previous results are discarded.
+     */
+    public void analyze(int start, int length, int entry) {
+        this.start = start & Machine.MAX_ADDRESS;
+        this.end = Math.min(this.start + Math.max(length, 0), Machine.MEMORY_SIZE);
+        this.entry = entry & Machine.MAX_ADDRESS;
+        int size = end - this.start;
+        kinds = new byte[size];
+        instructions = new Instruction[size];
+        blockStarts = new Block[size];
+        blocks.clear();
+
+        boolean[] leaders = new boolean[size];
+        Deque<Integer> work = new ArrayDeque<>();
+        if (contains(this.entry)) {
+            work.push(this.entry);
+            leaders[this.entry - this.start] = true;
+        }
+        while (!work.isEmpty()) {
+            int address = work.pop();
+            while (contains(address) && kinds[address - this.start] == DATA) {
+                Instruction insn = decode(address);
+                if (insn == null) {
+                    break;
+                }
+                int index = address - this.start;
+                instructions[index] = insn;
+                kinds[index] = CODE;
+                for (int i = 1; i < insn.length; i++) {
+                    kinds[index + i] = OPERAND;
+                }
+                if (insn.target >= 0 && contains(insn.target)) {
+                    leaders[insn.target - this.start] = true;
+                    work.push(insn.target);
+                }
+                if (!insn.fallsThrough()) {
+                    break;
+                }
+                address += insn.length;
+                if (insn.isConditional() || insn.isCall()) {
+                    if (contains(address)) {
+                        leaders[address - this.start] = true;
+                    }
+                }
+            }
+        }
+        buildBlocks(leaders);
+        analyzed = true;
+    }
+
+    /**
+     * Drops all cached results, for example after memory was reloaded or
+     * code was overwritten.
+     */
+    public void invalidate() {
+        analyzed = false;
+        kinds = null;
+        instructions = null;
+        blockStarts = null;
+        blocks.clear();
+    }
+
+    public boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getEntry() {
+        return entry;
+    }
+
+    public boolean contains(int address) {
+        return address >= start && address < end;
+    }
+
+    /**
+     * Returns {@link #CODE}, {@link #OPERAND} or {@link #DATA} for an
+     * address of the analysed range.
+     */
+    public int kindAt(int address) {
+        return contains(address) && kinds != null ? kinds[address - start] : DATA;
+    }
+
+    /**
+     * Instruction starting at {@code address}, or {@code null}.
+     */
+    public Instruction instructionAt(int address) {
+        return contains(address) && instructions != null ? instructions[address - start] : null;
+    }
+
+    /**
+     * Basic block starting at {@code address}, or {@code null}.
+     */
+    public Block blockAt(int address) {
+        return contains(address) && blockStarts != null ? blockStarts[address - start] : null;
+    }
+
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Writes the control-flow graph in Graphviz DOT format. Calls are drawn
+     * dashed, taken branches are labelled T and fall-throughs after a
+     * conditional jump F.
+     */
+    public void writeDot(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("digraph cfg {");
+            writer.newLine();
+            writer.write("    node [shape=box, fontname=\"monospace\"];");
+            writer.newLine();
+            for (Block block : blocks) {
+                StringBuilder label = new StringBuilder();
+                for (Instruction insn : block.instructions) {
+                    label.append(String.format("%06X  %s\\l", insn.address, insn.toString().replace("\"", "\\\"")));
+                }
+                writer.write(String.format("    b%06X [label=\"%s\"%s];", block.start, label,
+                        block.start == entry ? ", penwidth=2" : ""));
+                writer.newLine();
+            }
+            for (Block block : blocks) {
+                for (Edge edge : block.successors) {
+                    String attributes;
+                    switch (edge.type) {
+                        case CALL:
+                            attributes = " [style=dashed]";
+                            break;
+                        case TAKEN:
+                            attributes = " [label=\"T\"]";
+                            break;
+                        case NOT_TAKEN:
+                            attributes = " [label=\"F\"]";
+                            break;
+                        default:
+                            attributes = "";
+                            break;
+                    }
+                    writer.write(String.format("    b%06X -> b%06X%s;", block.start, edge.target, attributes));
+                    writer.newLine();
+                }
+            }
+            writer.write("}");
+            writer.newLine();
+        }
+    }
+
+    private void buildBlocks(boolean[] leaders) {
+        Block current = null;
+        for (int address = start; address < end; address++) {
+            Instruction insn = instructions[address - start];
+            if (insn == null) {
+                if (kinds[address - start] == DATA) {
+                    current = null;
+                }
+                continue;
+            }
+            if (current == null || leaders[address - start]) {
+                if (current != null) {
+                    current.successors.add(new Edge(address, EdgeType.FALLTHROUGH));
+                }
+                current = new Block(address);
+                blocks.add(current);
+                blockStarts[address - start] = current;
+            }
+            current.instructions.add(insn);
+            current.end = address + insn.length;
+            if (insn.endsBlock()) {
+                addSuccessors(current, insn);
+                current = null;
+            }
+        }
+    }
+
+    private void addSuccessors(Block block, Instruction insn) {
+        int next = insn.address + insn.length;
+        boolean knownTarget = insn.target >= 0 && instructionAt(insn.target) != null;
+        if (insn.isCall()) {
+            if (knownTarget) {
+                block.successors.add(new Edge(insn.target, EdgeType.CALL));
+            }
+            if (instructionAt(next) != null) {
+                block.successors.add(new Edge(next, EdgeType.FALLTHROUGH));
+            }
+        } else if (insn.isConditional()) {
+            if (knownTarget) {
+                block.successors.add(new Edge(insn.target, EdgeType.TAKEN));
+            }
+            if (instructionAt(next) != null) {
+                block.successors.add(new Edge(next, EdgeType.NOT_TAKEN));
+            }
+        } else if (knownTarget) {
+            block.successors.add(new Edge(insn.target, EdgeType.JUMP));
+        }
+    }
+
+    /**
+     * Decodes the instruction at {@code address}, or returns {@code null}
+     * when the bytes are not an instruction the machine would execute.
+     */
+    private Instruction decode(int address) {
+        int first = machine.getByte(address);
+        int second = address + 1 < Machine.MEMORY_SIZE ? machine.getByte(address + 1) : 0;
+        if (!Machine.isFormat1(first) && !Machine.isFormat2(first) && !Machine.isFormat34(first & 0xFC)) {
+            return null;
+        }
+        int length = Machine.instructionLength(first, second);
+        if (address + length > end) {
+            return null;
+        }
+        if (length <= 2) {
+            return new Instruction(address, length, first & 0xFF, 0, 0, length == 2 ? second : 0, -1);
+        }
+        int opcode = first & 0xFC;
+        int ni = first & 0x03;
+        if (ni == 0) {
+            return null;
+        }
+        int xbpe = (second >> 4) & 0x0F;
+        int operand = (second & 0x0F) << 8 | machine.getByte(address + 2);
+        if (length == 4) {
+            operand = operand << 8 | machine.getByte(address + 3);
+        }
+        int target = -1;
+        if (isJump(opcode)) {
+            if (ni == 1) {
+                return null;
+            }
+            target = staticTarget(address + length, ni, xbpe, operand, length == 4);
+        }
+        return new Instruction(address, length, opcode, ni, xbpe, operand, target);
+    }
+
+    /**
+     * Jump target known without running the program: direct, extended or
+     * PC-relative and neither indexed nor indirect.
+     */
+    private static int staticTarget(int next, int ni, int xbpe, int operand, boolean extended) {
+        if (ni != 3 || (xbpe & 0x08) != 0) {
+            return -1;
+        }
+        if (extended) {
+            return operand & Machine.MAX_ADDRESS;
+        }
+        if ((xbpe & 0x02) != 0) {
+            return (next + signExtend12(operand)) & Machine.MAX_ADDRESS;
+        }
+        if ((xbpe & 0x04) != 0) {
+            return -1;
+        }
+        return operand;
+    }
+
+    private static boolean isJump(int opcode) {
+        switch (opcode) {
+            case Opcode.J:
+            case Opcode.JEQ:
+            case Opcode.JGT:
+            case Opcode.JLT:
+            case Opcode.JSUB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int signExtend12(int value) {
+        return (value & 0x800) != 0 ? (value & 0xFFF) - 0x1000 : value & 0xFFF;
+    }
+
+    /**
+     * Kind of a control-flow edge.
+     */
+    public enum EdgeType {
+        FALLTHROUGH, JUMP, TAKEN, NOT_TAKEN, CALL
+    }
+
+    /**
+     * Control-flow edge to the block starting at {@code target}.
+     */
+    public static final class Edge {
+        private final int target;
+        private final EdgeType type;
+
+        Edge(int target, EdgeType type) {
+            this.target = target;
+            this.type = type;
+        }
+
+        public int getTarget() {
+            return target;
+        }
+
+        public EdgeType getType() {
+            return type;
+        }
+    }
+
+    /**
+     * Straight-line run of instructions with a single entry at the top.
+     */
+    public static final class Block {
+        private final int start;
+        private int end;
+        private final List<Instruction> instructions = new ArrayList<>();
+        private final List<Edge> successors = new ArrayList<>();
+
+        Block(int start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * Address just past the last instruction.
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        public List<Instruction> getInstructions() {
+            return Collections.unmodifiableList(instructions);
+        }
+
+        public List<Edge> getSuccessors() {
+            return Collections.unmodifiableList(successors);
+        }
+    }
+
+    /**
+     * One decoded instruction. {@code operand} is the raw operand field:
+     * the register byte for format 2, the 12 or 20 bit displacement or
+     * address for formats 3 and 4.
+     */
+    public static final class Instruction {
+        private final int address;
+        private final int length;
+        private final int opcode;
+        private final int ni;
+        private final int xbpe;
+        private final int operand;
+        private final int target;
+
+        Instruction(int address, int length, int opcode, int ni, int xbpe, int operand, int target) {
+            this.address = address;
+            this.length = length;
+            this.opcode = opcode;
+            this.ni = ni;
+            this.xbpe = xbpe;
+            this.operand = operand;
+            this.target = target;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public int getNi() {
+            return ni;
+        }
+
+        public int getXbpe() {
+            return xbpe;
+        }
+
+        public int getOperand() {
+            return operand;
+        }
+
+        /**
+         * Statically known jump or call target, or -1.
+         */
+        public int getTarget() {
+            return target;
+        }
+
+        public boolean isCall() {
+            return opcode == Opcode.JSUB;
+        }
+
+        public boolean isConditional() {
+            return length >= 3 && (opcode == Opcode.JEQ || opcode == Opcode.JGT || opcode == Opcode.JLT);
+        }
+
+        /**
+         * False for J and RSUB, after which execution never continues with
+         * the next instruction.
+         */
+        public boolean fallsThrough() {
+            return length < 3 || (opcode != Opcode.J && opcode != Opcode.RSUB);
+        }
+
+        boolean endsBlock() {
+            return length >= 3 && (isJump(opcode) || opcode == Opcode.RSUB);
+        }
+
+        @Override
+        public String toString() {
+            String mnemonic = Machine.opcodeToMnemonic(opcode);
+            if (length == 1) {
+                return mnemonic;
+            }
+            if (length == 2) {
+                int r1 = (operand >> 4) & 0x0F;
+                int r2 = operand & 0x0F;
+                switch (opcode) {
+                    case Opcode.CLEAR:
+                    case Opcode.TIXR:
+                        return mnemonic + " " + register(r1);
+                    case Opcode.SHIFTL:
+                    case Opcode.SHIFTR:
+                        return String.format("%s %s,%d", mnemonic, register(r1), r2);
+                    case Opcode.SVC:
+                        return mnemonic + " " + r1;
+                    default:
+                        return String.format("%s %s,%s", mnemonic, register(r1), register(r2));
+                }
+            }
+            if (opcode == Opcode.RSUB) {
+                return mnemonic;
+            }
+            boolean extended = length == 4;
+            StringBuilder sb = new StringBuilder();
+            if (extended) {
+                sb.append('+');
+            }
+            sb.append(mnemonic).append(' ');
+            if (ni == 1) {
+                sb.append('#');
+            } else if (ni == 2) {
+                sb.append('@');
+            }
+            if (extended) {
+                sb.append(String.format("%05X", operand));
+            } else if ((xbpe & 0x02) != 0) {
+                sb.append(String.format("%06X", (address + length + signExtend12(operand)) & Machine.MAX_ADDRESS));
+            } else if ((xbpe & 0x04) != 0) {
+                sb.append(String.format("B+%03X", operand));
+            } else if (ni == 1) {
+                sb.append(operand);
+            } else {
+                sb.append(String.format("%03X", operand));
+            }
+            if ((xbpe & 0x08) != 0) {
+                sb.append(",X");
+            }
+            return sb.toString();
+        }
+
+        private static String register(int code) {
+            return code < REGISTER_NAMES.length ? REGISTER_NAMES[code] : "R" + code;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
- * Device backed by a file on disk via RandomAccessFile.
+ * Device backed by a file on disk via RandomAccessFile. Copies made for
+ * forks work on the contents in memory and never write the file.
  */
 public class FileDevice extends Device {
     private final String path;
@@ -13,6 +16,23 @@ public class FileDevice extends Device {
         this.path = path;
     }
 
+    /**
+     * Copy for a fork that continues from the current position and keeps
+     * its writes in memory, so that forks neither change the file nor see
+     * each other's output, and hold no file handle. The file is read when
+     * the fork first uses the device, which most forks never do.
+     */
+    @Override
+    public Device copy() {
+        long position;
+        try {
+            position = file == null ? 0 : file.getFilePointer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Copy(path, (int) Math.min(position, Integer.MAX_VALUE - 1));
+    }
+
     @Override
     public byte read() {
         RandomAccessFile raf = ensureFile();
@@ -52,4 +72,69 @@ public class FileDevice extends Device {
         }
         return file;
     }
+
+    /**
+     * File contents of a fork, read from {@code path} on first use. Copies
+     * share the array until one of them writes.
+     */
+    private static final class Copy extends Device {
+        private final String path;
+        private byte[] data;
+        private int length;
+        private int position;
+        private boolean shared;
+
+        Copy(String path, int position) {
+            this.path = path;
+            this.position = position;
+        }
+
+        @Override
+        public Device copy() {
+            Copy copy = new Copy(path, position);
+            if (data != null) {
+                shared = true;
+                copy.data = data;
+                copy.length = length;
+                copy.shared = true;
+            }
+            return copy;
+        }
+
+        @Override
+        public byte read() {
+            load();
+            return position < length ? data[position++] : 0;
+        }
+
+        @Override
+        public void write(byte value) {
+            load();
+            if (shared || position >= data.length) {
+                int capacity = position < data.length ? data.length : Math.max(position + 1, data.length * 2);
+                data = java.util.Arrays.copyOf(data, capacity);
+                shared = false;
+            }
+            data[position++] = value;
+            length = Math.max(length, position);
+        }
+
+        private void load() {
+            if (data != null) {
+                return;
+            }
+            try {
+                Path source = Path.of(path);
+                data = Files.exists(source) ? Files.readAllBytes(source) : new byte[0];
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            length = data.length;
+        }
+
+        @Override
+        public boolean test() {
+            return true;
+        }
+    }
 }
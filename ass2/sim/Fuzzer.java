@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coverage-guided fuzzer for guest programs that read an input device.
+ * The program is snapshotted once as a fork; each worker thread keeps a
+ * fork of that snapshot and {@link Machine#restore(Machine) restores} it
+ * before every case, which costs one pass over the page table and a page
+ * per page the previous case wrote. A case mutates an input from the
+ * corpus, feeds it through the input device and runs until the program
+ * halts (jumps to itself), faults or runs out of steps.
+ *
+ * <p>Coverage is counted per jump edge, taken or not, in hit-count
+ * buckets as AFL does; an input reaching a new edge or bucket joins the
+ * corpus. Faults (invalid opcode, invalid addressing, division by zero,
+ * unimplemented instruction) are kept once per message and instruction
+ * address with the first input that caused them. Every other device is a
+ * sink reading zeros, so cases neither print nor touch files.
+ */
+public final class Fuzzer {
+    public static final int MAP_SIZE = 1 << 14;
+
+    private static final byte[] INTERESTING = {
+        0, 1, 0x7F, (byte) 0x80, (byte) 0xFF, '0', '9', '-', '+', ' ', '\n', 'A', 'z'
+    };
+    // Hit counts 1, 2, 3, 4-7, 8-15, 16-31, 32-127 and 128-255 map to one bit each.
+    private static final byte[] BUCKETS = new byte[256];
+
+    static {
+        for (int count = 1; count < 256; count++) {
+            int bit = count <= 3 ? count - 1
+                    : count <= 7 ? 3
+                    : count <= 15 ? 4
+                    : count <= 31 ? 5
+                    : count <= 127 ? 6 : 7;
+            BUCKETS[count] = (byte) (1 << bit);
+        }
+    }
+
+    private final Machine base;
+    private final int device;
+    private final int maxSteps;
+    private final int maxLength;
+    private final List<byte[]> corpus = new CopyOnWriteArrayList<>();
+    // Bucket bits not yet seen by any worker; guarded by this.
+    private final byte[] virgin = new byte[MAP_SIZE];
+    private final Map<String, Crash> crashes = new LinkedHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong instructions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * Snapshots {@code program} as it is now: the fuzzer runs it from its
+     * current registers and memory, reading input from device
+     * {@code device}, for at most {@code maxSteps} instructions a case,
+     * with inputs of at most {@code maxLength} bytes.
+     */
+    public Fuzzer(Machine program, int device, int maxSteps, int maxLength) {
+        if (device < 0 || device >= Machine.DEVICE_COUNT) {
+            throw new IllegalArgumentException("Device number out of range.");
+        }
+        if (maxSteps <= 0 || maxLength <= 0) {
+            throw new IllegalArgumentException("Step and length limits must be positive.");
+        }
+        this.device = device;
+        this.maxSteps = maxSteps;
+        this.maxLength = maxLength;
+        base = program.fork();
+        Device sink = new Device();
+        for (int i = 0; i < Machine.DEVICE_COUNT; i++) {
+            base.setDevice(i, sink);
+        }
+        Arrays.fill(virgin, (byte) -1);
+    }
+
+    /**
+     * Adds an input to start mutating from, cut to the length limit.
+     */
+    public void addSeed(byte[] input) {
+        corpus.add(Arrays.copyOf(input, Math.min(input.length, maxLength)));
+    }
+
+    /**
+     * Fuzzes on {@code threads} threads until {@code nanos} have passed or
+     * {@link #stop()} is called. Seeds are run first so that their
+     * coverage counts; without seeds the corpus starts with an empty input.
+     */
+    public void run(int threads, long nanos) throws InterruptedException {
+        if (corpus.isEmpty()) {
+            corpus.add(new byte[0]);
+        }
+        stopped = false;
+        long deadline = System.nanoTime() + nanos;
+        Worker seeds = new Worker(0);
+        for (byte[] seed : corpus) {
+            seeds.execute(seed);
+        }
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Worker worker = i == 0 ? seeds : new Worker(i);
+            workers[i] = new Thread(() -> worker.fuzz(deadline), "sicxe-fuzz-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } finally {
+            stopped = true;
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getInstructions() {
+        return instructions.get();
+    }
+
+    /**
+     * Cases that ran out of steps without halting or faulting.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public List<byte[]> getCorpus() {
+        return new ArrayList<>(corpus);
+    }
+
+    public synchronized List<Crash> getCrashes() {
+        return new ArrayList<>(crashes.values());
+    }
+
+    /**
+     * Coverage map slots hit by some case.
+     */
+    public synchronized int getCoveredEdges() {
+        int count = 0;
+        for (byte bits : virgin) {
+            if (bits != -1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Merges the bucket bits of {@code trace} missing from
+     * {@code seen} into it and returns whether there were any.
+     */
+    private static boolean merge(byte[] trace, byte[] seen) {
+        boolean fresh = false;
+        for (int i = 0; i < trace.length; i++) {
+            if (trace[i] != 0) {
+                byte bucket = BUCKETS[trace[i] & 0xFF];
+                if ((seen[i] & bucket) != 0) {
+                    seen[i] &= (byte) ~bucket;
+                    fresh = true;
+                }
+            }
+        }
+        return fresh;
+    }
+
+    private synchronized boolean mergeGlobal(byte[] trace) {
+        return merge(trace, virgin);
+    }
+
+    private synchronized void recordCrash(String fault, int address, byte[] input) {
+        String key = String.format("%06X %s", address, fault);
+        Crash crash = crashes.get(key);
+        if (crash == null) {
+            crashes.put(key, new Crash(fault, address, input));
+        } else {
+            crash.count++;
+        }
+    }
+
+    /**
+     * A fault found by the fuzzer and the first input that caused it.
+     */
+    public static final class Crash {
+        private final String fault;
+        private final int address;
+        private final byte[] input;
+        private volatile long count = 1;
+
+        Crash(String fault, int address, byte[] input) {
+            this.fault = fault;
+            this.address = address;
+            this.input = input;
+        }
+
+        public String getFault() {
+            return fault;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public byte[] getInput() {
+            return input.clone();
+        }
+
+        /**
+         * Cases that hit this fault.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private final class Worker {
+        private final Machine machine = base.fork();
+        private final byte[] trace = new byte[MAP_SIZE];
+        // Bucket bits this worker has not seen; checked before the shared map.
+        private final byte[] seen = new byte[MAP_SIZE];
+        private final SplittableRandom random;
+
+        Worker(int index) {
+            random = new SplittableRandom(System.nanoTime() ^ (long) index << 32);
+            machine.setEdgeCoverage(trace);
+            machine.setStopOnFault(true);
+            machine.setStopOnHalt(true);
+            Arrays.fill(seen, (byte) -1);
+        }
+
+        void fuzz(long deadline) {
+            while (!stopped) {
+                for (int i = 0; i < 64; i++) {
+                    execute(mutate(corpus.get(random.nextInt(corpus.size()))));
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return;
+                }
+            }
+        }
+
+        void execute(byte[] input) {
+            machine.restore(base);
+            machine.setDevice(device, new InputDevice(new java.io.ByteArrayInputStream(input)));
+            Arrays.fill(trace, (byte) 0);
+            long done = machine.run(maxSteps);
+            String fault = machine.getLastFault();
+            boolean halted = machine.isHalted();
+            executions.incrementAndGet();
+            instructions.addAndGet(done);
+            if (fault != null) {
+                recordCrash(fault, machine.getInstructionAddress(), input);
+                return;
+            }
+            if (!halted) {
+                timeouts.incrementAndGet();
+            }
+            if (merge(trace, seen) && mergeGlobal(trace)) {
+                corpus.add(input);
+            }
+        }
+
+        private byte[] mutate(byte[] parent) {
+            byte[] data = parent.clone();
+            int rounds = 1 << random.nextInt(4);
+            for (int round = 0; round < rounds; round++) {
+                data = mutateOnce(data);
+            }
+            return data;
+        }
+
+        private byte[] mutateOnce(byte[] data) {
+            int length = data.length;
+            int choice = random.nextInt(length == 0 ? 1 : 8);
+            int at = length == 0 ? 0 : random.nextInt(length);
+            switch (choice) {
+                case 0: {
+                    if (length >= maxLength) {
+                        return data;
+                    }
+                    at = random.nextInt(length + 1);
+                    byte[] grown = new byte[length + 1];
+                    System.arraycopy(data, 0, grown, 0, at);
+                    grown[at] = random.nextBoolean() ? (byte) random.nextInt(256) : INTERESTING[random.nextInt(INTERESTING.length)];
+                    System.arraycopy(data, at, grown, at + 1, length - at);
+                    return grown;
+                }
+                case 1:
+                    data[at] ^= (byte) (1 << random.nextInt(8));
+                    return data;
+                case 2:
+                    data[at] = (byte) random.nextInt(256);
+                    return data;
+                case 3:
+                    data[at] = INTERESTING[random.nextInt(INTERESTING.length)];
+                    return data;
+                case 4:
+                    data[at] += (byte) (random.nextInt(35) - 17);
+                    return data;
+                case 5: {
+                    byte[] shrunk = new byte[length - 1];
+                    System.arraycopy(data, 0, shrunk, 0, at);
+                    System.arraycopy(data, at + 1, shrunk, at, length - at - 1);
+                    return shrunk;
+                }
+                case 6: {
+                    int count = Math.min(1 + random.nextInt(Math.min(length, 16)), maxLength - length);
+                    int from = random.nextInt(length - count + 1);
+                    byte[] grown = new byte[length + count];
+                    System.arraycopy(data, 0, grown, 0, at);
+                    System.arraycopy(data, from, grown, at, count);
+                    System.arraycopy(data, at, grown, at + count, length - at);
+                    return grown;
+                }
+                default: {
+                    byte[] other = corpus.get(random.nextInt(corpus.size()));
+                    int from = random.nextInt(other.length + 1);
+                    byte[] spliced = Arrays.copyOf(data, Math.min(maxLength, at + other.length - from));
+                    System.arraycopy(other, from, spliced, at, spliced.length - at);
+                    return spliced;
+                }
+            }
+        }
+    }
+}
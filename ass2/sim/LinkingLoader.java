@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Linking loader for relocatable SIC/XE object files. Control sections are
+ * placed back to back from a chosen load address; the first pass builds the
+ * external symbol table from H and D records, the second pass copies text
+ * records and applies M records as they are read.
+ */
+public final class LinkingLoader {
+    private final Machine machine;
+    private final Map<String, Integer> symbols = new HashMap<>();
+    private final List<Section> sections = new ArrayList<>();
+    private byte[] scratch = new byte[0xFF];
+
+    public LinkingLoader(Machine machine) {
+        this.machine = machine;
+    }
+
+    public boolean loadFiles(List<Path> files, int loadAddress) throws IOException {
+        List<ByteBuffer> modules = new ArrayList<>();
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                modules.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        return load(modules, loadAddress);
+    }
+
+    public boolean load(List<ByteBuffer> modules, int loadAddress) {
+        symbols.clear();
+        sections.clear();
+        try {
+            int end = loadAddress;
+            for (ByteBuffer module : modules) {
+                end = defineSymbols(module.duplicate(), end);
+            }
+            int entry = -1;
+            for (Section section : sections) {
+                int sectionEntry = loadSection(section);
+                if (entry < 0) {
+                    entry = sectionEntry;
+                }
+            }
+            if (sections.isEmpty()) {
+                System.err.println("Missing header record in object file.");
+                return false;
+            }
+            if (entry < 0) {
+                entry = loadAddress;
+            }
+            machine.setLoadInfo(loadAddress, end - loadAddress);
+            machine.setPC(entry);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * External symbol table of the last load, keyed by symbol name.
+     */
+    public Map<String, Integer> getSymbols() {
+        return Collections.unmodifiableMap(symbols);
+    }
+
+    private int defineSymbols(ByteBuffer module, int address) {
+        ObjectRecordReader records = new ObjectRecordReader(module);
+        Section current = null;
+        int type;
+        while ((type = records.nextRecord()) >= 0) {
+            switch (type) {
+                case 'H': {
+                    String name = records.name(6);
+                    int start = records.hex(6, "header start address");
+                    int length = records.hex(6, "program length");
+                    if (!Machine.isValidRange(address, Math.max(length, 1))) {
+                        throw new IllegalArgumentException("Control section " + name + " does not fit in memory.");
+                    }
+                    current = new Section(module, records.recordStart(), address - start);
+                    sections.add(current);
+                    define(name, address);
+                    address += length;
+                    break;
+                }
+                case 'D':
+                    if (current == null) {
+                        throw new IllegalArgumentException("Define record encountered before header.");
+                    }
+                    while (records.hasMore()) {
+                        String name = records.name(6);
+                        define(name, current.relocation + records.hex(6, "external definition"));
+                    }
+                    break;
+                case 'E':
+                    current = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return address;
+    }
+
+    private void define(String name, int address) {
+        if (symbols.putIfAbsent(name, Machine.MAX_ADDRESS & address) != null) {
+            throw new IllegalArgumentException("Duplicate external symbol: " + name);
+        }
+    }
+
+    /**
+     * Loads one control section and returns its entry point, or -1 when its
+     * E record does not name one.
+     */
+    private int loadSection(Section section) {
+        ByteBuffer module = section.module.duplicate();
+        module.position(section.headerOffset);
+        ObjectRecordReader records = new ObjectRecordReader(module);
+        records.nextRecord(); // H record, already handled in the first pass
+        int type;
+        while ((type = records.nextRecord()) >= 0) {
+            switch (type) {
+                case 'T': {
+                    int address = section.relocation + records.hex(6, "text record start address");
+                    int byteCount = records.hex(2, "text record length");
+                    if (byteCount > scratch.length) {
+                        scratch = new byte[byteCount];
+                    }
+                    records.bytes(scratch, 0, byteCount);
+                    machine.writeBlock(address, scratch, 0, byteCount);
+                    break;
+                }
+                case 'R':
+                    while (records.hasMore()) {
+                        String name = records.name(6);
+                        if (!symbols.containsKey(name)) {
+                            throw new IllegalArgumentException("Undefined external symbol: " + name);
+                        }
+                    }
+                    break;
+                case 'M':
+                    modify(section, records);
+                    break;
+                case 'E':
+                    return records.hasMore() ? section.relocation + records.hex(6, "entry point") : -1;
+                case 'D':
+                case 'C':
+                    break;
+                case 'H':
+                    throw new IllegalArgumentException("Missing end record before: " + records.line());
+                default:
+                    throw new IllegalArgumentException("Unknown record type '" + (char) type + "': " + records.line());
+            }
+        }
+        return -1;
+    }
+
+    private void modify(Section section, ObjectRecordReader records) {
+        int address = section.relocation + records.hex(6, "modification address");
+        int halfBytes = records.hex(2, "modification length");
+        if (halfBytes <= 0 || halfBytes > 6) {
+            throw new IllegalArgumentException("Unsupported modification length: " + records.line());
+        }
+        int sign = records.sign();
+        int delta;
+        if (records.hasMore()) {
+            String name = records.name(6);
+            Integer value = symbols.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("Undefined external symbol: " + name);
+            }
+            delta = value;
+        } else {
+            delta = section.relocation;
+        }
+        if (sign == '-') {
+            delta = -delta;
+        }
+        int mask = (1 << (halfBytes * 4)) - 1;
+        int word = machine.getWord(address);
+        int field = (word + delta) & mask;
+        machine.setWord(address, (word & ~mask) | field);
+    }
+
+    private static final class Section {
+        final ByteBuffer module;
+        final int headerOffset;
+        final int relocation;
+
+        Section(ByteBuffer module, int headerOffset, int relocation) {
+            this.module = module;
+            this.headerOffset = headerOffset;
+            this.relocation = relocation;
+        }
+    }
+}
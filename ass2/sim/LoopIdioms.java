@@ -0,0 +1,492 @@
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Recognises a few classic guest loops and runs them as one bulk operation
+ * on the memory array. A loop is examined once, the first time its closing
+ * jump is taken backwards, and only these exact instruction sequences are
+ * accepted ({@code TIX lim} may also be {@code TIXR r}):
+ *
+ * <pre>
+ * copy        LDCH src,X / STCH dst,X / TIX lim / JLT loop
+ * fill        STCH dst,X / TIX lim / JLT loop
+ * fill words  STA dst,X / ADDR r,X / COMPR X,r / JLT loop    (r holding 3)
+ * search      LDCH buf,X / COMP #c / JEQ found / TIX lim / JLT loop
+ * </pre>
+ *
+ * <p>Whenever the PC reaches a recognised loop head, the machine asks for
+ * the remaining iterations to be done in bulk. They are, only if X starts
+ * below the limit, every address stays in memory without wrapping, the
+ * stores miss the loop's own code and limit word, and a copy does not
+ * overlap its source from above; otherwise the interpreter runs the loop.
+ * A, X, SW, PC and memory end up as the loop would leave them, and no more
+ * whole iterations are done than fit in the caller's instruction budget.
+ * Only the total instruction count of the performance counters advances.
+ */
+public final class LoopIdioms {
+    public static final String COPY = "copy";
+    public static final String FILL = "fill";
+    public static final String FILL_WORDS = "fill words";
+    public static final String SEARCH = "search";
+
+    private static final int CC_LESS = 0x00;
+    private static final int CC_EQUAL = 0x40;
+    private static final int CC_GREATER = 0x80;
+
+    private final Machine machine;
+    private final byte[] memory;
+    private final Map<Integer, Loop> loops = new HashMap<>();
+    private final BitSet heads = new BitSet(Machine.MEMORY_SIZE);
+    private final BitSet analysedHeads = new BitSet(Machine.MEMORY_SIZE);
+    private final BitSet analysedBytes = new BitSet(Machine.MEMORY_SIZE);
+    private final List<Loop> recognised = new CopyOnWriteArrayList<>();
+    private final CodeWriteListener listener;
+
+    LoopIdioms(Machine machine) {
+        this.machine = machine;
+        this.memory = machine.rawMemory();
+        listener = (start, end) -> {
+            int hit = analysedBytes.nextSetBit(start);
+            if (hit >= 0 && hit < end) {
+                forget();
+            }
+        };
+        machine.addCodeWriteListener(listener);
+    }
+
+    /**
+     * Called with the execution lock held when a jump at the end of
+     * {@code [head, end)} was taken back to {@code head}.
+     */
+    void noteLoop(int head, int end) {
+        if (analysedHeads.get(head)) {
+            return;
+        }
+        analysedHeads.set(head);
+        analysedBytes.set(head, end);
+        Loop loop = recognise(head, end);
+        if (loop != null) {
+            loops.put(head, loop);
+            heads.set(head);
+            recognised.add(loop);
+        }
+    }
+
+    boolean isHead(int pc) {
+        return heads.get(pc);
+    }
+
+    /**
+     * Runs the loop at the PC in bulk for at most {@code budget}
+     * instructions. Returns the instructions it stands for, or 0 when the
+     * interpreter has to run it.
+     */
+    int execute(int budget) {
+        Loop loop = loops.get(machine.getPC());
+        if (loop == null) {
+            return 0;
+        }
+        int x0 = toSigned24(machine.getX());
+        int limit = limitValue(loop);
+        if (limit == Integer.MIN_VALUE || x0 < 0 || x0 >= limit) {
+            return 0;
+        }
+        switch (loop.kind) {
+            case COPY:
+                return copy(loop, x0, limit, budget);
+            case FILL:
+                return fill(loop, x0, limit, budget);
+            case FILL_WORDS:
+                return fillWords(loop, x0, limit, budget);
+            default:
+                return search(loop, x0, limit, budget);
+        }
+    }
+
+    private int copy(Loop loop, int x0, int limit, int budget) {
+        int count = Math.min(limit - x0, budget / 4);
+        int source = base(loop.load) + x0;
+        int target = base(loop.store) + x0;
+        if (count == 0 || !inMemory(source, count) || !inMemory(target, count)
+                || (target > source && target < source + count) || hitsLoop(loop, target, count)) {
+            return 0;
+        }
+        int last = memory[source + count - 1] & 0xFF;
+        machine.writeBlock(target, memory, source, count);
+        machine.setA(machine.getA() & 0xFFFF00 | last);
+        finishCounted(loop, x0, limit, count);
+        return loop.replaced(count, 4 * count);
+    }
+
+    private int fill(Loop loop, int x0, int limit, int budget) {
+        int count = Math.min(limit - x0, budget / 3);
+        int target = base(loop.store) + x0;
+        if (count == 0 || !inMemory(target, count) || hitsLoop(loop, target, count)) {
+            return 0;
+        }
+        machine.fillBlock(target, count, machine.getA());
+        finishCounted(loop, x0, limit, count);
+        return loop.replaced(count, 3 * count);
+    }
+
+    private int fillWords(Loop loop, int x0, int limit, int budget) {
+        if (toSigned24(machine.getReg(loop.strideRegister)) != 3) {
+            return 0;
+        }
+        int iterations = (limit - x0 + 2) / 3;
+        int count = Math.min(iterations, budget / 4);
+        int target = base(loop.store) + x0;
+        int length = 3 * count;
+        if (count == 0 || !inMemory(target, length) || hitsLoop(loop, target, length)) {
+            return 0;
+        }
+        int value = machine.getA();
+        byte[] words = new byte[length];
+        for (int i = 0; i < length; i += 3) {
+            words[i] = (byte) (value >> 16);
+            words[i + 1] = (byte) (value >> 8);
+            words[i + 2] = (byte) value;
+        }
+        machine.writeBlock(target, words, 0, length);
+        int x = x0 + length;
+        machine.setX(x);
+        if (count == iterations) {
+            machine.setSW(x == limit ? CC_EQUAL : CC_GREATER);
+            machine.setPC(loop.end);
+        } else {
+            machine.setSW(CC_LESS);
+            machine.setPC(loop.head);
+        }
+        return loop.replaced(count, 4 * count);
+    }
+
+    private int search(Loop loop, int x0, int limit, int budget) {
+        int count = Math.min(limit - x0, budget / 5);
+        int start = base(loop.load) + x0;
+        if (count == 0 || !inMemory(start, count)) {
+            return 0;
+        }
+        int high = machine.getA() & 0xFFFF00;
+        int wanted = loop.searchValue & 0xFFFFFF;
+        if ((wanted & 0xFFFF00) == high) {
+            byte value = (byte) wanted;
+            for (int i = 0; i < count; i++) {
+                if (memory[start + i] == value) {
+                    machine.setA(wanted);
+                    machine.setX(x0 + i);
+                    machine.setSW(CC_EQUAL);
+                    machine.setPC(loop.found);
+                    return loop.replaced(i + 1, 5 * i + 3);
+                }
+            }
+        }
+        machine.setA(high | memory[start + count - 1] & 0xFF);
+        finishCounted(loop, x0, limit, count);
+        return loop.replaced(count, 5 * count);
+    }
+
+    /**
+     * Leaves the state of a loop counted by TIX or TIXR after {@code count}
+     * iterations: at the exit when X reached the limit, else at the head.
+     */
+    private void finishCounted(Loop loop, int x0, int limit, int count) {
+        int x = x0 + count;
+        machine.setX(x);
+        if (x == limit) {
+            machine.setSW(CC_EQUAL);
+            machine.setPC(loop.end);
+        } else {
+            machine.setSW(CC_LESS);
+            machine.setPC(loop.head);
+        }
+    }
+
+    /**
+     * Signed limit X is compared with, or {@link Integer#MIN_VALUE} when
+     * it cannot be read.
+     */
+    private int limitValue(Loop loop) {
+        Insn insn = loop.limit;
+        if (insn.length == 2) {
+            return toSigned24(machine.getReg(insn.opcode == Opcode.TIXR ? insn.r1 : insn.r2));
+        }
+        if (insn.ni == 1) {
+            return insn.extended || insn.baseRelative || insn.pcRelative
+                    ? base(insn)
+                    : signExtend(insn.operand, 12);
+        }
+        int address = base(insn);
+        if (!inMemory(address, 3)) {
+            return Integer.MIN_VALUE;
+        }
+        return toSigned24(machine.getWord(address));
+    }
+
+    private boolean hitsLoop(Loop loop, int start, int length) {
+        int end = start + length;
+        if (start < loop.end && loop.head < end) {
+            return true;
+        }
+        if (loop.limit.length == 2 || loop.limit.ni != 3) {
+            return false;
+        }
+        int word = base(loop.limit);
+        return start < word + 3 && word < end;
+    }
+
+    /**
+     * Target address of a format 3/4 operand before indexing.
+     */
+    private int base(Insn insn) {
+        if (insn.extended) {
+            return insn.operand & 0xFFFFF;
+        }
+        int disp = signExtend(insn.operand, 12);
+        if (insn.pcRelative) {
+            return (insn.address + 3 + disp) & (Machine.MEMORY_SIZE - 1);
+        }
+        if (insn.baseRelative) {
+            return (machine.getB() + disp) & (Machine.MEMORY_SIZE - 1);
+        }
+        return insn.operand & 0xFFF;
+    }
+
+    private static boolean inMemory(int address, int length) {
+        return address >= 0 && address + length <= Machine.MEMORY_SIZE;
+    }
+
+    private Loop recognise(int head, int end) {
+        Insn[] body = new Insn[5];
+        int count = 0;
+        int address = head;
+        while (address < end) {
+            if (count == body.length) {
+                return null;
+            }
+            Insn insn = Insn.decode(memory, address);
+            if (insn == null) {
+                return null;
+            }
+            body[count++] = insn;
+            address += insn.length;
+        }
+        if (address != end || count < 3 || !isJump(body[count - 1], Opcode.JLT)
+                || jumpTarget(body[count - 1]) != head) {
+            return null;
+        }
+        if (count == 3 && isIndexed(body[0], Opcode.STCH) && isCountedLimit(body[1])) {
+            return new Loop(FILL, head, end, "STCH/" + mnemonic(body[1]) + "/JLT", null, body[0], body[1]);
+        }
+        if (count == 4 && isIndexed(body[0], Opcode.LDCH) && isIndexed(body[1], Opcode.STCH)
+                && isCountedLimit(body[2])) {
+            return new Loop(COPY, head, end, "LDCH/STCH/" + mnemonic(body[2]) + "/JLT", body[0], body[1], body[2]);
+        }
+        if (count == 4 && isIndexed(body[0], Opcode.STA)
+                && body[1].is(Opcode.ADDR) && body[1].r2 == 1 && isLimitRegister(body[1].r1)
+                && body[2].is(Opcode.COMPR) && body[2].r1 == 1 && isLimitRegister(body[2].r2)) {
+            Loop loop = new Loop(FILL_WORDS, head, end, "STA/ADDR/COMPR/JLT", null, body[0], body[2]);
+            loop.strideRegister = body[1].r1;
+            return loop;
+        }
+        if (count == 5 && isIndexed(body[0], Opcode.LDCH) && isConstant(body[1], Opcode.COMP)
+                && isJump(body[2], Opcode.JEQ) && isCountedLimit(body[3])) {
+            Loop loop = new Loop(SEARCH, head, end, "LDCH/COMP/JEQ/" + mnemonic(body[3]) + "/JLT", body[0], null, body[3]);
+            loop.searchValue = body[1].extended ? body[1].operand : signExtend(body[1].operand, 12);
+            loop.found = jumpTarget(body[2]);
+            return loop;
+        }
+        return null;
+    }
+
+    private static boolean isIndexed(Insn insn, int opcode) {
+        return insn.length >= 3 && insn.opcode == opcode && insn.ni == 3 && insn.indexed;
+    }
+
+    private static boolean isConstant(Insn insn, int opcode) {
+        return insn.length >= 3 && insn.opcode == opcode && insn.ni == 1 && !insn.indexed
+                && !insn.baseRelative && !insn.pcRelative;
+    }
+
+    private static boolean isJump(Insn insn, int opcode) {
+        return insn.length >= 3 && insn.opcode == opcode && insn.ni == 3 && !insn.indexed && !insn.baseRelative;
+    }
+
+    private static boolean isCountedLimit(Insn insn) {
+        if (insn.is(Opcode.TIXR)) {
+            return isLimitRegister(insn.r1);
+        }
+        return insn.length >= 3 && insn.opcode == Opcode.TIX && (insn.ni == 3 || insn.ni == 1) && !insn.indexed;
+    }
+
+    /**
+     * Registers S, T, L and B, which none of the loops change.
+     */
+    private static boolean isLimitRegister(int reg) {
+        return reg >= 2 && reg <= 5;
+    }
+
+    private static int jumpTarget(Insn insn) {
+        if (insn.extended) {
+            return insn.operand & 0xFFFFF;
+        }
+        if (insn.pcRelative) {
+            return (insn.address + 3 + signExtend(insn.operand, 12)) & (Machine.MEMORY_SIZE - 1);
+        }
+        return insn.operand & 0xFFF;
+    }
+
+    private static String mnemonic(Insn insn) {
+        return insn.is(Opcode.TIXR) ? "TIXR" : "TIX";
+    }
+
+    private void forget() {
+        loops.clear();
+        heads.clear();
+        analysedHeads.clear();
+        analysedBytes.clear();
+    }
+
+    void close() {
+        machine.removeCodeWriteListener(listener);
+    }
+
+    /**
+     * Every loop recognised since idioms were enabled, including loops
+     * later forgotten because their code was overwritten.
+     */
+    public List<Loop> getLoops() {
+        return Collections.unmodifiableList(recognised);
+    }
+
+    private static int signExtend(int value, int bits) {
+        int shift = 32 - bits;
+        return (value << shift) >> shift;
+    }
+
+    private static int toSigned24(int value) {
+        return (value << 8) >> 8;
+    }
+
+    /**
+     * A recognised loop and how often it was replaced.
+     */
+    public static final class Loop {
+        private final String kind;
+        private final int head;
+        private final int end;
+        private final String pattern;
+        private final Insn load;
+        private final Insn store;
+        private final Insn limit;
+        private int strideRegister;
+        private int searchValue;
+        private int found;
+        private long replacements;
+        private long iterations;
+        private long instructions;
+
+        private Loop(String kind, int head, int end, String pattern, Insn load, Insn store, Insn limit) {
+            this.kind = kind;
+            this.head = head;
+            this.end = end;
+            this.pattern = pattern;
+            this.load = load;
+            this.store = store;
+            this.limit = limit;
+        }
+
+        private int replaced(int iterations, int instructions) {
+            this.replacements++;
+            this.iterations += iterations;
+            this.instructions += instructions;
+            return instructions;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public int getHead() {
+            return head;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * Mnemonics of the loop body, such as {@code LDCH/STCH/TIX/JLT}.
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        public long getReplacements() {
+            return replacements;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+    }
+
+    /**
+     * One decoded instruction of a candidate loop.
+     */
+    private static final class Insn {
+        int address;
+        int length;
+        int opcode;
+        int ni;
+        boolean indexed;
+        boolean baseRelative;
+        boolean pcRelative;
+        boolean extended;
+        int operand;
+        int r1;
+        int r2;
+
+        boolean is(int opcode) {
+            return this.opcode == opcode && (length == 2) == Machine.isFormat2(opcode);
+        }
+
+        static Insn decode(byte[] memory, int address) {
+            if (address + 4 > memory.length) {
+                return null;
+            }
+            int first = memory[address] & 0xFF;
+            int second = memory[address + 1] & 0xFF;
+            Insn insn = new Insn();
+            insn.address = address;
+            insn.length = Machine.instructionLength(first, second);
+            if (insn.length == 1) {
+                return null;
+            }
+            if (insn.length == 2) {
+                insn.opcode = first;
+                insn.r1 = second >> 4;
+                insn.r2 = second & 0x0F;
+                return insn;
+            }
+            int third = memory[address + 2] & 0xFF;
+            insn.opcode = first & 0xFC;
+            insn.ni = first & 0x03;
+            insn.indexed = (second & 0x80) != 0;
+            insn.baseRelative = (second & 0x40) != 0;
+            insn.pcRelative = (second & 0x20) != 0;
+            insn.extended = insn.length == 4;
+            insn.operand = insn.extended
+                    ? (second & 0x0F) << 16 | third << 8 | (memory[address + 3] & 0xFF)
+                    : (second & 0x0F) << 8 | third;
+            return insn;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
 /**
  * Core SIC/XE machine simulator state. Manages registers, memory and devices.
@@ -14,9 +19,40 @@ public class Machine {
     public static final int MEMORY_SIZE = MAX_ADDRESS + 1;
     public static final int DEVICE_COUNT = 256;
 
-    private final byte[] memory = new byte[MEMORY_SIZE];
-    private final Device[] devices = new Device[DEVICE_COUNT];
-    private final Object executionLock = new Object();
+    /** Host service: copy T bytes from the address in X to the address in A. */
+    public static final int SVC_MEMCPY = 0;
+    /** Host service: fill T bytes at the address in A with the low byte of X. */
+    public static final int SVC_MEMSET = 1;
+    /** Host service: write A as a signed decimal number to device S. */
+    public static final int SVC_PRINT_DECIMAL = 2;
+    /** Host service: write A as six hexadecimal digits to device S. */
+    public static final int SVC_PRINT_HEX = 3;
+    /** Host service: read a line from device S into T bytes at X; A receives its length. */
+    public static final int SVC_READ_LINE = 4;
+    /** Host service: read T bytes from device S to the address in X; A receives the count. */
+    public static final int SVC_READ_BLOCK = 5;
+    /** Host service: write T bytes at the address in X to device S; A receives the count. */
+    public static final int SVC_WRITE_BLOCK = 6;
+    /** SVC service that loads the CPU number into A. */
+    public static final int SVC_CPU_ID = 13;
+    /** SVC service that orders all earlier memory accesses before later ones. */
+    public static final int SVC_FENCE = 14;
+    /** SVC service that atomically swaps A with the word addressed by X. */
+    public static final int SVC_EXCHANGE = 15;
+
+    // Exactly one of memory (the dense layout) and paged is set.
+    private final byte[] memory;
+    private final PagedMemory paged;
+    private final Device[] devices;
+    // Sparse machines create file devices on first use; see getDevice.
+    private final boolean lazyDevices;
+    private java.util.BitSet removedDevices;
+    private final MemoryPages pages;
+    private final Object busLock;
+    private final int cpuId;
+    private boolean sharedBus;
+    private boolean hostServices;
+    private final StampedLock executionLock = new StampedLock();
 
     private int regA;
     private int regX;
@@ -27,6 +63,11 @@ public class Machine {
     private double regF;
     private int regPC;
     private int regSW;
+    // Operands of the last comparison while its condition code has not
+    // been stored in regSW; see setConditionLazily.
+    private boolean conditionPending;
+    private int conditionLeft;
+    private int conditionRight;
     private int lastOpcode;
     private int lastNi;
     private int lastXbpe;
@@ -35,20 +76,324 @@ public class Machine {
     private int lastInstructionLength;
     private int lastLoadStart;
     private int lastLoadLength;
+    private int instructionAddress;
+    private Profiler profiler;
+    private LoopIdioms loopIdioms;
+    private TraceRecorder tracer;
+    private int lastEffectiveAddress;
+    private final Breakpoints breakpointTable = new Breakpoints();
+    private Breakpoints breakpoints;
+    private String lastBreak;
+    private boolean resuming;
+    private final java.util.List<Consumer<String>> breakListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private final java.util.List<CodeWriteListener> codeWriteListeners;
+    private boolean executing;
+    private int inputWaitDevice = -1;
+    private final PerfCounters perf = new PerfCounters();
+    // Instructions counted by perf before its last reset.
+    private long retiredBeforeReset;
+    // Dense machines: pages shared with forks, and the page versions they
+    // were copied at.
+    private PagedMemory forkImage;
+    private long[] forkImageVersions;
+
+    // Fuzzing: hit counters of executed jump edges, and whether a fault
+    // stops execution instead of being printed. Forks, fuzz cases and
+    // batch lanes also stop at a J to itself.
+    private byte[] edgeHits;
+    private boolean stopOnFault;
+    private String lastFault;
+    private boolean stopOnHalt;
+    private boolean halted;
+
+    // Hosting: where messages go, the instructions still allowed, and the
+    // directory of file devices created on first use.
+    private PrintStream errors = System.err;
+    private long instructionsLeft = Long.MAX_VALUE;
+    private java.nio.file.Path deviceDirectory;
 
     private Timer timer;
     private volatile boolean running;
+    // Registers at the start of the batch now running, null between batches.
+    private volatile Registers batchRegisters;
     private int speedKHz = 1;
 
+    private static final String INSTRUCTION_LIMIT = "instruction limit reached";
     private static final long TIMER_PERIOD_MS = 1L;
+    // Inspection polls for the gap between two batches this long before
+    // queueing for the lock, and copies memory this many bytes at a time.
+    private static final long INSPECT_WAIT_NANOS = 2_000_000L;
+    private static final long INSPECT_POLL_NANOS = 20_000L;
+    private static final int INSPECT_CHUNK = 64 * 1024;
     private static final int CC_LESS = 0x00;
     private static final int CC_EQUAL = 0x40;
     private static final int CC_GREATER = 0x80;
 
     public Machine() {
+        memory = new byte[MEMORY_SIZE];
+        paged = null;
+        devices = new Device[DEVICE_COUNT];
+        lazyDevices = false;
+        pages = new MemoryPages(memory);
+        busLock = new Object();
+        codeWriteListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+        cpuId = 0;
         initialiseDevices();
     }
 
+    /**
+     * Creates CPU {@code cpuId} with its own registers and execution state
+     * on the memory and devices of {@code bus}.
+     */
+    Machine(Machine bus, int cpuId) {
+        if (bus.paged != null) {
+            throw new IllegalArgumentException("A paged machine (a fork or a sparse machine) cannot share its memory with other CPUs.");
+        }
+        memory = bus.memory;
+        paged = null;
+        devices = bus.devices;
+        lazyDevices = false;
+        pages = bus.pages;
+        pages.share();
+        busLock = bus.busLock;
+        codeWriteListeners = bus.codeWriteListeners;
+        this.cpuId = cpuId;
+        sharedBus = true;
+    }
+
+    /**
+     * Creates a sparse machine: memory pages are taken from {@code pool}
+     * on first write and untouched pages read as zero, file devices are
+     * created when first used, and {@link #clearMemory()} only drops the
+     * pages. Meant for hosting many small programs; a single large one
+     * runs faster on the dense layout of {@link #Machine()}.
+     */
+    public Machine(PagePool pool) {
+        this(new PagedMemory(pool), new Device[DEVICE_COUNT], true);
+        devices[0] = new InputDevice(System.in);
+        devices[1] = new OutputDevice(System.out);
+        devices[2] = new OutputDevice(System.err);
+    }
+
+    private Machine(PagedMemory paged, Device[] devices, boolean lazyDevices) {
+        memory = null;
+        this.paged = paged;
+        this.devices = devices;
+        this.lazyDevices = lazyDevices;
+        pages = new MemoryPages(paged);
+        busLock = new Object();
+        codeWriteListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+        cpuId = 0;
+    }
+
+    /**
+     * Branches this machine: the fork starts with the same registers and
+     * memory and runs independently, on any thread. Memory pages are
+     * shared copy-on-write, so forking copies a page table and each side
+     * pays for a page only when it first writes to it. Devices are
+     * duplicated with {@link Device#copy()}. Breakpoints, profiling,
+     * tracing, listeners and performance counters start empty.
+     *
+     * <p>A dense machine keeps an image of its pages for its forks, taken
+     * on the first fork and brought up to date from the page versions on
+     * later ones; only its pages written since the last fork are copied.
+     */
+    public Machine fork() {
+        long stamp = executionLock.writeLock();
+        try {
+            PagedMemory shared;
+            if (paged != null) {
+                shared = paged.fork();
+            } else {
+                if (forkImage == null) {
+                    forkImage = new PagedMemory();
+                    forkImageVersions = new long[MemoryPages.PAGE_COUNT];
+                    java.util.Arrays.fill(forkImageVersions, -1L);
+                }
+                int perPage = PagedMemory.PAGE_SIZE / MemoryPages.PAGE_SIZE;
+                for (int page = 0; page < PagedMemory.PAGE_COUNT; page++) {
+                    boolean changed = false;
+                    for (int small = page * perPage; small < (page + 1) * perPage; small++) {
+                        long version = pages.version(small);
+                        if (forkImageVersions[small] != version) {
+                            forkImageVersions[small] = version;
+                            changed = true;
+                        }
+                    }
+                    if (changed) {
+                        forkImage.copyPage(page, memory, page << PagedMemory.PAGE_BITS);
+                    }
+                }
+                shared = forkImage.fork();
+            }
+            Device[] copies = new Device[DEVICE_COUNT];
+            for (int i = 0; i < DEVICE_COUNT; i++) {
+                copies[i] = devices[i] == null ? null : devices[i].copy();
+            }
+            Machine fork = new Machine(shared, copies, lazyDevices);
+            if (removedDevices != null) {
+                fork.removedDevices = (java.util.BitSet) removedDevices.clone();
+            }
+            fork.copyStateFrom(this);
+            return fork;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts this fork back into the state of {@code base}, the machine it
+     * was forked from, without allocating: pages written since go back to
+     * the pool, registers and devices are copied as by {@link #fork()}.
+     * Breakpoints, listeners, coverage and counters stay. {@code base}
+     * must not run or change while forks restore from it, but any number
+     * of them can do so at once.
+     */
+    void restore(Machine base) {
+        if (paged == null || base.paged == null) {
+            throw new IllegalStateException("Only a fork can be restored from a forked machine.");
+        }
+        long stamp = executionLock.writeLock();
+        long baseStamp = base.executionLock.readLock();
+        try {
+            paged.resetTo(base.paged, page -> {
+                if (pages.touch(page << PagedMemory.PAGE_BITS, PagedMemory.PAGE_SIZE)) {
+                    codeWritten(page << PagedMemory.PAGE_BITS, PagedMemory.PAGE_SIZE);
+                }
+            });
+            for (int i = 0; i < DEVICE_COUNT; i++) {
+                devices[i] = base.devices[i] == null ? null : base.devices[i].copy();
+            }
+            removedDevices = base.removedDevices == null ? null : (java.util.BitSet) base.removedDevices.clone();
+            copyStateFrom(base);
+            lastBreak = null;
+            lastFault = null;
+            halted = false;
+            inputWaitDevice = -1;
+        } finally {
+            base.executionLock.unlockRead(baseStamp);
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    private void copyStateFrom(Machine source) {
+        regA = source.regA;
+        regX = source.regX;
+        regL = source.regL;
+        regB = source.regB;
+        regS = source.regS;
+        regT = source.regT;
+        regF = source.regF;
+        regPC = source.regPC;
+        regSW = source.regSW;
+        conditionPending = source.conditionPending;
+        conditionLeft = source.conditionLeft;
+        conditionRight = source.conditionRight;
+        lastLoadStart = source.lastLoadStart;
+        lastLoadLength = source.lastLoadLength;
+        hostServices = source.hostServices;
+        speedKHz = source.speedKHz;
+    }
+
+    /**
+     * Whether memory is held as copy-on-write pages, as in a fork, rather
+     * than one array.
+     */
+    public boolean isPaged() {
+        return paged != null;
+    }
+
+    /**
+     * The page table of a paged machine, or {@code null}.
+     */
+    public PagedMemory getPagedMemory() {
+        return paged;
+    }
+
+    public int getCpuId() {
+        return cpuId;
+    }
+
+    /**
+     * Serialises device instructions with the other CPUs on this bus; off
+     * while the machine is the only CPU.
+     */
+    void setSharedBus(boolean shared) {
+        sharedBus = shared;
+    }
+
+    /**
+     * Enables the host services {@code SVC 0} to {@code SVC 6}, which run
+     * memory and device routines in Java instead of guest loops.
+     */
+    public void setHostServices(boolean enabled) {
+        long stamp = executionLock.writeLock();
+        try {
+            hostServices = enabled;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean isHostServices() {
+        return hostServices;
+    }
+
+    /**
+     * Sends the machine's error messages (faults, loader errors, missing
+     * devices) to {@code stream} instead of standard error.
+     */
+    public void setErrorStream(PrintStream stream) {
+        errors = stream;
+    }
+
+    /**
+     * Allows at most {@code limit} more instructions; once they are used
+     * up, running and stepping stop with a break that says so. Instructions
+     * run by loop idioms and translated code count as well.
+     */
+    public void setInstructionLimit(long limit) {
+        long stamp = executionLock.writeLock();
+        try {
+            instructionsLeft = Math.max(0, limit);
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Instructions left before the limit, {@code Long.MAX_VALUE} when
+     * there is none.
+     */
+    public long getInstructionsLeft() {
+        return instructionsLeft;
+    }
+
+    /**
+     * Limits a paged machine to {@code bytes} of memory pages; a write
+     * needing another page throws {@link IllegalStateException}, which
+     * stops automatic execution like any runtime error.
+     */
+    public void setMemoryLimit(int bytes) {
+        if (paged == null) {
+            throw new IllegalStateException("Only a paged machine can limit its memory.");
+        }
+        long stamp = executionLock.writeLock();
+        try {
+            paged.setPageLimit((bytes + PagedMemory.PAGE_SIZE - 1) / PagedMemory.PAGE_SIZE);
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Directory for the files of devices a sparse machine creates on first
+     * use, instead of the working directory.
+     */
+    public void setDeviceDirectory(java.nio.file.Path directory) {
+        deviceDirectory = directory;
+    }
+
     private void initialiseDevices() {
         devices[0] = new InputDevice(System.in);
         devices[1] = new OutputDevice(System.out);
@@ -135,10 +480,14 @@ public class Machine {
     }
 
     public int getSW() {
+        if (conditionPending) {
+            return conditionCode(conditionLeft, conditionRight);
+        }
         return regSW;
     }
 
     public void setSW(int val) {
+        conditionPending = false;
         regSW = val & 0xFF;
     }
 
@@ -202,16 +551,27 @@ public class Machine {
 
     public int getByte(int addr) {
         checkAddressRange(addr, 1);
-        return memory[addr] & 0xFF;
+        return memory != null ? memory[addr] & 0xFF : paged.get(addr);
     }
 
     public void setByte(int addr, int val) {
         checkAddressRange(addr, 1);
-        memory[addr] = (byte) (val & 0xFF);
+        boolean code = pages.touch(addr, 1);
+        if (memory != null) {
+            memory[addr] = (byte) (val & 0xFF);
+        } else {
+            paged.set(addr, val);
+        }
+        if (code) {
+            codeWritten(addr, 1);
+        }
     }
 
     public int getWord(int addr) {
         checkAddressRange(addr, 3);
+        if (memory == null) {
+            return paged.getWord(addr);
+        }
         int b1 = memory[addr] & 0xFF;
         int b2 = memory[addr + 1] & 0xFF;
         int b3 = memory[addr + 2] & 0xFF;
@@ -220,42 +580,182 @@ public class Machine {
 
     public void setWord(int addr, int val) {
         checkAddressRange(addr, 3);
+        boolean code = pages.touch(addr, 3);
         int masked = maskWord(val);
-        memory[addr] = (byte) ((masked >> 16) & 0xFF);
-        memory[addr + 1] = (byte) ((masked >> 8) & 0xFF);
-        memory[addr + 2] = (byte) (masked & 0xFF);
+        if (memory != null) {
+            memory[addr] = (byte) ((masked >> 16) & 0xFF);
+            memory[addr + 1] = (byte) ((masked >> 8) & 0xFF);
+            memory[addr + 2] = (byte) (masked & 0xFF);
+        } else {
+            paged.setWord(addr, masked);
+        }
+        if (code) {
+            codeWritten(addr, 3);
+        }
     }
 
     public double getFloat(int addr) {
         checkAddressRange(addr, 6);
         long raw = 0L;
         for (int i = 0; i < 6; i++) {
-            raw = (raw << 8) | (memory[addr + i] & 0xFF);
+            raw = (raw << 8) | rawByte(addr + i);
         }
         return SicXeFloat.fromRaw(raw);
     }
 
     public void setFloat(int addr, double val) {
         checkAddressRange(addr, 6);
+        boolean code = pages.touch(addr, 6);
         long raw = SicXeFloat.toRaw(val);
         for (int i = 5; i >= 0; i--) {
-            memory[addr + i] = (byte) (raw & 0xFF);
+            storeRawByte(addr + i, (int) raw);
             raw >>= 8;
         }
+        if (code) {
+            codeWritten(addr, 6);
+        }
+    }
+
+    public void writeBlock(int addr, byte[] src, int offset, int length) {
+        checkAddressRange(addr, Math.max(length, 1));
+        boolean code = length > 0 && pages.touch(addr, length);
+        if (memory != null) {
+            System.arraycopy(src, offset, memory, addr, length);
+        } else {
+            paged.write(addr, src, offset, length);
+        }
+        if (code) {
+            codeWritten(addr, length);
+        }
+    }
+
+    void fillBlock(int addr, int length, int value) {
+        boolean code = length > 0 && pages.touch(addr, length);
+        if (memory != null) {
+            Arrays.fill(memory, addr, addr + length, (byte) value);
+        } else {
+            paged.fill(addr, length, value);
+        }
+        if (code) {
+            codeWritten(addr, length);
+        }
     }
 
     public void clearMemory() {
-        Arrays.fill(memory, (byte) 0);
+        if (memory != null) {
+            Arrays.fill(memory, (byte) 0);
+        } else {
+            paged.clear();
+        }
+        if (pages.touchAll()) {
+            codeWritten(0, MEMORY_SIZE);
+        }
+    }
+
+    /**
+     * Adds a listener told about writes to bytes that have been fetched as
+     * instructions. Writes to pages without code cost one null test and
+     * never reach the listeners.
+     */
+    public void addCodeWriteListener(CodeWriteListener listener) {
+        codeWriteListeners.add(listener);
+    }
+
+    public void removeCodeWriteListener(CodeWriteListener listener) {
+        codeWriteListeners.remove(listener);
+    }
+
+    /**
+     * Whether instructions have been fetched from the 256-byte page since
+     * the memory was last cleared.
+     */
+    public boolean isCodePage(int page) {
+        return pages.isCode(page);
+    }
+
+    /**
+     * Writes that hit executed bytes of the page.
+     */
+    public long getCodeWriteCount(int page) {
+        return pages.codeWrites(page);
+    }
+
+    public void resetCodeWriteCounts() {
+        long stamp = executionLock.writeLock();
+        try {
+            pages.resetCodeWrites();
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Flags the bytes of {@code [start, end)} as code, for code that runs
+     * without being fetched by the interpreter.
+     */
+    void markCode(int start, int end) {
+        pages.markCode(start, end);
+    }
+
+    long getPageVersion(int page) {
+        return pages.version(page);
+    }
+
+    /**
+     * The memory array itself, read directly by translated code; writes
+     * must still go through the setters. {@code null} for a paged machine.
+     */
+    byte[] rawMemory() {
+        return memory;
+    }
+
+    /**
+     * Byte at an address already checked to be in range, without
+     * bookkeeping.
+     */
+    private int rawByte(int address) {
+        return memory != null ? memory[address] & 0xFF : paged.get(address);
+    }
+
+    private void storeRawByte(int address, int value) {
+        if (memory != null) {
+            memory[address] = (byte) value;
+        } else {
+            paged.set(address, value);
+        }
+    }
+
+    private void codeWritten(int address, int length) {
+        if (executing) {
+            perf.selfModifyingWrites++;
+        } else {
+            perf.hostCodeWrites++;
+        }
+        for (CodeWriteListener listener : codeWriteListeners) {
+            listener.codeWritten(address, address + length);
+        }
     }
 
     public Device getDevice(int num) {
         checkDeviceNumber(num);
-        return devices[num];
+        Device device = devices[num];
+        if (device == null && lazyDevices && num > 2 && (removedDevices == null || !removedDevices.get(num))) {
+            String name = String.format("device%03d.dat", num);
+            device = new FileDevice(deviceDirectory == null ? name : deviceDirectory.resolve(name).toString());
+            devices[num] = device;
+        }
+        return device;
     }
 
     public void setDevice(int num, Device device) {
         checkDeviceNumber(num);
         devices[num] = device;
+        if (lazyDevices) {
+            if (removedDevices == null) {
+                removedDevices = new java.util.BitSet(DEVICE_COUNT);
+            }
+            removedDevices.set(num, device == null);
+        }
     }
 
     public boolean loadSection(Reader reader) {
@@ -296,7 +796,7 @@ public class Machine {
                         }
 
                         if (startHex == null || lengthHex == null) {
-                            System.err.println("Malformed header record: " + line);
+                            errors.println("Malformed header record: " + line);
                             return false;
                         }
 
@@ -317,11 +817,11 @@ public class Machine {
                     }
                     case 'T': {
                         if (!headerSeen) {
-                            System.err.println("Text record encountered before header.");
+                            errors.println("Text record encountered before header.");
                             return false;
                         }
                         if (fields.length < 3) {
-                            System.err.println("Malformed text record: " + line);
+                            errors.println("Malformed text record: " + line);
                             return false;
                         }
 
@@ -333,7 +833,7 @@ public class Machine {
                         }
                         String data = dataBuilder.toString();
                         if (data.length() < byteCount * 2) {
-                            System.err.println("Text record shorter than expected: " + line);
+                            errors.println("Text record shorter than expected: " + line);
                             return false;
                         }
 
@@ -375,20 +875,20 @@ public class Machine {
                         // Comment line, skip it.
                         break;
                     default:
-                        System.err.println("Unknown record type '" + recordType + "': " + line);
+                        errors.println("Unknown record type '" + recordType + "': " + line);
                         return false;
                 }
             }
         } catch (IOException ex) {
-            System.err.println("Failed to load section: " + ex.getMessage());
+            errors.println("Failed to load section: " + ex.getMessage());
             return false;
         } catch (IllegalArgumentException ex) {
-            System.err.println(ex.getMessage());
+            errors.println(ex.getMessage());
             return false;
         }
 
         if (!headerSeen) {
-            System.err.println("Missing header record in object file.");
+            errors.println("Missing header record in object file.");
             return false;
         }
 
@@ -415,50 +915,324 @@ public class Machine {
         return lastLoadLength;
     }
 
+    public void setLoadInfo(int start, int length) {
+        lastLoadStart = start;
+        lastLoadLength = length;
+        if (profiler != null) {
+            enableProfiler();
+        }
+    }
+
     public void clearLoadInfo() {
         lastLoadStart = 0;
         lastLoadLength = 0;
     }
 
-    public Snapshot createSnapshot() {
-        synchronized (executionLock) {
-            // Shrani samo spremenjene dele pomnilnika (sparse diff)
-            java.util.Map<Integer, Byte> memoryDiff = new java.util.HashMap<>();
-            
-            // Če imamo naložen program, shrani samo ta del pomnilnika
-            if (lastLoadLength > 0) {
-                int start = lastLoadStart;
-                int end = Math.min(lastLoadStart + lastLoadLength, MEMORY_SIZE);
-                for (int i = start; i < end; i++) {
-                    memoryDiff.put(i, memory[i]);
-                }
+    /**
+     * Starts a fresh profile sized to the loaded program, or to the whole
+     * memory when nothing is loaded.
+     */
+    public Profiler enableProfiler() {
+        long stamp = executionLock.writeLock();
+        try {
+            profiler = lastLoadLength > 0
+                    ? new Profiler(lastLoadStart, lastLoadLength)
+                    : new Profiler(0, MEMORY_SIZE);
+            return profiler;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public void disableProfiler() {
+        long stamp = executionLock.writeLock();
+        try {
+            profiler = null;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Starts recognising copy, fill and search loops and running them as
+     * bulk operations; see {@link LoopIdioms}.
+     */
+    public LoopIdioms enableLoopIdioms() {
+        if (memory == null) {
+            throw new IllegalStateException("Loop idioms need the dense memory layout.");
+        }
+        long stamp = executionLock.writeLock();
+        try {
+            if (loopIdioms == null) {
+                loopIdioms = new LoopIdioms(this);
             }
-            
-            return new Snapshot(
-                    memoryDiff,
-                    regA,
-                    regX,
-                    regL,
-                    regB,
-                    regS,
-                    regT,
-                    regF,
-                    regPC,
-                    regSW,
-                    lastLoadStart,
-                    lastLoadLength,
-                    speedKHz);
+            return loopIdioms;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public void disableLoopIdioms() {
+        long stamp = executionLock.writeLock();
+        try {
+            if (loopIdioms != null) {
+                loopIdioms.close();
+                loopIdioms = null;
+            }
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public LoopIdioms getLoopIdioms() {
+        return loopIdioms;
+    }
+
+    /**
+     * Installs (or with {@code null} removes) the trace recorder that receives
+     * one record per executed instruction.
+     */
+    public void setTracer(TraceRecorder recorder) {
+        long stamp = executionLock.writeLock();
+        try {
+            tracer = recorder;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public TraceRecorder getTracer() {
+        return tracer;
+    }
+
+    public PerfCounters.Snapshot getPerfSnapshot() {
+        long stamp = executionLock.tryOptimisticRead();
+        if (stamp != 0) {
+            PerfCounters.Snapshot snapshot = perf.snapshot(System.nanoTime());
+            if (executionLock.validate(stamp)) {
+                return snapshot;
+            }
+        }
+        stamp = lockBetweenBatches(false);
+        try {
+            return perf.snapshot(System.nanoTime());
+        } finally {
+            executionLock.unlockRead(stamp);
+        }
+    }
+
+    public long getInstructionCount() {
+        return perf.instructions;
+    }
+
+    /**
+     * Instructions executed since the machine was created; unlike
+     * {@link #getInstructionCount()} not cleared by
+     * {@link #resetPerfCounters()}, so device logs can be keyed on it.
+     */
+    public long getRetiredInstructions() {
+        return retiredBeforeReset + perf.instructions;
+    }
+
+    public void resetPerfCounters() {
+        long stamp = executionLock.writeLock();
+        try {
+            retiredBeforeReset += perf.instructions;
+            perf.reset();
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Registers as they were between two instructions. Never waits for a
+     * running batch: when the optimistic read is invalidated, returns the
+     * registers published at the start of that batch.
+     */
+    public Registers readRegisters() {
+        long stamp = executionLock.tryOptimisticRead();
+        if (stamp != 0) {
+            Registers registers = new Registers(this);
+            if (executionLock.validate(stamp)) {
+                return registers;
+            }
+        }
+        Registers published = batchRegisters;
+        if (published != null) {
+            return published;
+        }
+        stamp = lockBetweenBatches(false);
+        try {
+            return new Registers(this);
+        } finally {
+            executionLock.unlockRead(stamp);
         }
     }
 
+    /**
+     * Copies {@code length} bytes from {@code addr}. A copy that the running
+     * machine invalidates is taken again in chunks between batches, so a
+     * long copy may span several batches.
+     */
+    public void readMemory(int addr, byte[] target, int offset, int length) {
+        checkAddressRange(addr, Math.max(length, 1));
+        long stamp = executionLock.tryOptimisticRead();
+        if (stamp != 0) {
+            copyOut(addr, target, offset, length);
+            if (executionLock.validate(stamp)) {
+                return;
+            }
+        }
+        for (int done = 0; done < length; done += INSPECT_CHUNK) {
+            int chunk = Math.min(INSPECT_CHUNK, length - done);
+            stamp = lockBetweenBatches(false);
+            try {
+                copyOut(addr + done, target, offset + done, chunk);
+            } finally {
+                executionLock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Locks for inspection in the gap between two batches. Polling instead
+     * of queueing keeps a waiting reader from delaying the next batch; only
+     * when no gap shows up for a while does it queue for the lock.
+     */
+    private long lockBetweenBatches(boolean write) {
+        long deadline = System.nanoTime() + INSPECT_WAIT_NANOS;
+        while (true) {
+            long stamp = write ? executionLock.tryWriteLock() : executionLock.tryReadLock();
+            if (stamp != 0) {
+                return stamp;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                return write ? executionLock.writeLock() : executionLock.readLock();
+            }
+            LockSupport.parkNanos(INSPECT_POLL_NANOS);
+        }
+    }
+
+    private void copyOut(int addr, byte[] target, int offset, int length) {
+        if (memory != null) {
+            System.arraycopy(memory, addr, target, offset, length);
+        } else {
+            paged.read(addr, target, offset, length);
+        }
+    }
+
+    /**
+     * Copies the whole memory for a later {@link #diffMemory} call, in
+     * chunks taken between batches; each page is copied together with its
+     * version and hash.
+     */
+    public MemoryPages.Image captureMemory() {
+        MemoryPages.Image image = pages.newImage();
+        int pagesPerChunk = INSPECT_CHUNK / MemoryPages.PAGE_SIZE;
+        for (int page = 0; page < MemoryPages.PAGE_COUNT; page += pagesPerChunk) {
+            long stamp = lockBetweenBatches(true);
+            try {
+                pages.capture(image, page, page + pagesPerChunk);
+            } finally {
+                executionLock.unlockWrite(stamp);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Byte ranges that changed since {@code image} was captured. Pages not
+     * written since then are skipped without reading them.
+     */
+    public MemoryPages.Diff diffMemory(MemoryPages.Image image) {
+        MemoryPages.DiffScan scan = pages.startDiff(image);
+        int pagesPerChunk = INSPECT_CHUNK / MemoryPages.PAGE_SIZE;
+        for (int page = 0; page < MemoryPages.PAGE_COUNT; page += pagesPerChunk) {
+            long stamp = lockBetweenBatches(true);
+            try {
+                scan.scan(page, page + pagesPerChunk);
+            } finally {
+                executionLock.unlockWrite(stamp);
+            }
+        }
+        return scan.finish();
+    }
+
+    /**
+     * Addresses in {@code [from, to)} where one of the search patterns
+     * starts, at most {@code limit} of them. Searches a copy of the memory,
+     * so execution only waits for the copy.
+     */
+    public java.util.List<PatternSearch.Match> find(PatternSearch search, int from, int to, int limit) {
+        byte[] data = new byte[MEMORY_SIZE];
+        readMemory(0, data, 0, MEMORY_SIZE);
+        return search.find(data, Math.max(from, 0), Math.min(to, MEMORY_SIZE), limit, MemoryPages.zeroPages(data));
+    }
+
+    public Snapshot createSnapshot() {
+        Registers registers;
+        byte[] program;
+        int start;
+        int loadLength;
+        int length;
+        int speed;
+        long stamp = lockBetweenBatches(false);
+        try {
+            registers = new Registers(this);
+            start = lastLoadStart;
+            loadLength = lastLoadLength;
+            length = lastLoadLength > 0 ? Math.min(lastLoadLength, MEMORY_SIZE - lastLoadStart) : 0;
+            program = new byte[length];
+            copyOut(start, program, 0, length);
+            speed = speedKHz;
+        } finally {
+            executionLock.unlockRead(stamp);
+        }
+        // Shrani samo spremenjene dele pomnilnika (sparse diff); če imamo
+        // naložen program, shrani samo ta del pomnilnika
+        java.util.Map<Integer, Byte> memoryDiff = new java.util.HashMap<>();
+        for (int i = 0; i < length; i++) {
+            memoryDiff.put(start + i, program[i]);
+        }
+        return new Snapshot(
+                memoryDiff,
+                registers.getA(),
+                registers.getX(),
+                registers.getL(),
+                registers.getB(),
+                registers.getS(),
+                registers.getT(),
+                registers.getF(),
+                registers.getPC(),
+                registers.getSW(),
+                start,
+                loadLength,
+                speed);
+    }
+
     public void restoreSnapshot(Snapshot snapshot) {
         if (snapshot == null) {
             return;
         }
-        synchronized (executionLock) {
+        long stamp = executionLock.writeLock();
+        try {
             // Obnovi samo spremenjene naslove
+            int codeStart = MEMORY_SIZE;
+            int codeEnd = 0;
             for (java.util.Map.Entry<Integer, Byte> entry : snapshot.memoryDiff.entrySet()) {
-                memory[entry.getKey()] = entry.getValue();
+                int address = entry.getKey();
+                storeRawByte(address, entry.getValue());
+                if (pages.touch(address, 1)) {
+                    codeStart = Math.min(codeStart, address);
+                    codeEnd = Math.max(codeEnd, address + 1);
+                }
+            }
+            if (codeStart < codeEnd) {
+                codeWritten(codeStart, codeEnd - codeStart);
             }
             
             regA = snapshot.regA;
@@ -469,11 +1243,77 @@ public class Machine {
             regT = snapshot.regT;
             regF = snapshot.regF;
             regPC = snapshot.regPC;
-            regSW = snapshot.regSW;
+            setSW(snapshot.regSW);
             lastLoadStart = snapshot.lastLoadStart;
             lastLoadLength = snapshot.lastLoadLength;
             speedKHz = snapshot.speedKHz;
             stop();
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Consistent copy of the register file returned by
+     * {@link #readRegisters()}.
+     */
+    public static final class Registers {
+        private final int a;
+        private final int x;
+        private final int l;
+        private final int b;
+        private final int s;
+        private final int t;
+        private final double f;
+        private final int pc;
+        private final int sw;
+
+        private Registers(Machine machine) {
+            a = machine.regA;
+            x = machine.regX;
+            l = machine.regL;
+            b = machine.regB;
+            s = machine.regS;
+            t = machine.regT;
+            f = machine.regF;
+            pc = machine.regPC;
+            sw = machine.getSW();
+        }
+
+        public int getA() {
+            return a;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getL() {
+            return l;
+        }
+
+        public int getB() {
+            return b;
+        }
+
+        public int getS() {
+            return s;
+        }
+
+        public int getT() {
+            return t;
+        }
+
+        public double getF() {
+            return f;
+        }
+
+        public int getPC() {
+            return pc;
+        }
+
+        public int getSW() {
+            return sw;
         }
     }
 
@@ -522,17 +1362,96 @@ public class Machine {
     }
 
     public void notImplemented(String mnemonic) {
-        System.err.println("Instruction not implemented: " + mnemonic);
+        fault("Instruction not implemented: " + mnemonic);
     }
 
     public void invalidOpcode(int opcode) {
-        System.err.printf("Invalid opcode: 0x%02X%n", opcode & 0xFF);
+        fault(String.format("Invalid opcode: 0x%02X", opcode & 0xFF));
     }
 
     public void invalidAddressing() {
-        System.err.println("Invalid addressing mode encountered.");
+        fault("Invalid addressing mode encountered.");
     }
 
+    /**
+     * Reports a fault of the current instruction: printed by default, or
+     * recorded and treated like a breakpoint when stopping on faults.
+     */
+    private void fault(String message) {
+        if (!stopOnFault) {
+            errors.println(message);
+            return;
+        }
+        lastFault = message;
+        lastBreak = String.format("fault at %06X: %s", instructionAddress, message);
+    }
+
+    /**
+     * With {@code stop} set, an invalid opcode, invalid addressing, a
+     * division by zero or an unimplemented instruction is not printed but
+     * stops {@link #run(int)} after the instruction, like a watchpoint,
+     * and is kept in {@link #getLastFault()}.
+     */
+    void setStopOnFault(boolean stop) {
+        stopOnFault = stop;
+    }
+
+    /**
+     * With {@code stop} set, {@link #run(int)} returns right after a
+     * {@code J} to its own address, the way programs end, counting that
+     * instruction once, and {@link #isHalted()} says so.
+     */
+    void setStopOnHalt(boolean stop) {
+        stopOnHalt = stop;
+    }
+
+    /**
+     * Whether the last run stopped at a {@code J} to itself.
+     */
+    boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Message of the fault that stopped the last run, or {@code null}.
+     */
+    String getLastFault() {
+        return lastFault;
+    }
+
+    /**
+     * Address of the instruction executed last, which for a stop on a
+     * fault is the faulting one.
+     */
+    int getInstructionAddress() {
+        return instructionAddress;
+    }
+
+    /**
+     * Counts every executed jump, taken or not, in {@code hits} at a hash
+     * of its source and target, saturating at 255; {@code null} stops
+     * counting. The length must be a power of two.
+     */
+    void setEdgeCoverage(byte[] hits) {
+        if (hits != null && Integer.bitCount(hits.length) != 1) {
+            throw new IllegalArgumentException("Coverage map size must be a power of two.");
+        }
+        edgeHits = hits;
+    }
+
+    private void recordEdge(int target) {
+        int hash = instructionAddress * 0x9E3779B1 + target;
+        int index = (hash ^ hash >>> 15) & (edgeHits.length - 1);
+        if (edgeHits[index] != -1) {
+            edgeHits[index]++;
+        }
+    }
+
+    /**
+     * Reads the byte at PC and advances PC. The bytes are marked as code
+     * once the whole instruction has been fetched, by
+     * {@link #executeLimited()}.
+     */
     public int fetch() {
         int pc = getPC();
         int value = getByte(pc);
@@ -541,12 +1460,83 @@ public class Machine {
     }
 
     public void execute() {
-        synchronized (executionLock) {
+        long stamp = executionLock.writeLock();
+        try {
+            executeLimited();
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    private void executeLimited() {
+        if (instructionsLeft <= 0) {
+            lastBreak = INSTRUCTION_LIMIT;
+            return;
+        }
+        long before = perf.instructions;
+        try {
             executeInstruction();
+        } finally {
+            instructionsLeft -= perf.instructions - before;
         }
     }
 
     private void executeInstruction() {
+        TraceRecorder trace = tracer;
+        executing = true;
+        try {
+            if (trace == null) {
+                decodeAndExecute();
+            } else {
+                executeTraced(trace);
+            }
+        } finally {
+            executing = false;
+        }
+    }
+
+    private void executeTraced(TraceRecorder trace) {
+        int pc = regPC;
+        int instruction = 0;
+        for (int i = 0; i < 4; i++) {
+            instruction = (instruction << 8) | rawByte(maskAddress(pc + i));
+        }
+        int a = regA;
+        int x = regX;
+        int l = regL;
+        int b = regB;
+        int s = regS;
+        int t = regT;
+        int sw = getSW();
+        lastEffectiveAddress = -1;
+        decodeAndExecute();
+
+        int[] after = {regA, regX, regL, regB, regS, regT, getSW()};
+        int[] before = {a, x, l, b, s, t, sw};
+        int mask = 0;
+        int[] values = new int[2];
+        int count = 0;
+        for (int reg = 0; reg < after.length; reg++) {
+            if (after[reg] != before[reg]) {
+                mask |= 1 << reg;
+                if (count < values.length) {
+                    values[count++] = after[reg];
+                }
+            }
+        }
+        int length = lastInstructionLength;
+        instruction &= -1 << (8 * (4 - length));
+        int address = lastEffectiveAddress < 0 ? TraceRecorder.NO_ADDRESS : lastEffectiveAddress;
+        trace.record(pc, length, instruction, address, mask, values[0], values[1]);
+    }
+
+    private void decodeAndExecute() {
+        instructionAddress = regPC;
+        inputWaitDevice = -1;
+        if (profiler != null) {
+            profiler.recordExecution(instructionAddress);
+        }
+        perf.instructions++;
         int first = fetch();
         lastOpcode = first & 0xFF;
         lastNi = 0;
@@ -556,6 +1546,9 @@ public class Machine {
         lastInstructionLength = 1;
 
         if (isFormat1(first)) {
+            pages.markCode(instructionAddress, instructionAddress + 1);
+            perf.formats[1]++;
+            perf.opcodes[first]++;
             boolean handled = execF1(first);
             if (!handled) {
                 notImplemented(opcodeToMnemonic(first));
@@ -565,8 +1558,11 @@ public class Machine {
 
         if (isFormat2(first)) {
             int operand = fetch();
+            pages.markCode(instructionAddress, instructionAddress + 2);
             lastOperand = operand;
             lastInstructionLength = 2;
+            perf.formats[2]++;
+            perf.opcodes[first]++;
             boolean handled = execF2(first, operand);
             if (!handled) {
                 notImplemented(opcodeToMnemonic(first));
@@ -577,6 +1573,7 @@ public class Machine {
         int opcode = first & 0xFC;
         lastOpcode = opcode;
         if (!isFormat34(opcode)) {
+            pages.markCode(instructionAddress, instructionAddress + 1);
             invalidOpcode(first);
             return;
         }
@@ -598,11 +1595,16 @@ public class Machine {
             operandValue = signExtend(operandRaw, 12);
             lastInstructionLength = 3;
         }
+        pages.markCode(instructionAddress, instructionAddress + lastInstructionLength);
 
         lastNi = first & 0x03;
         lastXbpe = xbpe;
         lastExtended = extended;
         lastOperand = operandValue;
+        perf.formats[lastInstructionLength]++;
+        perf.opcodes[opcode]++;
+        perf.niModes[lastNi]++;
+        perf.xbpeModes[PerfCounters.modeBits(lastNi, xbpe)]++;
 
         boolean handled = execSICF3F4(opcode, lastNi, operandRaw);
         if (!handled) {
@@ -653,7 +1655,7 @@ public class Machine {
                 }
                 int divisor = toSigned24(getReg(r1));
                 if (divisor == 0) {
-                    System.err.println("Division by zero in DIVR instruction.");
+                    fault("Division by zero in DIVR instruction.");
                     return true;
                 }
                 int quotient = toSigned24(getReg(r2)) / divisor;
@@ -665,8 +1667,7 @@ public class Machine {
                     invalidAddressing();
                     return true;
                 }
-                int comparison = Integer.compare(toSigned24(getReg(r1)), toSigned24(getReg(r2)));
-                setConditionFromComparison(comparison);
+                setConditionLazily(toSigned24(getReg(r1)), toSigned24(getReg(r2)));
                 return true;
             }
             case Opcode.RMO: {
@@ -713,22 +1714,166 @@ public class Machine {
                     return true;
                 }
                 setX(maskWord(getX() + 1));
-                int comparison = Integer.compare(toSigned24(getX()), toSigned24(getReg(r1)));
-                setConditionFromComparison(comparison);
+                setConditionLazily(toSigned24(getX()), toSigned24(getReg(r1)));
                 return true;
             }
             case Opcode.SVC:
+                return executeSupervisorCall(r1);
+            default:
                 return false;
+        }
+    }
+
+    /**
+     * Host services when enabled and the reserved multiprocessor services;
+     * other service numbers remain unimplemented.
+     */
+    private boolean executeSupervisorCall(int service) {
+        if (hostServices && service <= SVC_WRITE_BLOCK) {
+            return executeHostService(service);
+        }
+        switch (service) {
+            case SVC_CPU_ID:
+                setA(cpuId);
+                return true;
+            case SVC_FENCE:
+                VarHandle.fullFence();
+                return true;
+            case SVC_EXCHANGE: {
+                int address = getX();
+                if (!isValidRange(address, 3)) {
+                    invalidAddressing();
+                    return true;
+                }
+                int old;
+                // One lock for every exchange makes them a single total
+                // order, and its release/acquire publishes earlier stores.
+                synchronized (busLock) {
+                    old = getWord(address);
+                    setWord(address, getA());
+                }
+                perf.memoryReads++;
+                perf.memoryWrites++;
+                if (breakpoints != null) {
+                    checkWatch(address, 3, false);
+                    checkWatch(address, 3, true);
+                }
+                setA(old);
+                setSW(old == 0 ? CC_EQUAL : CC_GREATER);
+                return true;
+            }
             default:
                 return false;
         }
     }
 
+    private boolean executeHostService(int service) {
+        int address = service == SVC_MEMCPY || service == SVC_MEMSET ? getA() : getX();
+        int length = getT();
+        if (service != SVC_PRINT_DECIMAL && service != SVC_PRINT_HEX
+                && (!isValidRange(address, length) || (service == SVC_MEMCPY && !isValidRange(getX(), length)))) {
+            invalidAddressing();
+            return true;
+        }
+        if (service == SVC_MEMCPY) {
+            if (breakpoints != null && length > 0) {
+                checkWatch(getX(), length, false);
+                checkWatch(address, length, true);
+            }
+            if (memory != null) {
+                writeBlock(address, memory, getX(), length);
+            } else {
+                byte[] buffer = new byte[length];
+                paged.read(getX(), buffer, 0, length);
+                writeBlock(address, buffer, 0, length);
+            }
+            return true;
+        }
+        if (service == SVC_MEMSET) {
+            if (breakpoints != null && length > 0) {
+                checkWatch(address, length, true);
+            }
+            fillBlock(address, length, getX());
+            return true;
+        }
+        int deviceNum = getS() & 0xFF;
+        Device device = getDevice(deviceNum);
+        if (device == null) {
+            errors.println("Device not configured: " + deviceNum);
+            return true;
+        }
+        if (sharedBus) {
+            synchronized (busLock) {
+                return transferDevice(service, device, deviceNum, address, length);
+            }
+        }
+        return transferDevice(service, device, deviceNum, address, length);
+    }
+
+    private boolean transferDevice(int service, Device device, int deviceNum, int address, int length) {
+        switch (service) {
+            case SVC_PRINT_DECIMAL:
+            case SVC_PRINT_HEX: {
+                String text = service == SVC_PRINT_DECIMAL
+                        ? Integer.toString(toSigned24(getA())) : String.format("%06X", getA());
+                for (int i = 0; i < text.length(); i++) {
+                    device.write((byte) text.charAt(i));
+                }
+                perf.deviceBytesWritten += text.length();
+                return true;
+            }
+            case SVC_WRITE_BLOCK: {
+                if (breakpoints != null && length > 0) {
+                    checkWatch(address, length, false);
+                }
+                for (int i = 0; i < length; i++) {
+                    device.write((byte) rawByte(address + i));
+                }
+                perf.deviceBytesWritten += length;
+                setA(length);
+                return true;
+            }
+            default:
+                break;
+        }
+        if (length > 0 && device.readWouldBlock()) {
+            waitForInput(deviceNum);
+            return true;
+        }
+        // A line ends at a newline or a zero byte, which file devices
+        // return at the end of the file; neither is stored.
+        boolean line = service == SVC_READ_LINE;
+        byte[] buffer = new byte[length];
+        int count = 0;
+        boolean ended = false;
+        while (count < length && !device.readWouldBlock()) {
+            byte data = device.read();
+            perf.deviceBytesRead++;
+            if (line && (data == '\n' || data == 0)) {
+                ended = data == '\n';
+                break;
+            }
+            buffer[count++] = data;
+        }
+        if (breakpoints != null && count > 0) {
+            checkWatch(address, count, true);
+        }
+        writeBlock(address, buffer, 0, count);
+        setA(count);
+        if (line) {
+            setSW(ended ? CC_EQUAL : CC_LESS);
+        }
+        return true;
+    }
+
     private boolean unconditionalJump(EffectiveAddress operand) {
         if (operand.immediate) {
             invalidAddressing();
             return true;
         }
+        if (edgeHits != null) {
+            recordEdge(operand.address);
+        }
         setPC(operand.address);
         return true;
     }
@@ -738,7 +1883,16 @@ public class Machine {
             invalidAddressing();
             return true;
         }
+        if (profiler != null) {
+            profiler.recordBranch(instructionAddress, shouldJump);
+        }
+        if (edgeHits != null) {
+            recordEdge(shouldJump ? operand.address : regPC);
+        }
         if (shouldJump) {
+            if (loopIdioms != null && operand.address < instructionAddress) {
+                loopIdioms.noteLoop(operand.address, regPC);
+            }
             setPC(operand.address);
         }
         return true;
@@ -749,6 +1903,10 @@ public class Machine {
             invalidAddressing();
             return true;
         }
+        perf.memoryWrites++;
+        if (breakpoints != null) {
+            checkWatch(operand.address, 3, true);
+        }
         setWord(operand.address, value);
         return true;
     }
@@ -763,14 +1921,39 @@ public class Machine {
             return true;
         }
         if (device == null) {
-            System.err.println("Device not configured: " + deviceNum);
+            errors.println("Device not configured: " + deviceNum);
+            return true;
+        }
+        if (sharedBus) {
+            synchronized (busLock) {
+                return readDevice(device, deviceNum);
+            }
+        }
+        return readDevice(device, deviceNum);
+    }
+
+    private boolean readDevice(Device device, int deviceNum) {
+        if (device.readWouldBlock()) {
+            waitForInput(deviceNum);
             return true;
         }
         byte data = device.read();
+        perf.deviceBytesRead++;
         setA((getA() & 0xFFFF00) | (data & 0xFF));
         return true;
     }
 
+    /**
+     * Leaves PC on the current instruction so it is retried on the next
+     * step; the stalled attempt is not counted, in the total or the
+     * histograms, so instruction numbers stay comparable with replays.
+     */
+    private void waitForInput(int deviceNum) {
+        inputWaitDevice = deviceNum;
+        perf.retract(lastOpcode, lastInstructionLength, lastNi, lastXbpe);
+        setPC(instructionAddress);
+    }
+
     private boolean executeWriteDevice(EffectiveAddress operand) {
         int deviceNum = fetchDeviceNumber(operand);
         Device device;
@@ -781,10 +1964,17 @@ public class Machine {
             return true;
         }
         if (device == null) {
-            System.err.println("Device not configured: " + deviceNum);
+            errors.println("Device not configured: " + deviceNum);
             return true;
         }
-        device.write((byte) (getA() & 0xFF));
+        if (sharedBus) {
+            synchronized (busLock) {
+                device.write((byte) (getA() & 0xFF));
+            }
+        } else {
+            device.write((byte) (getA() & 0xFF));
+        }
+        perf.deviceBytesWritten++;
         return true;
     }
 
@@ -797,7 +1987,14 @@ public class Machine {
             invalidAddressing();
             return true;
         }
-        boolean ready = device != null && device.test();
+        boolean ready;
+        if (sharedBus) {
+            synchronized (busLock) {
+                ready = device != null && device.test();
+            }
+        } else {
+            ready = device != null && device.test();
+        }
         setSW(ready ? CC_EQUAL : CC_LESS);
         return true;
     }
@@ -810,6 +2007,10 @@ public class Machine {
         if (operand.immediate) {
             return maskWord(operand.value);
         }
+        perf.memoryReads++;
+        if (breakpoints != null) {
+            checkWatch(operand.address, 3, false);
+        }
         return getWord(operand.address);
     }
 
@@ -821,6 +2022,10 @@ public class Machine {
         if (operand.immediate) {
             return operand.value & 0xFF;
         }
+        perf.memoryReads++;
+        if (breakpoints != null) {
+            checkWatch(operand.address, 1, false);
+        }
         return getByte(operand.address);
     }
 
@@ -867,20 +2072,32 @@ public class Machine {
 
         int address = maskAddress(baseAddress);
         if (n && !i) {
+            perf.memoryReads++;
+            if (breakpoints != null) {
+                checkWatch(address, 3, false);
+            }
             int pointer = getWord(address);
             address = maskAddress(pointer);
         }
         return EffectiveAddress.direct(address);
     }
 
-    private void setConditionFromComparison(int comparison) {
-        if (comparison < 0) {
-            setSW(CC_LESS);
-        } else if (comparison > 0) {
-            setSW(CC_GREATER);
-        } else {
-            setSW(CC_EQUAL);
+    /**
+     * Records a comparison of two signed values. The condition code is
+     * derived from them only when SW is read; conditional jumps compare
+     * the operands directly.
+     */
+    private void setConditionLazily(int left, int right) {
+        conditionLeft = left;
+        conditionRight = right;
+        conditionPending = true;
+    }
+
+    private static int conditionCode(int left, int right) {
+        if (left < right) {
+            return CC_LESS;
         }
+        return left > right ? CC_GREATER : CC_EQUAL;
     }
 
     private int getConditionCode() {
@@ -931,6 +2148,9 @@ public class Machine {
 
     public boolean execSICF3F4(int opcode, int ni, int operandRaw) {
         if (opcode == Opcode.RSUB) {
+            if (edgeHits != null) {
+                recordEdge(getL());
+            }
             setPC(getL());
             return true;
         }
@@ -942,6 +2162,7 @@ public class Machine {
             invalidAddressing();
             return true;
         }
+        lastEffectiveAddress = operand.address;
 
         switch (opcode & 0xFC) {
             case Opcode.LDA:
@@ -977,7 +2198,7 @@ public class Machine {
             case Opcode.DIV: {
                 int divisor = readSignedWordValue(operand);
                 if (divisor == 0) {
-                    System.err.println("Division by zero in DIV instruction.");
+                    fault("Division by zero in DIV instruction.");
                     return true;
                 }
                 int quotient = toSigned24(getA()) / divisor;
@@ -985,22 +2206,23 @@ public class Machine {
                 return true;
             }
             case Opcode.COMP: {
-                int comparison = Integer.compare(toSigned24(getA()), readSignedWordValue(operand));
-                setConditionFromComparison(comparison);
+                setConditionLazily(toSigned24(getA()), readSignedWordValue(operand));
                 return true;
             }
             case Opcode.TIX: {
                 setX(maskWord(getX() + 1));
-                int comparison = Integer.compare(toSigned24(getX()), readSignedWordValue(operand));
-                setConditionFromComparison(comparison);
+                setConditionLazily(toSigned24(getX()), readSignedWordValue(operand));
                 return true;
             }
             case Opcode.JEQ:
-                return conditionalJump(operand, getConditionCode() == CC_EQUAL);
+                return conditionalJump(operand, conditionPending
+                        ? conditionLeft == conditionRight : getConditionCode() == CC_EQUAL);
             case Opcode.JGT:
-                return conditionalJump(operand, getConditionCode() == CC_GREATER);
+                return conditionalJump(operand, conditionPending
+                        ? conditionLeft > conditionRight : getConditionCode() == CC_GREATER);
             case Opcode.JLT:
-                return conditionalJump(operand, getConditionCode() == CC_LESS);
+                return conditionalJump(operand, conditionPending
+                        ? conditionLeft < conditionRight : getConditionCode() == CC_LESS);
             case Opcode.J:
                 return unconditionalJump(operand);
             case Opcode.AND: {
@@ -1018,6 +2240,9 @@ public class Machine {
                     invalidAddressing();
                     return true;
                 }
+                if (edgeHits != null) {
+                    recordEdge(operand.address);
+                }
                 setL(getPC());
                 setPC(operand.address);
                 return true;
@@ -1032,6 +2257,10 @@ public class Machine {
                     invalidAddressing();
                     return true;
                 }
+                perf.memoryWrites++;
+                if (breakpoints != null) {
+                    checkWatch(operand.address, 1, true);
+                }
                 setByte(operand.address, getA() & 0xFF);
                 return true;
             }
@@ -1070,6 +2299,7 @@ public class Machine {
             }
             timer = new Timer("sicxe-timer", true);
             running = true;
+            resuming = true;
             timer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
@@ -1108,23 +2338,283 @@ public class Machine {
     }
 
     public void step() {
-        execute();
+        long stamp = executionLock.writeLock();
+        try {
+            lastBreak = null;
+            executeLimited();
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Executes up to {@code steps} instructions, stopping early at a
+     * breakpoint, after an instruction that triggered a watchpoint, or at
+     * an RD that has to wait for input. A breakpoint at the starting PC is
+     * ignored so that a stopped program can be resumed. Returns the number
+     * of instructions executed.
+     */
+    public int run(int steps) {
+        return run(steps, true);
+    }
+
+    /**
+     * Like {@link #run(int)}; with {@code resume} false a breakpoint at the
+     * starting PC stops execution as well, for callers running in slices.
+     */
+    int run(int steps, boolean resume) {
+        long stamp = executionLock.writeLock();
+        try {
+            lastBreak = null;
+            lastFault = null;
+            halted = false;
+            int budget = (int) Math.min(steps, instructionsLeft);
+            long before = perf.instructions;
+            perf.sample(System.nanoTime());
+            batchRegisters = new Registers(this);
+            int done;
+            try {
+                done = runSteps(budget, resume);
+            } finally {
+                batchRegisters = null;
+                instructionsLeft -= perf.instructions - before;
+                perf.sample(System.nanoTime());
+            }
+            if (done == budget && budget < steps && lastBreak == null) {
+                lastBreak = INSTRUCTION_LIMIT;
+            }
+            return done;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    private int runSteps(int steps, boolean resume) {
+        for (int i = 0; i < steps; i++) {
+            if (breakpoints != null && (i > 0 || !resume) && checkBreakpoint()) {
+                return i;
+            }
+            if (loopIdioms != null && loopIdioms.isHead(regPC)) {
+                int done = runLoopIdiom(steps - i);
+                if (done > 0) {
+                    i += done - 1;
+                    continue;
+                }
+            }
+            executeInstruction();
+            if (lastBreak != null) {
+                return i + 1;
+            }
+            if (inputWaitDevice >= 0) {
+                return i;
+            }
+            if (stopOnHalt && regPC == instructionAddress && lastOpcode == Opcode.J) {
+                halted = true;
+                return i + 1;
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Runs the recognised loop at the PC in bulk within {@code budget}
+     * instructions; returns 0 when the interpreter has to run it, which it
+     * always does while breakpoints, tracing or profiling are active.
+     */
+    private int runLoopIdiom(int budget) {
+        if (breakpoints != null || tracer != null || profiler != null) {
+            return 0;
+        }
+        inputWaitDevice = -1;
+        executing = true;
+        try {
+            int done = loopIdioms.execute(budget);
+            perf.instructions += done;
+            return done;
+        } finally {
+            executing = false;
+        }
+    }
+
+    /**
+     * Runs the translated code of {@code program} from the current PC for
+     * at most {@code budget} instructions, or for one segment when
+     * {@code single} is set, and returns how many instructions it executed.
+     * Returns 0 when the PC is not a translated entry, and while
+     * breakpoints, tracing or profiling need the interpreter.
+     */
+    int enterTranslated(AotProgram program, int budget, boolean single) {
+        long stamp = executionLock.writeLock();
+        try {
+            if (breakpoints != null || tracer != null || profiler != null || instructionsLeft <= 0) {
+                return 0;
+            }
+            lastBreak = null;
+            inputWaitDevice = -1;
+            executing = true;
+            try {
+                int executed = program.enter((int) Math.min(budget, instructionsLeft), single);
+                perf.instructions += executed;
+                instructionsLeft -= executed;
+                return executed;
+            } finally {
+                executing = false;
+            }
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
     }
 
     private void runScheduledStep() {
+        String hit = null;
         try {
-            int steps = Math.max(1, speedKHz);
-            synchronized (executionLock) {
-                for (int i = 0; i < steps; i++) {
-                    executeInstruction();
+            long stamp = executionLock.writeLock();
+            try {
+                if (resuming) {
+                    lastBreak = null;
+                }
+                int steps = (int) Math.min(Math.max(1, speedKHz), instructionsLeft);
+                long before = perf.instructions;
+                if (steps == 0) {
+                    lastBreak = INSTRUCTION_LIMIT;
+                }
+                batchRegisters = new Registers(this);
+                try {
+                    runBatch(steps);
+                } finally {
+                    batchRegisters = null;
                 }
+                instructionsLeft -= perf.instructions - before;
+                perf.sample(System.nanoTime());
+                hit = lastBreak;
+            } finally {
+                executionLock.unlockWrite(stamp);
             }
         } catch (RuntimeException e) {
             stop();
-            System.err.println("Execution halted due to runtime error: " + e.getMessage());
+            errors.println("Execution halted due to runtime error: " + e.getMessage());
+        }
+        if (hit != null && running) {
+            stop();
+            for (Consumer<String> listener : breakListeners) {
+                listener.accept(hit);
+            }
+        }
+    }
+
+    private void runBatch(int steps) {
+        for (int i = 0; i < steps; i++) {
+            if (breakpoints != null && !resuming && checkBreakpoint()) {
+                return;
+            }
+            resuming = false;
+            if (loopIdioms != null && loopIdioms.isHead(regPC)) {
+                int done = runLoopIdiom(steps - i);
+                if (done > 0) {
+                    i += done - 1;
+                    continue;
+                }
+            }
+            executeInstruction();
+            if (lastBreak != null || inputWaitDevice >= 0) {
+                return;
+            }
+        }
+    }
+
+    private boolean checkBreakpoint() {
+        Breakpoints.Entry entry = breakpoints.checkExecute(this, regPC);
+        if (entry == null) {
+            return false;
+        }
+        lastBreak = String.format("%s at %06X", entry, regPC);
+        return true;
+    }
+
+    private void checkWatch(int address, int length, boolean write) {
+        Breakpoints.Entry entry = breakpoints.checkAccess(this, address, length, write);
+        if (entry != null && lastBreak == null) {
+            lastBreak = String.format("%s: %s of %06X by instruction at %06X",
+                    entry, write ? "write" : "read", address, instructionAddress);
+        }
+    }
+
+    public Breakpoints.Entry addBreakpoint(int address, Condition condition) {
+        return addBreakpoint(address, Breakpoints.EXECUTE, condition);
+    }
+
+    /**
+     * Adds a breakpoint or watchpoint; {@code kinds} combines the
+     * {@link Breakpoints} EXECUTE, READ and WRITE flags.
+     */
+    public Breakpoints.Entry addBreakpoint(int address, int kinds, Condition condition) {
+        long stamp = executionLock.writeLock();
+        try {
+            Breakpoints.Entry entry = breakpointTable.add(address, kinds, condition);
+            breakpoints = breakpointTable;
+            return entry;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public Breakpoints.Entry addConditionBreakpoint(Condition condition) {
+        long stamp = executionLock.writeLock();
+        try {
+            Breakpoints.Entry entry = breakpointTable.addGlobal(condition);
+            breakpoints = breakpointTable;
+            return entry;
+        } finally {
+            executionLock.unlockWrite(stamp);
         }
     }
 
+    public boolean removeBreakpoint(int id) {
+        long stamp = executionLock.writeLock();
+        try {
+            boolean removed = breakpointTable.remove(id);
+            breakpoints = breakpointTable.isEmpty() ? null : breakpointTable;
+            return removed;
+        } finally {
+            executionLock.unlockWrite(stamp);
+        }
+    }
+
+    public java.util.List<Breakpoints.Entry> getBreakpoints() {
+        long stamp = executionLock.readLock();
+        try {
+            return new java.util.ArrayList<>(breakpointTable.getEntries());
+        } finally {
+            executionLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Description of the breakpoint or watchpoint that stopped the last
+     * step, run or automatic execution, or {@code null}.
+     */
+    public String getLastBreak() {
+        return lastBreak;
+    }
+
+    /**
+     * Device whose RD is waiting for input, or -1.
+     */
+    public int getInputWaitDevice() {
+        return inputWaitDevice;
+    }
+
+    /**
+     * Adds a listener told when automatic execution stops at a breakpoint.
+     */
+    public void addBreakListener(Consumer<String> listener) {
+        breakListeners.add(listener);
+    }
+
+    public void removeBreakListener(Consumer<String> listener) {
+        breakListeners.remove(listener);
+    }
+
     public int getLastNi() {
         return lastNi;
     }
@@ -1181,8 +2671,12 @@ public class Machine {
         }
     }
 
+    public static boolean isValidRange(int addr, int length) {
+        return addr >= 0 && length >= 0 && addr <= MAX_ADDRESS && addr + length - 1 <= MAX_ADDRESS;
+    }
+
     private static void checkAddressRange(int addr, int length) {
-        if (addr < 0 || addr > MAX_ADDRESS || addr + length - 1 > MAX_ADDRESS) {
+        if (!isValidRange(addr, length)) {
             throw new IllegalArgumentException("Address out of range: " + addr);
         }
     }
@@ -1201,6 +2695,23 @@ public class Machine {
         return value & MAX_ADDRESS;
     }
 
+    /**
+     * Length in bytes of the instruction starting with {@code first}, using
+     * {@code second} to tell format 3 from format 4.
+     */
+    public static int instructionLength(int first, int second) {
+        if (isFormat1(first)) {
+            return 1;
+        }
+        if (isFormat2(first)) {
+            return 2;
+        }
+        if (!isFormat34(first & 0xFC)) {
+            return 1;
+        }
+        return (second & 0x10) != 0 ? 4 : 3;
+    }
+
     public static boolean isFormat1(int opcode) {
         switch (opcode & 0xFF) {
             case Opcode.FIX:
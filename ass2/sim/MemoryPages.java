@@ -0,0 +1,433 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-page bookkeeping for the machine memory. Every write bumps the
+ * version of the touched 256-byte pages; page hashes are recomputed lazily,
+ * only for pages whose version moved since the last hash. Comparing two
+ * images therefore skips untouched pages by version and rewritten but
+ * unchanged pages by their 64-bit hash, and compares bytes only where the
+ * hashes differ. Callers hold the machine's execution lock for writing,
+ * since hashing updates the cache; images are captured and compared a
+ * range of pages at a time, so the machine can run in between. The hash
+ * cache, the code bitmaps and the code-write counters are allocated on
+ * first use, which keeps forked machines small.
+ *
+ * <p>CPUs of a multiprocessor share one instance but each holds only its
+ * own execution lock, so once {@link #share()} has been called versions,
+ * code bitmaps and code-write counts are updated atomically.
+ *
+ * <p>Executed code is tracked per byte, with a 256-bit map for each page
+ * code was fetched from, so that a write to data sharing a page with code
+ * does not count as a code write.
+ */
+public final class MemoryPages {
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGE_COUNT = Machine.MEMORY_SIZE >>> PAGE_BITS;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle BITMAPS = MethodHandles.arrayElementVarHandle(long[][].class);
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+    private static final long ZERO_PAGE_HASH = hashPage(ZERO_PAGE, 0);
+
+    private final byte[] memory;
+    private final PagedMemory paged;
+    private final long[] versions = new long[PAGE_COUNT];
+    private long[] hashes;
+    private long[] hashedVersions;
+    private static final int CODE_WORDS = PAGE_SIZE / Long.SIZE;
+
+    /** Bitmap of executed bytes per page, {@code null} for pages without code. */
+    private final long[][] code = new long[PAGE_COUNT][];
+    private long[] codeWrites;
+    // Set before other CPUs start, which publishes it to them.
+    private boolean concurrent;
+
+    MemoryPages(byte[] memory) {
+        this.memory = memory;
+        this.paged = null;
+    }
+
+    MemoryPages(PagedMemory paged) {
+        this.memory = null;
+        this.paged = paged;
+    }
+
+    /**
+     * Makes updates safe for CPUs that share this memory without sharing
+     * a lock. Called before the other CPUs start.
+     */
+    void share() {
+        if (codeWrites == null) {
+            codeWrites = new long[PAGE_COUNT];
+        }
+        concurrent = true;
+    }
+
+    /**
+     * Records a write of {@code length} bytes at {@code address} and
+     * returns true when it hit a page holding executed code.
+     */
+    boolean touch(int address, int length) {
+        int end = address + length;
+        int last = (end - 1) >>> PAGE_BITS;
+        boolean hit = false;
+        for (int page = address >>> PAGE_BITS; page <= last; page++) {
+            long[] bits;
+            if (concurrent) {
+                COUNTS.getAndAdd(versions, page, 1L);
+                bits = (long[]) BITMAPS.getAcquire(code, page);
+            } else {
+                versions[page]++;
+                bits = code[page];
+            }
+            if (bits != null && overlaps(bits, Math.max(address, page << PAGE_BITS), Math.min(end, (page + 1) << PAGE_BITS))) {
+                if (concurrent) {
+                    COUNTS.getAndAdd(codeWrites, page, 1L);
+                } else {
+                    if (codeWrites == null) {
+                        codeWrites = new long[PAGE_COUNT];
+                    }
+                    codeWrites[page]++;
+                }
+                hit = true;
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * Records a write of the whole memory, which leaves no code behind.
+     * Returns true when some page held executed code.
+     */
+    boolean touchAll() {
+        boolean hit = false;
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (concurrent) {
+                COUNTS.getAndAdd(versions, page, 1L);
+                hit |= BITMAPS.getAndSet(code, page, (long[]) null) != null;
+            } else {
+                versions[page]++;
+                hit |= code[page] != null;
+                code[page] = null;
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * Marks the byte at {@code address} as executed code. Only the first
+     * fetch of a byte writes, so CPUs sharing memory do not contend on the
+     * bitmaps.
+     */
+    void markCode(int address) {
+        int page = address >>> PAGE_BITS;
+        int offset = address & (PAGE_SIZE - 1);
+        long mask = 1L << offset;
+        if (concurrent) {
+            long[] bits = (long[]) BITMAPS.getAcquire(code, page);
+            if (bits == null) {
+                long[] fresh = new long[CODE_WORDS];
+                bits = (long[]) BITMAPS.compareAndExchange(code, page, (long[]) null, fresh);
+                if (bits == null) {
+                    bits = fresh;
+                }
+            }
+            if (((long) COUNTS.getOpaque(bits, offset >>> 6) & mask) == 0) {
+                COUNTS.getAndBitwiseOr(bits, offset >>> 6, mask);
+            }
+            return;
+        }
+        long[] bits = code[page];
+        if (bits == null) {
+            bits = new long[CODE_WORDS];
+            code[page] = bits;
+        }
+        if ((bits[offset >>> 6] & mask) == 0) {
+            bits[offset >>> 6] |= mask;
+        }
+    }
+
+    /**
+     * Marks the bytes of {@code [start, end)} as executed code. A range
+     * within one 64-bit word of a page that is marked already, as an
+     * instruction run again is, costs one test.
+     */
+    void markCode(int start, int end) {
+        int offset = start & (PAGE_SIZE - 1);
+        int length = end - start;
+        if (length > 0 && length < Long.SIZE && (offset & 63) + length <= Long.SIZE) {
+            int page = start >>> PAGE_BITS;
+            long[] bits = concurrent ? (long[]) BITMAPS.getAcquire(code, page) : code[page];
+            long mask = ((1L << length) - 1) << offset;
+            if (bits != null) {
+                long word = concurrent ? (long) COUNTS.getOpaque(bits, offset >>> 6) : bits[offset >>> 6];
+                if ((word & mask) == mask) {
+                    return;
+                }
+            }
+        }
+        for (int address = start; address < end; address++) {
+            markCode(address & Machine.MAX_ADDRESS);
+        }
+    }
+
+    /**
+     * Whether any byte of the page has been fetched as code since the
+     * memory was last cleared.
+     */
+    public boolean isCode(int page) {
+        return code[page] != null;
+    }
+
+    /**
+     * Whether a byte of {@code [start, end)}, which lies within one page,
+     * is marked in {@code bits}.
+     */
+    private static boolean overlaps(long[] bits, int start, int end) {
+        for (int address = start; address < end; address++) {
+            int offset = address & (PAGE_SIZE - 1);
+            if ((bits[offset >>> 6] & 1L << offset) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes that hit executed bytes of the page.
+     */
+    public long codeWrites(int page) {
+        return codeWrites == null ? 0L : codeWrites[page];
+    }
+
+    void resetCodeWrites() {
+        if (concurrent) {
+            for (int page = 0; page < PAGE_COUNT; page++) {
+                COUNTS.setVolatile(codeWrites, page, 0L);
+            }
+        } else {
+            codeWrites = null;
+        }
+    }
+
+    public long version(int page) {
+        return concurrent ? (long) COUNTS.getVolatile(versions, page) : versions[page];
+    }
+
+    /**
+     * Hash of the page contents, recomputed only when the page was written
+     * since the last call.
+     */
+    public long hash(int page) {
+        if (hashes == null) {
+            hashes = new long[PAGE_COUNT];
+            hashedVersions = new long[PAGE_COUNT];
+            java.util.Arrays.fill(hashedVersions, -1L);
+        }
+        if (hashedVersions[page] != versions[page]) {
+            int address = page << PAGE_BITS;
+            if (memory != null) {
+                hashes[page] = hashPage(memory, address);
+            } else {
+                byte[] data = paged.pageAt(address);
+                hashes[page] = data == null
+                        ? ZERO_PAGE_HASH
+                        : hashPage(data, address & (PagedMemory.PAGE_SIZE - 1));
+            }
+            hashedVersions[page] = versions[page];
+        }
+        return hashes[page];
+    }
+
+    /**
+     * Marks the pages of a memory copy that contain only zero bytes.
+     */
+    static boolean[] zeroPages(byte[] data) {
+        boolean[] zero = new boolean[PAGE_COUNT];
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            int base = page << PAGE_BITS;
+            zero[page] = java.util.Arrays.mismatch(data, base, base + PAGE_SIZE, ZERO_PAGE, 0, PAGE_SIZE) < 0;
+        }
+        return zero;
+    }
+
+    /**
+     * An empty image to be filled by {@link #capture(Image, int, int)}.
+     */
+    Image newImage() {
+        return new Image(this, new byte[Machine.MEMORY_SIZE], new long[PAGE_COUNT], new long[PAGE_COUNT]);
+    }
+
+    /**
+     * Copies pages {@code [fromPage, toPage)} into {@code image} together
+     * with their versions and hashes.
+     */
+    void capture(Image image, int fromPage, int toPage) {
+        toPage = Math.min(toPage, PAGE_COUNT);
+        for (int page = fromPage; page < toPage; page++) {
+            image.hashes[page] = hash(page);
+            image.versions[page] = versions[page];
+        }
+        int base = fromPage << PAGE_BITS;
+        int length = (toPage - fromPage) << PAGE_BITS;
+        if (memory != null) {
+            System.arraycopy(memory, base, image.data, base, length);
+        } else {
+            paged.read(base, image.data, base, length);
+        }
+    }
+
+    /**
+     * Starts listing the byte ranges where current memory differs from
+     * {@code image}; the pages are compared by {@link DiffScan#scan}.
+     */
+    DiffScan startDiff(Image image) {
+        return new DiffScan(image);
+    }
+
+    /**
+     * A comparison with an {@link Image} that can be run a range of pages
+     * at a time, in ascending order.
+     */
+    final class DiffScan {
+        private final Image image;
+        private final boolean sameOwner;
+        private final List<int[]> ranges = new ArrayList<>();
+        private int skippedByVersion;
+        private int skippedByHash;
+        private int rangeStart = -1;
+        private long nanos;
+
+        private DiffScan(Image image) {
+            this.image = image;
+            this.sameOwner = image.owner == MemoryPages.this;
+        }
+
+        void scan(int fromPage, int toPage) {
+            long started = System.nanoTime();
+            toPage = Math.min(toPage, PAGE_COUNT);
+            for (int page = fromPage; page < toPage; page++) {
+                if (sameOwner && image.versions[page] == versions[page]) {
+                    skippedByVersion++;
+                    rangeStart = closeRange(ranges, rangeStart, page << PAGE_BITS);
+                    continue;
+                }
+                if (image.hashes[page] == hash(page)) {
+                    skippedByHash++;
+                    rangeStart = closeRange(ranges, rangeStart, page << PAGE_BITS);
+                    continue;
+                }
+                int base = page << PAGE_BITS;
+                byte[] data = memory;
+                int offset = 0;
+                if (data == null) {
+                    data = paged.pageAt(base);
+                    offset = base & -PagedMemory.PAGE_SIZE;
+                    if (data == null) {
+                        data = ZERO_PAGE;
+                        offset = base;
+                    }
+                }
+                for (int i = base; i < base + PAGE_SIZE; i++) {
+                    if (data[i - offset] != image.data[i]) {
+                        if (rangeStart < 0) {
+                            rangeStart = i;
+                        }
+                    } else {
+                        rangeStart = closeRange(ranges, rangeStart, i);
+                    }
+                }
+            }
+            nanos += System.nanoTime() - started;
+        }
+
+        Diff finish() {
+            rangeStart = closeRange(ranges, rangeStart, Machine.MEMORY_SIZE);
+            return new Diff(ranges, skippedByVersion, skippedByHash, nanos);
+        }
+    }
+
+    private static int closeRange(List<int[]> ranges, int rangeStart, int end) {
+        if (rangeStart >= 0) {
+            ranges.add(new int[] {rangeStart, end});
+        }
+        return -1;
+    }
+
+    private static long hashPage(byte[] data, int offset) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < PAGE_SIZE; i += Long.BYTES) {
+            long word = (long) LONGS.get(data, offset + i);
+            h = Long.rotateLeft(h ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+        }
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Copy of the memory taken by {@link Machine#captureMemory()}.
+     */
+    public static final class Image {
+        private final MemoryPages owner;
+        private final byte[] data;
+        private final long[] versions;
+        private final long[] hashes;
+
+        private Image(MemoryPages owner, byte[] data, long[] versions, long[] hashes) {
+            this.owner = owner;
+            this.data = data;
+            this.versions = versions;
+            this.hashes = hashes;
+        }
+
+        public int getByte(int address) {
+            return data[address] & 0xFF;
+        }
+    }
+
+    /**
+     * Result of comparing memory with an {@link Image}.
+     */
+    public static final class Diff {
+        private final List<int[]> ranges;
+        private final int skippedByVersion;
+        private final int skippedByHash;
+        private final long nanos;
+
+        private Diff(List<int[]> ranges, int skippedByVersion, int skippedByHash, long nanos) {
+            this.ranges = ranges;
+            this.skippedByVersion = skippedByVersion;
+            this.skippedByHash = skippedByHash;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Changed ranges as {@code {start, end}} pairs, end exclusive.
+         */
+        public List<int[]> getRanges() {
+            return Collections.unmodifiableList(ranges);
+        }
+
+        public int getSkippedByVersion() {
+            return skippedByVersion;
+        }
+
+        public int getSkippedByHash() {
+            return skippedByHash;
+        }
+
+        public int getComparedPages() {
+            return PAGE_COUNT - skippedByVersion - skippedByHash;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
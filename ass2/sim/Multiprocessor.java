@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Several CPUs sharing the memory and devices of a primary {@link Machine}.
+ * CPU 0 is the primary machine itself; the others have their own registers
+ * and execution state and are run in parallel, one host thread per CPU.
+ *
+ * <p>Memory model: every CPU sees its own accesses in program order.
+ * Plain loads and stores of different CPUs are not ordered with each other,
+ * may become visible late, and a word store may be observed half written.
+ * {@code SVC 15} swaps A with the word at X atomically; all exchanges form
+ * one total order, and everything a CPU stored before an exchange is
+ * visible to a CPU whose later exchange reads its result, so a spin lock
+ * acquired and released with {@code SVC 15} publishes the data it guards.
+ * {@code SVC 14} is a full fence. Device instructions are serialised.
+ */
+public final class Multiprocessor {
+    /** Instructions each CPU executes between checks for a stop. */
+    private static final int SLICE = 4096;
+
+    private final Machine primary;
+    private final Machine[] cpus;
+    private final ExecutorService executor;
+
+    public Multiprocessor(Machine primary, int count) {
+        if (count < 2) {
+            throw new IllegalArgumentException("A multiprocessor needs at least two CPUs.");
+        }
+        this.primary = primary;
+        this.cpus = new Machine[count];
+        cpus[0] = primary;
+        for (int i = 1; i < count; i++) {
+            cpus[i] = new Machine(primary, i);
+            cpus[i].setHostServices(primary.isHostServices());
+        }
+        primary.setSharedBus(true);
+        executor = Executors.newFixedThreadPool(count, task -> {
+            Thread thread = new Thread(task, "sicxe-cpu");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getCpuCount() {
+        return cpus.length;
+    }
+
+    public Machine getCpu(int index) {
+        return cpus[index];
+    }
+
+    /**
+     * Clears the registers of the secondary CPUs and points them at
+     * {@code pc}, the way CPU 0 starts after a load.
+     */
+    public void reset(int pc) {
+        for (int i = 1; i < cpus.length; i++) {
+            Machine cpu = cpus[i];
+            cpu.setA(0);
+            cpu.setX(0);
+            cpu.setL(0);
+            cpu.setB(0);
+            cpu.setS(0);
+            cpu.setT(0);
+            cpu.setF(0.0);
+            cpu.setSW(0);
+            cpu.setPC(pc);
+        }
+    }
+
+    /**
+     * Runs every CPU for up to {@code steps} instructions on its own
+     * thread. When one CPU stops at a breakpoint the others stop at the end
+     * of their current slice. Returns the instructions executed per CPU.
+     */
+    public int[] run(int steps) {
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Future<Integer>> results = new ArrayList<>(cpus.length);
+        for (Machine cpu : cpus) {
+            results.add(executor.submit(() -> runCpu(cpu, steps, stop)));
+        }
+        int[] executed = new int[cpus.length];
+        for (int i = 0; i < cpus.length; i++) {
+            try {
+                executed[i] = results.get(i).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                stop.set(true);
+            } catch (ExecutionException ex) {
+                stop.set(true);
+                System.err.printf("CPU %d halted due to runtime error: %s%n", i, ex.getCause().getMessage());
+            }
+        }
+        return executed;
+    }
+
+    private static int runCpu(Machine cpu, int steps, AtomicBoolean stop) {
+        int executed = 0;
+        while (executed < steps && !stop.get()) {
+            int slice = Math.min(SLICE, steps - executed);
+            int done = cpu.run(slice, executed == 0);
+            executed += done;
+            if (cpu.getLastBreak() != null) {
+                stop.set(true);
+            } else if (done < slice) {
+                // Waiting for input; give the other CPUs the rest.
+                break;
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Stops the worker threads and makes the primary machine a single CPU
+     * again.
+     */
+    public void close() {
+        executor.shutdownNow();
+        primary.setSharedBus(false);
+    }
+}
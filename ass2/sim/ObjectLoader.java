@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fast absolute loader. Parses H/T/E records straight from bytes and copies
+ * text records into memory in bulk; also loads raw binary images.
+ */
+public final class ObjectLoader {
+    private static final int MAX_RECORD_BYTES = 0xFF;
+
+    private ObjectLoader() {
+    }
+
+    public static boolean loadFile(Machine machine, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return load(machine, buffer);
+        }
+    }
+
+    public static boolean load(Machine machine, byte[] data) {
+        return load(machine, ByteBuffer.wrap(data));
+    }
+
+    public static boolean load(Machine machine, ByteBuffer data) {
+        ObjectRecordReader records = new ObjectRecordReader(data);
+        byte[] scratch = new byte[MAX_RECORD_BYTES];
+        boolean headerSeen = false;
+        int startAddress = 0;
+        int entryAddress = -1;
+
+        try {
+            int type;
+            while ((type = records.nextRecord()) >= 0) {
+                switch (type) {
+                    case 'H': {
+                        records.name(6); // program name ignored for now
+                        startAddress = records.hex(6, "header start address");
+                        int programLength = records.hex(6, "program length");
+                        machine.setLoadInfo(startAddress, programLength);
+                        if (programLength > 0 && !Machine.isValidRange(startAddress, programLength)) {
+                            machine.invalidAddressing();
+                            return false;
+                        }
+                        headerSeen = true;
+                        break;
+                    }
+                    case 'T': {
+                        if (!headerSeen) {
+                            System.err.println("Text record encountered before header.");
+                            return false;
+                        }
+                        int recordAddress = records.hex(6, "text record start address");
+                        int byteCount = records.hex(2, "text record length");
+                        if (!Machine.isValidRange(recordAddress, Math.max(byteCount, 1))) {
+                            machine.invalidAddressing();
+                            return false;
+                        }
+                        if (byteCount > scratch.length) {
+                            scratch = new byte[byteCount];
+                        }
+                        records.bytes(scratch, 0, byteCount);
+                        machine.writeBlock(recordAddress, scratch, 0, byteCount);
+                        break;
+                    }
+                    case 'E':
+                        entryAddress = records.hasMore() ? records.hex(6, "entry point") : startAddress;
+                        break;
+                    case 'M':
+                    case 'R':
+                    case 'D':
+                    case 'C':
+                        // Relocation and other records are ignored by the absolute loader.
+                        break;
+                    default:
+                        System.err.println("Unknown record type '" + (char) type + "': " + records.line());
+                        return false;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return false;
+        }
+
+        if (!headerSeen) {
+            System.err.println("Missing header record in object file.");
+            return false;
+        }
+        if (entryAddress < 0) {
+            entryAddress = startAddress;
+        }
+        if (!Machine.isValidRange(entryAddress, 1)) {
+            machine.invalidAddressing();
+            return false;
+        }
+        machine.setPC(entryAddress);
+        return true;
+    }
+
+    /**
+     * Loads a raw memory image (such as the {@code .bin} output of the
+     * assembler) at {@code loadAddress} and points PC at its first byte.
+     */
+    public static boolean loadImage(Machine machine, Path path, int loadAddress) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Machine.MEMORY_SIZE || !Machine.isValidRange(loadAddress, (int) Math.max(size, 1))) {
+                machine.invalidAddressing();
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the whole image is in the buffer
+            }
+            machine.writeBlock(loadAddress, buffer.array(), 0, buffer.position());
+            machine.setLoadInfo(loadAddress, buffer.position());
+            machine.setPC(loadAddress);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Allocation-free cursor over SIC/XE object text held in a ByteBuffer.
+ * Understands both the caret separated ("T^000000^1C^...") and the fixed
+ * column ("T0000001C...") record layouts.
+ */
+final class ObjectRecordReader {
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int next;
+    private int lineStart;
+    private int lineEnd;
+    private int pos;
+    private boolean separated;
+
+    ObjectRecordReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.next = buffer.position();
+        this.limit = buffer.limit();
+    }
+
+    /**
+     * Advances to the next non-empty record and returns its upper-case type
+     * character, or -1 at the end of the input. Comment lines are skipped.
+     */
+    int nextRecord() {
+        while (next < limit) {
+            int start = next;
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            next = end + 1;
+            while (start < end && isBlank(buffer.get(start))) {
+                start++;
+            }
+            while (end > start && isBlank(buffer.get(end - 1))) {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+            int type = Character.toUpperCase((char) buffer.get(start));
+            if (type == '.') {
+                continue;
+            }
+            lineStart = start;
+            lineEnd = end;
+            pos = start + 1;
+            separated = pos < end && buffer.get(pos) == '^';
+            return type;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a hexadecimal field. Fixed column records consume exactly
+     * {@code width} digits, caret separated records the whole field.
+     */
+    int hex(int width, String context) {
+        skipSeparator();
+        int value = 0;
+        int digits = 0;
+        while (pos < lineEnd && (separated || digits < width)) {
+            byte b = buffer.get(pos);
+            if (b == '^') {
+                break;
+            }
+            pos++;
+            if (isBlank(b)) {
+                continue;
+            }
+            int digit = HEX_VALUES[b & 0xFF];
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid " + context + " in record: " + line());
+            }
+            value = (value << 4) | digit;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Missing " + context + ".");
+        }
+        return value;
+    }
+
+    /**
+     * Decodes {@code count} bytes of hexadecimal data into {@code target},
+     * ignoring any separators between the digits.
+     */
+    void bytes(byte[] target, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int high = nextDigit();
+            int low = nextDigit();
+            target[offset + i] = (byte) ((high << 4) | low);
+        }
+    }
+
+    /**
+     * Reads a symbol name of at most {@code width} characters, trimmed.
+     */
+    String name(int width) {
+        skipSeparator();
+        int start = pos;
+        while (pos < lineEnd && (separated ? buffer.get(pos) != '^' : pos - start < width)) {
+            pos++;
+        }
+        return ascii(start, pos).trim();
+    }
+
+    /**
+     * Consumes a '+' or '-' modification sign if present and returns it, or 0.
+     */
+    int sign() {
+        skipSeparator();
+        if (pos < lineEnd) {
+            byte b = buffer.get(pos);
+            if (b == '+' || b == '-') {
+                pos++;
+                return b;
+            }
+        }
+        return 0;
+    }
+
+    boolean hasMore() {
+        while (pos < lineEnd && (buffer.get(pos) == '^' || isBlank(buffer.get(pos)))) {
+            pos++;
+        }
+        return pos < lineEnd;
+    }
+
+    /**
+     * Buffer index of the current record, usable as a restart position.
+     */
+    int recordStart() {
+        return lineStart;
+    }
+
+    String line() {
+        return ascii(lineStart, lineEnd);
+    }
+
+    private int nextDigit() {
+        while (pos < lineEnd) {
+            byte b = buffer.get(pos++);
+            int digit = HEX_VALUES[b & 0xFF];
+            if (digit >= 0) {
+                return digit;
+            }
+            if (b != '^' && !isBlank(b)) {
+                throw new IllegalArgumentException("Invalid hexadecimal data in record: " + line());
+            }
+        }
+        throw new IllegalArgumentException("Text record shorter than expected: " + line());
+    }
+
+    private void skipSeparator() {
+        if (pos < lineEnd && buffer.get(pos) == '^') {
+            pos++;
+        }
+    }
+
+    private String ascii(int from, int to) {
+        byte[] chars = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = buffer.get(i);
+        }
+        return new String(chars, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Free list of zeroed {@link PagedMemory} pages shared by any number of
+ * sparse machines. Pages come back when a machine clears its memory, so a
+ * host that keeps resetting small machines stops allocating once the pool
+ * holds their working set. Pages shared with a fork are never returned;
+ * the garbage collector takes them when the last memory drops them.
+ * Thread-safe.
+ */
+public final class PagePool {
+    private final int capacity;
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private long allocated;
+    private long reused;
+
+    /**
+     * Creates a pool keeping at most {@code capacity} free pages; pages
+     * returned beyond that are left to the garbage collector.
+     */
+    public PagePool(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Pool capacity must not be negative.");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * A zeroed page.
+     */
+    synchronized byte[] take() {
+        byte[] page = free.pollFirst();
+        if (page == null) {
+            allocated++;
+            return new byte[PagedMemory.PAGE_SIZE];
+        }
+        reused++;
+        return page;
+    }
+
+    /**
+     * Returns a page no memory refers to any more.
+     */
+    void give(byte[] page) {
+        Arrays.fill(page, (byte) 0);
+        synchronized (this) {
+            if (free.size() < capacity) {
+                free.addFirst(page);
+            }
+        }
+    }
+
+    public synchronized int getFreePages() {
+        return free.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Pages created because the pool was empty.
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Pages handed out again from the free list.
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+}
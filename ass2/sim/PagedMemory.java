@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+/**
+ * Machine memory split into 4 KiB pages that are allocated on first write;
+ * a missing page reads as zeros. The pages are larger than the 256-byte
+ * pages of {@link MemoryPages} to keep the page table small. Pages can be
+ * shared between memories: {@link #fork()} copies only the page table, and
+ * each side copies a shared page before it first writes to it, so a fork
+ * costs one table copy and grows by one page per page it writes.
+ *
+ * <p>A shared page array is never written again by anyone, which makes
+ * sharing safe across threads once the fork has been handed over. Each
+ * memory itself is used by one thread at a time, under its machine's
+ * execution lock.
+ *
+ * <p>With a {@link PagePool}, new pages come from the pool and private
+ * pages go back to it when they are dropped, by {@link #clear()} or by
+ * zero-filling a whole page.
+ */
+public final class PagedMemory {
+    public static final int PAGE_BITS = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGE_COUNT = Machine.MEMORY_SIZE >>> PAGE_BITS;
+
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final byte[][] pages;
+    /** Pages also referenced by another memory; copied before the next write. */
+    private final boolean[] shared;
+    private final PagePool pool;
+    private int resident;
+    private int pageLimit = PAGE_COUNT;
+
+    PagedMemory() {
+        this(null);
+    }
+
+    PagedMemory(PagePool pool) {
+        this.pages = new byte[PAGE_COUNT][];
+        this.shared = new boolean[PAGE_COUNT];
+        this.pool = pool;
+    }
+
+    private PagedMemory(byte[][] pages, PagePool pool) {
+        this.pages = pages;
+        this.pool = pool;
+        this.shared = new boolean[PAGE_COUNT];
+        for (int page = 0; page < pages.length; page++) {
+            shared[page] = pages[page] != null;
+            if (shared[page]) {
+                resident++;
+            }
+        }
+    }
+
+    /**
+     * Memory with the same contents sharing every page with this one.
+     */
+    PagedMemory fork() {
+        for (int page = 0; page < pages.length; page++) {
+            if (pages[page] != null) {
+                shared[page] = true;
+            }
+        }
+        return new PagedMemory(pages.clone(), pool);
+    }
+
+    /**
+     * Makes this memory a fork of {@code base} again, which has to share
+     * its pages already, as the memory a fork was taken from does; pages
+     * written since go back to the pool. Calls {@code changed} with the
+     * index of every page that differed. Reads {@code base} only, so any
+     * number of forks can reset from it at once while it does not change.
+     */
+    void resetTo(PagedMemory base, java.util.function.IntConsumer changed) {
+        for (int page = 0; page < pages.length; page++) {
+            byte[] original = base.pages[page];
+            if (pages[page] != original) {
+                drop(page);
+                pages[page] = original;
+                shared[page] = original != null;
+                if (original != null) {
+                    resident++;
+                }
+                changed.accept(page);
+            }
+        }
+    }
+
+    /**
+     * Replaces page {@code page} with a private copy of the page-sized
+     * block at {@code offset} in {@code source}, or drops it when the block
+     * is all zeros.
+     */
+    void copyPage(int page, byte[] source, int offset) {
+        int end = offset + PAGE_SIZE;
+        drop(page);
+        if (Arrays.mismatch(source, offset, end, ZERO_PAGE, 0, PAGE_SIZE) >= 0) {
+            byte[] copy = newPage();
+            System.arraycopy(source, offset, copy, 0, PAGE_SIZE);
+            pages[page] = copy;
+            resident++;
+        }
+    }
+
+    int get(int address) {
+        byte[] page = pages[address >>> PAGE_BITS];
+        return page == null ? 0 : page[address & OFFSET_MASK] & 0xFF;
+    }
+
+    void set(int address, int value) {
+        writable(address >>> PAGE_BITS)[address & OFFSET_MASK] = (byte) value;
+    }
+
+    int getWord(int address) {
+        int offset = address & OFFSET_MASK;
+        if (offset > PAGE_SIZE - 3) {
+            return get(address) << 16 | get(address + 1) << 8 | get(address + 2);
+        }
+        byte[] page = pages[address >>> PAGE_BITS];
+        if (page == null) {
+            return 0;
+        }
+        return (page[offset] & 0xFF) << 16 | (page[offset + 1] & 0xFF) << 8 | (page[offset + 2] & 0xFF);
+    }
+
+    void setWord(int address, int value) {
+        int offset = address & OFFSET_MASK;
+        if (offset > PAGE_SIZE - 3) {
+            set(address, value >> 16);
+            set(address + 1, value >> 8);
+            set(address + 2, value);
+            return;
+        }
+        byte[] page = writable(address >>> PAGE_BITS);
+        page[offset] = (byte) (value >> 16);
+        page[offset + 1] = (byte) (value >> 8);
+        page[offset + 2] = (byte) value;
+    }
+
+    void read(int address, byte[] target, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, PAGE_SIZE - (address & OFFSET_MASK));
+            byte[] page = pages[address >>> PAGE_BITS];
+            if (page == null) {
+                Arrays.fill(target, offset, offset + chunk, (byte) 0);
+            } else {
+                System.arraycopy(page, address & OFFSET_MASK, target, offset, chunk);
+            }
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    void write(int address, byte[] source, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, PAGE_SIZE - (address & OFFSET_MASK));
+            System.arraycopy(source, offset, writable(address >>> PAGE_BITS), address & OFFSET_MASK, chunk);
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    void fill(int address, int length, int value) {
+        while (length > 0) {
+            int chunk = Math.min(length, PAGE_SIZE - (address & OFFSET_MASK));
+            int page = address >>> PAGE_BITS;
+            if (value == 0 && chunk == PAGE_SIZE) {
+                drop(page);
+            } else if (value != 0 || pages[page] != null) {
+                int offset = address & OFFSET_MASK;
+                Arrays.fill(writable(page), offset, offset + chunk, (byte) value);
+            }
+            address += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Drops every page, which is all a reset of a sparse memory costs.
+     */
+    void clear() {
+        for (int page = 0; page < pages.length; page++) {
+            if (pages[page] != null) {
+                drop(page);
+            }
+        }
+    }
+
+    /**
+     * The array holding the page of {@code address}, or {@code null} when
+     * it has not been written; the address is at index
+     * {@code address & (PAGE_SIZE - 1)}. Callers must not modify it.
+     */
+    byte[] pageAt(int address) {
+        return pages[address >>> PAGE_BITS];
+    }
+
+    /**
+     * Pages that have been written or inherited.
+     */
+    public int getResidentPages() {
+        return resident;
+    }
+
+    /**
+     * Allows at most {@code limit} resident pages; a write that needs
+     * another page throws {@link IllegalStateException}.
+     */
+    void setPageLimit(int limit) {
+        pageLimit = limit;
+    }
+
+    /**
+     * Resident pages this memory does not share with another.
+     */
+    public int getPrivatePages() {
+        int count = 0;
+        for (int page = 0; page < pages.length; page++) {
+            if (pages[page] != null && !shared[page]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private byte[] writable(int index) {
+        byte[] page = pages[index];
+        if (page == null) {
+            if (resident >= pageLimit) {
+                throw new IllegalStateException(String.format("Memory limit of %d KiB reached.",
+                        (long) pageLimit * PAGE_SIZE / 1024));
+            }
+            page = newPage();
+            pages[index] = page;
+            resident++;
+        } else if (shared[index]) {
+            byte[] copy = newPage();
+            System.arraycopy(page, 0, copy, 0, PAGE_SIZE);
+            page = copy;
+            pages[index] = page;
+            shared[index] = false;
+        }
+        return page;
+    }
+
+    private byte[] newPage() {
+        return pool != null ? pool.take() : new byte[PAGE_SIZE];
+    }
+
+    /**
+     * Removes a page, returning it to the pool unless another memory may
+     * still refer to it.
+     */
+    private void drop(int index) {
+        byte[] page = pages[index];
+        if (page != null && pool != null && !shared[index]) {
+            pool.give(page);
+        }
+        if (page != null) {
+            resident--;
+        }
+        pages[index] = null;
+        shared[index] = false;
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Searches a byte array for several patterns in one pass. Patterns are
+ * bucketed by their first two bytes (single-byte patterns by their only
+ * byte), so each position costs one table lookup and full comparisons are
+ * made only for candidates whose prefix already matches.
+ */
+public final class PatternSearch {
+    private static final int[] NONE = new int[0];
+
+    private final List<byte[]> patterns;
+    private final int[][] byPrefix = new int[1 << 16][];
+    private final int[][] byFirstByte = new int[256][];
+    private final boolean hasSingleBytePatterns;
+    private final boolean canSkipZeroPages;
+
+    public PatternSearch(List<byte[]> patterns) {
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("No search pattern given.");
+        }
+        this.patterns = new ArrayList<>(patterns);
+        boolean single = false;
+        boolean skip = true;
+        for (int i = 0; i < this.patterns.size(); i++) {
+            byte[] pattern = this.patterns.get(i);
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Empty search pattern.");
+            }
+            skip &= pattern.length <= MemoryPages.PAGE_SIZE && !isAllZero(pattern);
+            if (pattern.length == 1) {
+                single = true;
+                int key = pattern[0] & 0xFF;
+                byFirstByte[key] = append(byFirstByte[key], i);
+            } else {
+                int key = ((pattern[0] & 0xFF) << 8) | (pattern[1] & 0xFF);
+                byPrefix[key] = append(byPrefix[key], i);
+            }
+        }
+        hasSingleBytePatterns = single;
+        canSkipZeroPages = skip;
+    }
+
+    /**
+     * Parses a pattern argument: {@code "text"} in quotes, or hexadecimal
+     * bytes with an optional {@code 0x} prefix.
+     */
+    public static byte[] parse(String token) {
+        if (token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"")) {
+            String text = token.substring(1, token.length() - 1);
+            byte[] bytes = new byte[text.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) text.charAt(i);
+            }
+            return bytes;
+        }
+        String hex = token.startsWith("0x") || token.startsWith("0X") ? token.substring(2) : token;
+        if (hex.isEmpty() || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Hex pattern needs an even number of digits: " + token);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex pattern: " + token);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    public byte[] getPattern(int index) {
+        return patterns.get(index).clone();
+    }
+
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * Returns matches starting in {@code [from, to)} that lie completely
+     * inside {@code [from, to)}, in address order, at most {@code limit}.
+     */
+    public List<Match> find(byte[] data, int from, int to, int limit) {
+        return find(data, from, to, limit, null);
+    }
+
+    /**
+     * Like {@link #find(byte[], int, int, int)}, but skips start positions
+     * in a zero page followed by another zero page when no pattern consists
+     * of zeros only, since such a match would need a non-zero byte there.
+     */
+    List<Match> find(byte[] data, int from, int to, int limit, boolean[] zeroPages) {
+        if (limit <= 0 || from >= to) {
+            return Collections.emptyList();
+        }
+        boolean skipping = zeroPages != null && canSkipZeroPages;
+        List<Match> matches = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (skipping && (i & (MemoryPages.PAGE_SIZE - 1)) == 0) {
+                int page = i >>> MemoryPages.PAGE_BITS;
+                if (zeroPages[page] && (page + 1 >= zeroPages.length || zeroPages[page + 1])) {
+                    i += MemoryPages.PAGE_SIZE - 1;
+                    continue;
+                }
+            }
+            int first = data[i] & 0xFF;
+            if (hasSingleBytePatterns) {
+                int[] candidates = byFirstByte[first];
+                if (candidates != null) {
+                    for (int index : candidates) {
+                        matches.add(new Match(i, index));
+                        if (matches.size() >= limit) {
+                            return matches;
+                        }
+                    }
+                }
+            }
+            if (i + 1 >= to) {
+                break;
+            }
+            int[] candidates = byPrefix[(first << 8) | (data[i + 1] & 0xFF)];
+            if (candidates == null) {
+                continue;
+            }
+            for (int index : candidates) {
+                if (matchesAt(data, i, to, patterns.get(index))) {
+                    matches.add(new Match(i, index));
+                    if (matches.size() >= limit) {
+                        return matches;
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matchesAt(byte[] data, int offset, int to, byte[] pattern) {
+        if (offset + pattern.length > to) {
+            return false;
+        }
+        for (int k = 2; k < pattern.length; k++) {
+            if (data[offset + k] != pattern[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAllZero(byte[] pattern) {
+        for (byte b : pattern) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] append(int[] list, int value) {
+        int[] source = list == null ? NONE : list;
+        int[] result = java.util.Arrays.copyOf(source, source.length + 1);
+        result[source.length] = value;
+        return result;
+    }
+
+    /**
+     * Address at which pattern number {@code pattern} was found.
+     */
+    public static final class Match {
+        private final int address;
+        private final int pattern;
+
+        Match(int address, int pattern) {
+            this.address = address;
+            this.pattern = pattern;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getPattern() {
+            return pattern;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.util.Arrays;
+
+/**
+ * Always-on execution counters kept by the Machine. Fields are updated by
+ * the executing thread only; {@link #snapshot(long)} copies them out
+ * without side effects, so that it can run under an optimistic read.
+ */
+public final class PerfCounters {
+    private static final long SAMPLE_INTERVAL_NS = 100_000_000L;
+    private static final int WINDOW_SAMPLES = 10;
+
+    long instructions;
+    final long[] opcodes = new long[256];
+    final long[] formats = new long[5];
+    final long[] niModes = new long[4];
+    final long[] xbpeModes = new long[16];
+    long memoryReads;
+    long memoryWrites;
+    long deviceBytesRead;
+    long deviceBytesWritten;
+    long selfModifyingWrites;
+    long hostCodeWrites;
+
+    private final long[] sampleTimes = new long[WINDOW_SAMPLES];
+    private final long[] sampleCounts = new long[WINDOW_SAMPLES];
+    private int sampleCount;
+    private int sampleNext;
+
+    /**
+     * Records an (instant, instruction count) pair for the moving IPS window,
+     * at most once per sample interval.
+     */
+    void sample(long nanoTime) {
+        if (sampleCount > 0) {
+            int last = (sampleNext + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+            if (nanoTime - sampleTimes[last] < SAMPLE_INTERVAL_NS) {
+                return;
+            }
+        }
+        sampleTimes[sampleNext] = nanoTime;
+        sampleCounts[sampleNext] = instructions;
+        sampleNext = (sampleNext + 1) % WINDOW_SAMPLES;
+        if (sampleCount < WINDOW_SAMPLES) {
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Takes back the counts of an instruction of {@code length} bytes that
+     * stalled and will be executed again.
+     */
+    void retract(int opcode, int length, int ni, int xbpe) {
+        instructions--;
+        opcodes[opcode]--;
+        formats[length]--;
+        if (length >= 3) {
+            niModes[ni]--;
+            xbpeModes[modeBits(ni, xbpe)]--;
+        }
+    }
+
+    /**
+     * The xbpe bits counted for an instruction. In SIC format (ni = 0) the
+     * b, p and e bits are part of the address, so only x counts.
+     */
+    static int modeBits(int ni, int xbpe) {
+        return ni == 0 ? xbpe & 0x8 : xbpe;
+    }
+
+    void reset() {
+        instructions = 0;
+        Arrays.fill(opcodes, 0);
+        Arrays.fill(formats, 0);
+        Arrays.fill(niModes, 0);
+        Arrays.fill(xbpeModes, 0);
+        memoryReads = 0;
+        memoryWrites = 0;
+        deviceBytesRead = 0;
+        deviceBytesWritten = 0;
+        selfModifyingWrites = 0;
+        hostCodeWrites = 0;
+        sampleCount = 0;
+        sampleNext = 0;
+    }
+
+    /**
+     * Copies the counters out without changing them. The IPS is measured
+     * from the oldest sample less than a window old, or from the newest
+     * sample when the machine has not run for longer than that.
+     */
+    Snapshot snapshot(long nanoTime) {
+        int count = sampleCount;
+        int next = sampleNext;
+        double ips = 0.0;
+        if (count > 0) {
+            int oldest = (next + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+            for (int age = 2; age <= count; age++) {
+                int index = (next + WINDOW_SAMPLES - age) % WINDOW_SAMPLES;
+                if (nanoTime - sampleTimes[index] > WINDOW_SAMPLES * SAMPLE_INTERVAL_NS) {
+                    break;
+                }
+                oldest = index;
+            }
+            long elapsed = nanoTime - sampleTimes[oldest];
+            if (elapsed > 0) {
+                ips = (instructions - sampleCounts[oldest]) * 1e9 / elapsed;
+            }
+        }
+        long indexed = 0;
+        long pcRelative = 0;
+        long baseRelative = 0;
+        for (int xbpe = 0; xbpe < xbpeModes.length; xbpe++) {
+            if ((xbpe & 0x8) != 0) {
+                indexed += xbpeModes[xbpe];
+            }
+            if ((xbpe & 0x4) != 0) {
+                baseRelative += xbpeModes[xbpe];
+            }
+            if ((xbpe & 0x2) != 0) {
+                pcRelative += xbpeModes[xbpe];
+            }
+        }
+        return new Snapshot(instructions, ips, opcodes.clone(), formats.clone(),
+                niModes[0], niModes[3], niModes[1], niModes[2], indexed, pcRelative, baseRelative,
+                memoryReads, memoryWrites, deviceBytesRead, deviceBytesWritten,
+                selfModifyingWrites, hostCodeWrites);
+    }
+
+    /**
+     * Immutable copy of the counters at one point in time.
+     */
+    public static final class Snapshot {
+        private final long instructions;
+        private final double instructionsPerSecond;
+        private final long[] opcodes;
+        private final long[] formats;
+        private final long sic;
+        private final long simple;
+        private final long immediate;
+        private final long indirect;
+        private final long indexed;
+        private final long pcRelative;
+        private final long baseRelative;
+        private final long memoryReads;
+        private final long memoryWrites;
+        private final long deviceBytesRead;
+        private final long deviceBytesWritten;
+        private final long selfModifyingWrites;
+        private final long hostCodeWrites;
+
+        private Snapshot(long instructions,
+                double instructionsPerSecond,
+                long[] opcodes,
+                long[] formats,
+                long sic,
+                long simple,
+                long immediate,
+                long indirect,
+                long indexed,
+                long pcRelative,
+                long baseRelative,
+                long memoryReads,
+                long memoryWrites,
+                long deviceBytesRead,
+                long deviceBytesWritten,
+                long selfModifyingWrites,
+                long hostCodeWrites) {
+            this.instructions = instructions;
+            this.instructionsPerSecond = instructionsPerSecond;
+            this.opcodes = opcodes;
+            this.formats = formats;
+            this.sic = sic;
+            this.simple = simple;
+            this.immediate = immediate;
+            this.indirect = indirect;
+            this.indexed = indexed;
+            this.pcRelative = pcRelative;
+            this.baseRelative = baseRelative;
+            this.memoryReads = memoryReads;
+            this.memoryWrites = memoryWrites;
+            this.deviceBytesRead = deviceBytesRead;
+            this.deviceBytesWritten = deviceBytesWritten;
+            this.selfModifyingWrites = selfModifyingWrites;
+            this.hostCodeWrites = hostCodeWrites;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+
+        public double getInstructionsPerSecond() {
+            return instructionsPerSecond;
+        }
+
+        public long getOpcodeCount(int opcode) {
+            return opcodes[opcode & 0xFF];
+        }
+
+        /**
+         * Instructions executed in the given format (1-4).
+         */
+        public long getFormatCount(int format) {
+            return format >= 1 && format <= 4 ? formats[format] : 0;
+        }
+
+        /**
+         * Format 3 instructions in SIC format (n = i = 0).
+         */
+        public long getSic() {
+            return sic;
+        }
+
+        public long getSimple() {
+            return simple;
+        }
+
+        public long getImmediate() {
+            return immediate;
+        }
+
+        public long getIndirect() {
+            return indirect;
+        }
+
+        public long getIndexed() {
+            return indexed;
+        }
+
+        public long getPcRelative() {
+            return pcRelative;
+        }
+
+        public long getBaseRelative() {
+            return baseRelative;
+        }
+
+        public long getMemoryReads() {
+            return memoryReads;
+        }
+
+        public long getMemoryWrites() {
+            return memoryWrites;
+        }
+
+        public long getDeviceBytesRead() {
+            return deviceBytesRead;
+        }
+
+        public long getDeviceBytesWritten() {
+            return deviceBytesWritten;
+        }
+
+        /**
+         * Stores by guest instructions into pages that held executed code.
+         */
+        public long getSelfModifyingWrites() {
+            return selfModifyingWrites;
+        }
+
+        /**
+         * Writes to code pages from outside the program: loader, CLI,
+         * debugger or snapshot restore.
+         */
+        public long getHostCodeWrites() {
+            return hostCodeWrites;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Per-address execution counters for a contiguous memory range, plus
+ * taken/not-taken counts for conditional jumps.
+ */
+public final class Profiler {
+    private final int base;
+    private final int[] counts;
+    private final int[] taken;
+    private final int[] notTaken;
+
+    public Profiler(int base, int length) {
+        this.base = base;
+        this.counts = new int[length];
+        this.taken = new int[length];
+        this.notTaken = new int[length];
+    }
+
+    void recordExecution(int address) {
+        int index = address - base;
+        if (index >= 0 && index < counts.length) {
+            counts[index]++;
+        }
+    }
+
+    void recordBranch(int address, boolean jumped) {
+        int index = address - base;
+        if (index >= 0 && index < counts.length) {
+            if (jumped) {
+                taken[index]++;
+            } else {
+                notTaken[index]++;
+            }
+        }
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public int getLength() {
+        return counts.length;
+    }
+
+    public int getCount(int address) {
+        int index = address - base;
+        return index >= 0 && index < counts.length ? counts[index] : 0;
+    }
+
+    public int getTaken(int address) {
+        int index = address - base;
+        return index >= 0 && index < taken.length ? taken[index] : 0;
+    }
+
+    public int getNotTaken(int address) {
+        int index = address - base;
+        return index >= 0 && index < notTaken.length ? notTaken[index] : 0;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(taken, 0);
+        Arrays.fill(notTaken, 0);
+    }
+
+    /**
+     * Returns up to {@code limit} executed addresses, hottest first.
+     */
+    public int[] hotAddresses(int limit) {
+        if (limit <= 0) {
+            return new int[0];
+        }
+        int[] top = new int[Math.min(limit, counts.length)];
+        int size = 0;
+        for (int i = 0; i < counts.length; i++) {
+            int count = counts[i];
+            if (count == 0 || (size == top.length && count <= counts[top[size - 1]])) {
+                continue;
+            }
+            int pos = size < top.length ? size++ : size - 1;
+            while (pos > 0 && counts[top[pos - 1]] < count) {
+                top[pos] = top[pos - 1];
+                pos--;
+            }
+            top[pos] = i;
+        }
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = base + top[i];
+        }
+        return result;
+    }
+
+    public void writeCsv(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("address,count,taken,not_taken");
+            writer.newLine();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                writer.write(String.format("%06X,%d,%d,%d", base + i, counts[i], taken[i], notTaken[i]));
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves interactive simulator sessions on a local TCP port, many to a
+ * JVM. Every connection gets a sparse {@link Machine} and its own command
+ * interpreter speaking the CLI over the socket; device 0 is the session's
+ * console, devices 1 and 2 write to the socket, and file devices keep
+ * their files in a directory per session.
+ *
+ * <p>Sessions run on virtual threads when the JVM has them, looked up
+ * reflectively so that the simulator still builds for Java 17, and on a
+ * cached thread pool otherwise. All machines take their memory pages from
+ * one {@link PagePool} and return them when the session ends. Each
+ * machine is limited in instructions and memory, and a session that sends
+ * nothing for the idle timeout is closed.
+ */
+public final class SessionServer {
+    public static final int DEFAULT_PORT = 2160;
+
+    private static final long REAPER_PERIOD_MS = 1000L;
+    private static final long END_GRACE_MS = 5000L;
+
+    private final ServerSocket server;
+    private final Path root;
+    private final int maxSessions;
+    private final long idleNanos;
+    private final long instructionLimit;
+    private final int memoryLimit;
+    private final PagePool pool;
+    private final Executor executor;
+    private final ExecutorService fallback;
+    private final boolean virtualThreads;
+    private final ScheduledExecutorService reaper;
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    private SessionServer(ServerSocket server, Path root, int maxSessions, long idleSeconds,
+            long instructionLimit, int memoryLimit) {
+        this.server = server;
+        this.root = root;
+        this.maxSessions = maxSessions;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.instructionLimit = instructionLimit;
+        this.memoryLimit = memoryLimit;
+        this.pool = new PagePool(Math.max(PagedMemory.PAGE_COUNT, maxSessions * 4));
+        ThreadFactory virtual = virtualThreadFactory();
+        if (virtual != null) {
+            executor = task -> virtual.newThread(task).start();
+            fallback = null;
+        } else {
+            fallback = Executors.newCachedThreadPool(daemonThreads("sicxe-session"));
+            executor = fallback;
+        }
+        virtualThreads = virtual != null;
+        reaper = Executors.newSingleThreadScheduledExecutor(daemonThreads("sicxe-session-reaper"));
+        reaper.scheduleAtFixedRate(this::evictIdle, REAPER_PERIOD_MS, REAPER_PERIOD_MS, TimeUnit.MILLISECONDS);
+        acceptor = new Thread(this::accept, "sicxe-session-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Listens on {@code port} of the loopback interface for at most
+     * {@code maxSessions} sessions at a time, each limited to
+     * {@code instructionLimit} instructions and {@code memoryLimit} bytes
+     * and closed after {@code idleSeconds} without input. Session device
+     * files go to {@code root}{@code /session-<n>}.
+     */
+    public static SessionServer open(int port, Path root, int maxSessions, long idleSeconds,
+            long instructionLimit, int memoryLimit) throws IOException {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        if (maxSessions <= 0 || idleSeconds <= 0 || instructionLimit <= 0 || memoryLimit <= 0) {
+            throw new IllegalArgumentException("Session limits must be positive.");
+        }
+        Files.createDirectories(root);
+        ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        return new SessionServer(server, root, maxSessions, idleSeconds, instructionLimit, memoryLimit);
+    }
+
+    public String getAddress() {
+        return server.getLocalSocketAddress().toString();
+    }
+
+    /**
+     * Whether sessions run on virtual threads rather than a thread pool.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public PagePool getPagePool() {
+        return pool;
+    }
+
+    /**
+     * Waits until the server is closed.
+     */
+    public void awaitClose() throws InterruptedException {
+        acceptor.join();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // the acceptor stops either way
+        }
+        for (Session session : sessions.values()) {
+            session.end("Server shutting down.");
+        }
+        reaper.shutdownNow();
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                if (!closed) {
+                    System.err.println("Session server stopped: " + ex.getMessage());
+                    closed = true;
+                }
+                return;
+            }
+            if (sessions.size() >= maxSessions) {
+                refuse(socket);
+                continue;
+            }
+            Session session = new Session(nextId.getAndIncrement(), socket);
+            sessions.put(session.id, session);
+            executor.execute(session::run);
+        }
+    }
+
+    private void refuse(Socket socket) {
+        try (socket) {
+            socket.getOutputStream().write(String.format("All %d sessions are in use; try again later.%n", maxSessions)
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            // the client is gone already
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (session.endRequested != 0 && now - session.endRequested > TimeUnit.MILLISECONDS.toNanos(END_GRACE_MS)) {
+                // The session thread is stuck writing to a client that does not read.
+                session.closeSocket();
+            } else if (now - session.lastInput > idleNanos) {
+                session.end(String.format("Session closed after %d s without input.", TimeUnit.NANOSECONDS.toSeconds(idleNanos)));
+            }
+        }
+    }
+
+    /**
+     * {@code Thread.ofVirtual().name("sicxe-session-", 0).factory()}, or
+     * {@code null} before Java 21.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "sicxe-session-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private final class Session {
+        final int id;
+        final Socket socket;
+        volatile long lastInput = System.nanoTime();
+        private PrintStream out;
+        private boolean ending;
+        private volatile String endReason;
+        volatile long endRequested;
+        private volatile boolean finished;
+        private volatile Simulator simulator;
+
+        Session(int id, Socket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+
+        void run() {
+            Path directory = root.resolve("session-" + id);
+            Machine machine = new Machine(pool);
+            try {
+                Files.createDirectories(directory);
+                InputStream input = new FilterInputStream(socket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        byte[] one = new byte[1];
+                        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int count;
+                        try {
+                            count = super.read(buffer, offset, length);
+                        } catch (IOException ex) {
+                            // Closing the socket ends the console reader as end of input would.
+                            if (finished) {
+                                return -1;
+                            }
+                            throw ex;
+                        }
+                        lastInput = System.nanoTime();
+                        return count;
+                    }
+
+                    @Override
+                    public void close() {
+                        // The console reader closes its input when it ends; the
+                        // socket stays open for the session to say goodbye.
+                    }
+                };
+                out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, StandardCharsets.UTF_8);
+                machine.setDeviceDirectory(directory);
+                machine.setInstructionLimit(instructionLimit);
+                machine.setMemoryLimit(memoryLimit);
+                out.printf("Session %d: %d instructions, %d KiB of memory, closed after %d s idle.%n",
+                        id, instructionLimit, memoryLimit / 1024, TimeUnit.NANOSECONDS.toSeconds(idleNanos));
+                simulator = Simulator.hosted(machine, directory, input, out, executor);
+                if (finished) {
+                    return;
+                }
+                simulator.run(null);
+            } catch (IOException | RuntimeException ex) {
+                System.err.printf("Session %d failed: %s%n", id, ex.getMessage());
+            } finally {
+                finished = true;
+                String reason = endReason;
+                if (reason != null && out != null) {
+                    out.println();
+                    out.println(reason);
+                }
+                machine.stop();
+                machine.clearMemory();
+                sessions.remove(id);
+                closeSocket();
+                try {
+                    Files.deleteIfExists(directory);
+                } catch (IOException ex) {
+                    // keep a directory the session wrote device files to
+                }
+            }
+        }
+
+        /**
+         * Ends the session the way end of input would, from another thread.
+         * Only the session thread writes to the client, which tells it
+         * {@code reason}, so a client that stops reading cannot hold up the
+         * caller.
+         */
+        void end(String reason) {
+            synchronized (this) {
+                if (ending) {
+                    return;
+                }
+                ending = true;
+                endReason = reason;
+                finished = true;
+                endRequested = System.nanoTime();
+            }
+            Simulator current = simulator;
+            if (current != null) {
+                current.closeConsole();
+            }
+            try {
+                socket.shutdownInput();
+            } catch (IOException ex) {
+                closeSocket();
+            }
+        }
+
+        void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing left to tell the client
+            }
+        }
+    }
+}
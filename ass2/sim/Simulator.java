@@ -1,67 +1,289 @@
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Locale;
-import java.util.Scanner;
 
 /**
  * Simple CLI wrapper around the SIC/XE Machine simulator.
  */
 public class Simulator {
     private final Machine machine;
+    private final PrintStream out;
+    private final PrintStream err;
+    // Hosted sessions share the JVM: commands that start threads of their
+    // own, listen on ports or run outside the session's limits are refused.
+    private final boolean hosted;
+    /** Directory a hosted session's file arguments are confined to. */
+    private final Path sandbox;
+    private final java.util.concurrent.Executor consoleExecutor;
     private boolean quit;
     private int lastWordCount = 8;
     private final Deque<Machine.Snapshot> undoStack = new ArrayDeque<>();
     private final Deque<String> undoLabels = new ArrayDeque<>();
+    private DeviceRecorder deviceRecorder;
+    private DeviceReplayer deviceReplayer;
+    private DebugServer debugServer;
+    private Multiprocessor multiprocessor;
+    private AotProgram aotProgram;
+    private final Disassembler disassembler;
+    private volatile boolean disassemblerStale;
+    private final ConsoleMux console;
+    private int entryPoint;
+    private final java.util.Map<String, MemoryPages.Image> memoryImages = new java.util.TreeMap<>();
     private static final int MAX_UNDO_DEPTH = 10;
+    private static final int MAX_SOURCE_DEPTH = 8;
+    private static final int MAX_CPUS = 64;
+    private static final int MAX_BATCH_LANES = 1 << 16;
+    private static final int BATCH_LANES_SHOWN = 16;
+    private static final int MAX_FORKS = 4096;
+    private static final int FUZZ_MAX_INPUT = 1024;
+    private static final java.util.Set<String> HOSTED_REFUSED =
+            java.util.Set.of("batch", "fork", "fuzz", "server", "cpus", "aot", "snap");
+    private boolean interactive = true;
+    private int sourceDepth;
+    private final java.util.Map<String, Integer> variables = new java.util.TreeMap<>();
+    private int assertionCount;
+    private int failedAssertions;
 
     public Simulator() {
-        this.machine = new Machine();
+        this(new Machine());
+    }
+
+    /**
+     * Creates a command interpreter for {@code machine}, which gets the
+     * console as device 0.
+     */
+    Simulator(Machine machine) {
+        this(machine, System.in, System.out, System.err, false, null, null);
+    }
+
+    /**
+     * Creates the command interpreter of a hosted session: commands and
+     * device 0 input come from {@code input}, output, error messages and
+     * devices 1 and 2 go to {@code output}, and the console is read on
+     * {@code executor}. File names in commands are resolved in
+     * {@code directory} and may not leave it. See {@link SessionServer}.
+     */
+    static Simulator hosted(Machine machine, Path directory, InputStream input, PrintStream output,
+            java.util.concurrent.Executor executor) {
+        Simulator simulator = new Simulator(machine, input, output, output, true, executor, directory);
+        machine.setDevice(1, new OutputDevice(output));
+        machine.setDevice(2, new OutputDevice(output));
+        machine.setErrorStream(output);
+        return simulator;
+    }
+
+    private Simulator(Machine machine, InputStream input, PrintStream out, PrintStream err, boolean hosted,
+            java.util.concurrent.Executor consoleExecutor, Path sandbox) {
+        this.machine = machine;
+        this.out = out;
+        this.err = err;
+        this.hosted = hosted;
+        this.consoleExecutor = consoleExecutor;
+        this.sandbox = sandbox;
+        this.disassembler = new Disassembler(machine);
+        this.console = new ConsoleMux(input);
+        machine.setDevice(0, new ConsoleInputDevice(console));
+        // Code writes come from the execution thread; the analysis is
+        // dropped on the command thread before its next use.
+        machine.addCodeWriteListener((start, end) -> disassemblerStale = true);
+        machine.addBreakListener(hit -> {
+            out.printf("%nStopped: %s%n", hit);
+            printStatus();
+        });
     }
 
     public static void main(String[] args) {
-        Simulator simulator = new Simulator();
-        simulator.run(args);
+        String program = null;
+        String script = null;
+        boolean sparse = false;
+        int servePort = -1;
+        Path sessionRoot = Path.of("sessions");
+        int maxSessions = 500;
+        long idleSeconds = 900;
+        long sessionInstructions = 100_000_000L;
+        int sessionMemory = 256 * 1024;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                boolean value = i + 1 < args.length;
+                if ("--script".equals(args[i]) && value) {
+                    script = args[++i];
+                } else if ("--sparse".equals(args[i])) {
+                    sparse = true;
+                } else if ("--serve".equals(args[i])) {
+                    servePort = value && !args[i + 1].startsWith("--")
+                            ? Integer.decode(args[++i]) : SessionServer.DEFAULT_PORT;
+                } else if ("--session-dir".equals(args[i]) && value) {
+                    sessionRoot = Path.of(args[++i]);
+                } else if ("--max-sessions".equals(args[i]) && value) {
+                    maxSessions = Integer.decode(args[++i]);
+                } else if ("--idle".equals(args[i]) && value) {
+                    idleSeconds = Long.decode(args[++i]);
+                } else if ("--session-instructions".equals(args[i]) && value) {
+                    sessionInstructions = Long.decode(args[++i]);
+                } else if ("--session-memory".equals(args[i]) && value) {
+                    sessionMemory = Integer.decode(args[++i]) * 1024;
+                } else {
+                    program = args[i];
+                }
+            }
+        } catch (NumberFormatException | InvalidPathException ex) {
+            System.err.println("Invalid argument: " + ex.getMessage());
+            System.exit(2);
+        }
+        if (servePort >= 0) {
+            System.exit(serve(servePort, sessionRoot, maxSessions, idleSeconds, sessionInstructions, sessionMemory));
+        }
+        Simulator simulator = new Simulator(sparse ? new Machine(new PagePool(PagedMemory.PAGE_COUNT)) : new Machine());
+        if (script != null) {
+            System.exit(simulator.runScript(program, script));
+        }
+        simulator.run(program);
+    }
+
+    /**
+     * Runs the session server until the process is stopped and returns the
+     * exit status when it cannot start.
+     */
+    private static int serve(int port, Path root, int maxSessions, long idleSeconds, long instructions, int memory) {
+        SessionServer server;
+        try {
+            server = SessionServer.open(port, root, maxSessions, idleSeconds, instructions, memory);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.printf("Error starting session server on port %d: %s%n", port, ex.getMessage());
+            return 1;
+        }
+        System.out.printf("Session server listening on %s (%s, up to %d sessions)%n", server.getAddress(),
+                server.isVirtualThreads() ? "virtual threads" : "thread pool", maxSessions);
+        try {
+            server.awaitClose();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        return 0;
     }
 
-    private void run(String[] args) {
-        if (args.length > 0) {
-            loadProgram(args[0]);
+    /**
+     * Runs a script without prompts, undo snapshots or help output and
+     * returns the process exit status: 0 when every assertion held.
+     */
+    private int runScript(String program, String script) {
+        interactive = false;
+        // Commands come from the script, so standard input belongs to the guest.
+        machine.setDevice(0, new InputDevice(System.in));
+        if (program != null) {
+            loadProgram(program);
         }
+        boolean completed = sourceFile(script);
+        machine.stop();
+        if (assertionCount > 0) {
+            out.printf("%d assertions, %d failed%n", assertionCount, failedAssertions);
+        }
+        return completed && failedAssertions == 0 ? 0 : 1;
+    }
 
-        System.out.println("SIC/XE simulator ready. Type 'help' for a list of commands.");
-        try (Scanner scanner = new Scanner(System.in)) {
-            while (!quit) {
-                System.out.print("sicxe> ");
-                if (!scanner.hasNextLine()) {
-                    break;
-                }
-                String line = scanner.nextLine().trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
+    /**
+     * Ends the command loop of {@link #run(String)} from another thread as
+     * end of input would, once the commands already read have run.
+     */
+    void closeConsole() {
+        console.close();
+    }
+
+    void run(String program) {
+        if (program != null) {
+            loadProgram(program);
+        }
+
+        out.println("SIC/XE simulator ready. Type 'help' for a list of commands.");
+        if (consoleExecutor != null) {
+            console.start(consoleExecutor);
+        } else {
+            console.start();
+        }
+        while (!quit) {
+            if (!console.isAttached()) {
+                out.print("sicxe> ");
+                out.flush();
+            }
+            String line = console.nextCommand();
+            if (line == null) {
+                break;
+            }
+            if (line.equals(ConsoleMux.DETACH)) {
+                out.println("Console detached from device 0.");
+                continue;
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!hosted) {
+                handleCommand(line);
+                continue;
+            }
+            // A session outlives errors such as reaching its memory limit.
+            try {
                 handleCommand(line);
+            } catch (RuntimeException ex) {
+                out.printf("Error: %s%n", ex.getMessage());
             }
         }
+        console.close();
         machine.stop();
+        if (debugServer != null) {
+            debugServer.close();
+        }
     }
 
     private void handleCommand(String line) {
         String[] parts = line.split("\\s+");
         String cmd = parts[0].toLowerCase(Locale.ROOT);
+        if (hosted && HOSTED_REFUSED.contains(cmd)) {
+            out.printf("'%s' is not available in a hosted session.%n", cmd);
+            return;
+        }
         switch (cmd) {
             case "help":
-                printHelp();
+                if (interactive) {
+                    printHelp();
+                }
+                break;
+            case "source":
+                if (parts.length < 2) {
+                    out.println("Usage: source <file>");
+                } else {
+                    boolean wasInteractive = interactive;
+                    interactive = false;
+                    sourceFile(parts[1]);
+                    interactive = wasInteractive;
+                }
+                break;
+            case "set":
+                setVariable(line, parts);
+                break;
+            case "assert":
+                checkAssertion(line, parts);
+                break;
+            case "echo":
+                echo(line);
                 break;
             case "load":
                 if (parts.length < 2) {
-                    System.out.println("Usage: load <path>");
+                    out.println("Usage: load <path> [address]");
                 } else {
-                    loadProgram(parts[1]);
+                    loadProgram(parts);
                 }
                 break;
+            case "link":
+                linkPrograms(parts);
+                break;
             case "regs":
                 printRegisters();
                 break;
@@ -69,7 +291,7 @@ public class Simulator {
                 printStatus();
                 break;
             case "pc":
-                System.out.printf("PC = %06X%n", machine.getPC());
+                out.printf("PC = %06X%n", machine.getPC());
                 break;
             case "step":
                 performSingleStep();
@@ -78,71 +300,268 @@ public class Simulator {
                 runSteps(parts);
                 break;
             case "start":
+                if (multiprocessor != null) {
+                    out.println("Automatic execution drives one CPU; use run <n> with several CPUs.");
+                    break;
+                }
                 machine.start();
-                System.out.println("Automatic execution started.");
+                out.println("Automatic execution started.");
                 break;
             case "stop":
                 machine.stop();
-                System.out.println("Automatic execution stopped.");
+                out.println("Automatic execution stopped.");
                 break;
             case "speed":
                 setSpeed(parts);
                 break;
+            case "break":
+                addBreakpoint(line, parts);
+                break;
+            case "watch":
+                addWatchpoint(line, parts);
+                break;
+            case "breaks":
+                listBreakpoints();
+                break;
+            case "delete":
+                deleteBreakpoint(parts);
+                break;
             case "vars":
             case "memvars":
                 dumpVariableWords(parts);
                 break;
+            case "perf":
+                printPerformance(parts);
+                break;
+            case "smc":
+                printCodeWrites(parts);
+                break;
+            case "profile":
+                handleProfile(parts);
+                break;
+            case "trace":
+                handleTrace(parts);
+                break;
+            case "record":
+                handleRecord(parts);
+                break;
+            case "replay":
+                handleReplay(parts);
+                break;
+            case "attach":
+                console.attach();
+                out.printf("Console attached to device 0; type %s on its own line to detach.%n",
+                        ConsoleMux.DETACH);
+                break;
+            case "cpus":
+                handleCpus(parts);
+                break;
+            case "batch":
+                runBatch(parts);
+                break;
+            case "fork":
+                runForks(parts);
+                break;
+            case "fuzz":
+                runFuzzer(parts);
+                break;
+            case "aot":
+                handleAot(parts);
+                break;
+            case "svc":
+                handleHostServices(parts);
+                break;
+            case "idioms":
+                handleLoopIdioms(parts);
+                break;
+            case "server":
+                handleServer(parts);
+                break;
+            case "find":
+                findPatterns(line);
+                break;
+            case "dump":
+                dumpMemory(parts);
+                break;
+            case "snap":
+                saveMemoryImage(parts);
+                break;
+            case "diff":
+                diffMemoryImage(parts);
+                break;
+            case "disasm":
+                printDisassembly(parts);
+                break;
+            case "cfg":
+                writeControlFlowGraph(parts);
+                break;
             case "undo":
                 undoLastChange();
                 break;
             case "clear":
                 captureUndoPoint("clear");
                 resetMachine();
-                System.out.println("Machine state cleared.");
+                out.println("Machine state cleared.");
                 break;
             case "exit":
             case "quit":
                 quit = true;
                 break;
             default:
-                System.out.println("Unknown command. Type 'help' for assistance.");
+                out.println("Unknown command. Type 'help' for assistance.");
                 break;
         }
     }
 
     private void printHelp() {
-        System.out.println("Commands:");
-        System.out.println("  help              Show this help message");
-        System.out.println("  load <path>       Load an object file and reset the machine");
-        System.out.println("  regs              Show register contents");
-        System.out.println("  status            Show execution status and PC");
-        System.out.println("  pc                Show current program counter");
-        System.out.println("  step              Execute a single instruction");
-        System.out.println("  run [n]           Execute n instructions (default 1)");
-        System.out.println("  start             Start automatic execution");
-        System.out.println("  stop              Stop automatic execution");
-        System.out.println("  speed <kHz>       Set automatic execution speed");
-        System.out.println("  vars [n]          Dump last n words of loaded program (data area)");
-        System.out.println("  undo              Restore the previous machine snapshot");
-        System.out.println("  clear             Reset registers and memory");
-        System.out.println("  quit/exit         Exit the simulator");
+        out.println("Commands:");
+        out.println("  help              Show this help message");
+        out.println("  load <path> [addr] Load an object file or .bin image and reset the machine");
+        out.println("  link <addr> <files...> Link and load relocatable object files at addr");
+        out.println("  regs              Show register contents");
+        out.println("  status            Show execution status and PC");
+        out.println("  pc                Show current program counter");
+        out.println("  step              Execute a single instruction");
+        out.println("  run [n]           Execute n instructions (default 1)");
+        out.println("  start             Start automatic execution");
+        out.println("  batch <lanes> <addr> <first> [stride] [steps] [result]  Run the program once per input word");
+        out.println("  fork <n> <addr> <first> [stride] [steps] [result]  Run copy-on-write forks of the current state in parallel");
+        out.println("  fuzz <device> [seconds] [steps] [dir]  Fuzz the input of the current program on all cores");
+        out.println("  aot [run <n>|check <n>|source <file>|off]  Translate the loaded program to Java and run it");
+        out.println("  svc [on|off]      Show or switch the host services SVC 0-6");
+        out.println("  idioms [on|off]   Run recognised copy/fill/search loops in bulk; list replacements");
+        out.println("  cpus [n]          Show the CPUs or set how many share memory (run n runs all)");
+        out.println("  stop              Stop automatic execution");
+        out.println("  speed <kHz>       Set automatic execution speed");
+        out.println("  break <addr> [if <cond>] | break if <cond>  Stop before executing addr");
+        out.println("  watch <addr> [r|w|rw] [if <cond>]  Stop after an instruction accesses addr");
+        out.println("  breaks            List breakpoints and watchpoints");
+        out.println("  delete <id>|all   Remove breakpoints");
+        out.println("  vars [n]          Dump last n words of loaded program (data area)");
+        out.println("  perf [reset]      Show instruction rate, opcode mix and access counters");
+        out.println("  smc [reset]       Show executed code pages and writes into them");
+        out.println("  profile on|off|reset|top [n]|csv <file>  Execution profiler");
+        out.println("  trace on <file>|off|show <file> [n]  Record or print a binary instruction trace");
+        out.println("  record <file>|off Log device input (reads and tests) for replay");
+        out.println("  replay <file>|off Feed a recorded device log back to the program");
+        out.println("  attach            Send the following input lines to device 0 (~. returns)");
+        out.println("  server start [port|unix:path]|stop  Serve the binary debug protocol");
+        out.println("  find <hex|\"text\">... Search memory for byte patterns");
+        out.println("  dump <from> <to>  Hex dump of memory [from, to)");
+        out.println("  snap [name]       Save a named copy of memory (list saved copies without a name)");
+        out.println("  diff <name>       Show memory ranges changed since snap <name>");
+        out.println("  disasm [from [to]] Disassemble the loaded program (code found from the entry point)");
+        out.println("  cfg <file.dot>    Write the control-flow graph of the loaded program");
+        out.println("  source <file>     Run the commands in a file without prompts or undo snapshots");
+        out.println("  set [name <expr>] Set a variable (list variables without arguments)");
+        out.println("  assert <cond>     Report an error when the condition does not hold");
+        out.println("  echo <text>       Print text, replacing $name with variable values");
+        out.println("  undo              Restore the previous machine snapshot");
+        out.println("  clear             Reset registers and memory");
+        out.println("  quit/exit         Exit the simulator");
+    }
+
+    private void loadProgram(String[] parts) {
+        int address = 0;
+        if (parts.length >= 3) {
+            try {
+                address = parseNumber(parts[2]);
+            } catch (NumberFormatException ex) {
+                out.println("Invalid load address.");
+                return;
+            }
+        }
+        loadProgram(parts[1], address);
     }
 
     private void loadProgram(String path) {
+        loadProgram(path, 0);
+    }
+
+    /**
+     * Path of a file named in a command. In a hosted session it has to be
+     * relative and without {@code ..}, and is resolved in the session
+     * directory; otherwise {@link InvalidPathException} is thrown.
+     */
+    private Path resolvePath(String name) {
+        Path path = Path.of(name);
+        if (sandbox == null) {
+            return path;
+        }
+        if (path.isAbsolute() || path.getRoot() != null) {
+            throw new InvalidPathException(name, "only files in the session directory can be used");
+        }
+        for (Path part : path) {
+            if ("..".equals(part.toString())) {
+                throw new InvalidPathException(name, "only files in the session directory can be used");
+            }
+        }
+        return sandbox.resolve(path);
+    }
+
+    private void loadProgram(String path, int address) {
         captureUndoPoint("load " + path);
         machine.stop();
         resetMachine();
-        try (Reader reader = new FileReader(path)) {
-            if (machine.loadSection(reader)) {
-                System.out.printf("Loaded %s (PC=%06X)%n", path, machine.getPC());
+        try {
+            Path file = resolvePath(path);
+            boolean loaded = path.toLowerCase(Locale.ROOT).endsWith(".bin")
+                    ? ObjectLoader.loadImage(machine, file, address)
+                    : ObjectLoader.loadFile(machine, file);
+            if (loaded) {
+                entryPoint = machine.getPC();
+                resetSecondaryCpus();
+                out.printf("Loaded %s (PC=%06X)%n", path, machine.getPC());
             } else {
-                System.out.printf("Failed to load %s%n", path);
+                out.printf("Failed to load %s%n", path);
             }
-        } catch (IOException ex) {
-            System.out.printf("Error loading %s: %s%n", path, ex.getMessage());
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Error loading %s: %s%n", path, ex.getMessage());
         }
     }
 
+    private void linkPrograms(String[] parts) {
+        if (parts.length < 3) {
+            out.println("Usage: link <addr> <files...>");
+            return;
+        }
+        int address;
+        try {
+            address = parseNumber(parts[1]);
+        } catch (NumberFormatException ex) {
+            out.println("Invalid load address.");
+            return;
+        }
+        java.util.List<Path> files = new java.util.ArrayList<>();
+        try {
+            for (int i = 2; i < parts.length; i++) {
+                files.add(resolvePath(parts[i]));
+            }
+        } catch (InvalidPathException ex) {
+            out.printf("Error linking: %s%n", ex.getMessage());
+            return;
+        }
+        captureUndoPoint("link " + files.size() + " files");
+        machine.stop();
+        resetMachine();
+        LinkingLoader loader = new LinkingLoader(machine);
+        try {
+            if (!loader.loadFiles(files, address)) {
+                out.println("Link failed.");
+                return;
+            }
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Error linking: %s%n", ex.getMessage());
+            return;
+        }
+        for (java.util.Map.Entry<String, Integer> symbol : new java.util.TreeMap<>(loader.getSymbols()).entrySet()) {
+            out.printf("%-6s %06X%n", symbol.getKey(), symbol.getValue());
+        }
+        entryPoint = machine.getPC();
+        resetSecondaryCpus();
+        out.printf("Linked %d files at %06X (PC=%06X)%n", files.size(), address, machine.getPC());
+    }
+
     private void resetMachine() {
         machine.stop();
         machine.clearMemory();
@@ -156,6 +575,15 @@ public class Simulator {
         machine.setF(0.0);
         machine.setPC(0);
         machine.setSW(0);
+        entryPoint = 0;
+        resetSecondaryCpus();
+        disassembler.invalidate();
+    }
+
+    private void resetSecondaryCpus() {
+        if (multiprocessor != null) {
+            multiprocessor.reset(entryPoint);
+        }
     }
 
     private void runSteps(String[] parts) {
@@ -164,33 +592,404 @@ public class Simulator {
             try {
                 steps = parseNumber(parts[1]);
             } catch (NumberFormatException ex) {
-                System.out.println("Invalid step count.");
+                out.println("Invalid step count.");
                 return;
             }
         }
         if (steps <= 0) {
-            System.out.println("Step count must be positive.");
+            out.println("Step count must be positive.");
             return;
         }
         if (machine.isRunning()) {
-            System.out.println("Stop automatic execution before running manual steps.");
+            out.println("Stop automatic execution before running manual steps.");
             return;
         }
         captureUndoPoint(steps == 1 ? "single step" : ("run " + steps + " steps"));
-        for (int i = 0; i < steps; i++) {
-            machine.step();
+        if (multiprocessor != null) {
+            runAllCpus(steps);
+            return;
+        }
+        int executed = machine.run(steps);
+        variables.put("steps", executed);
+        variables.put("stopped", machine.getLastBreak() != null ? 1 : 0);
+        setRegisterVariables(machine.readRegisters());
+        if (machine.getLastBreak() != null) {
+            out.printf("Stopped after %d instructions: %s%n", executed, machine.getLastBreak());
+        } else if (machine.getInputWaitDevice() >= 0) {
+            out.printf("Stopped after %d instructions: waiting for input on device %d%n",
+                    executed, machine.getInputWaitDevice());
         }
         printStatus();
     }
 
+    /**
+     * Runs every CPU for {@code steps} instructions in parallel and prints
+     * where each one ended.
+     */
+    private void runAllCpus(int steps) {
+        long started = System.nanoTime();
+        int[] executed = multiprocessor.run(steps);
+        long nanos = System.nanoTime() - started;
+        long total = 0;
+        for (int i = 0; i < executed.length; i++) {
+            Machine cpu = multiprocessor.getCpu(i);
+            total += executed[i];
+            String reason = cpu.getLastBreak() != null ? "stopped: " + cpu.getLastBreak()
+                    : cpu.getInputWaitDevice() >= 0 ? "waiting for input on device " + cpu.getInputWaitDevice()
+                    : "";
+            out.printf("CPU %-2d %10d instructions  PC=%06X  %s%n", i, executed[i], cpu.getPC(), reason);
+        }
+        out.printf("%d instructions in %.3f ms (%.2f MIPS)%n",
+                total, nanos / 1e6, nanos > 0 ? total * 1e3 / nanos : 0.0);
+        variables.put("steps", executed[0]);
+        variables.put("stopped", machine.getLastBreak() != null ? 1 : 0);
+        setRegisterVariables(machine.readRegisters());
+    }
+
+    /**
+     * Runs the loaded program in lockstep for {@code lanes} inputs, lane
+     * {@code i} starting with {@code first + i * stride} in the word at
+     * {@code addr}, and shows A or the word at {@code result}. The machine
+     * itself is left unchanged.
+     */
+    private void runBatch(String[] parts) {
+        if (parts.length < 4) {
+            out.println("Usage: batch <lanes> <addr> <first> [stride] [steps] [result]");
+            return;
+        }
+        int lanes;
+        int address;
+        int first;
+        int stride = 1;
+        int maxSteps = 1_000_000;
+        int result = -1;
+        try {
+            lanes = parseNumber(parts[1]);
+            address = parseNumber(parts[2]);
+            first = parseNumber(parts[3]);
+            if (parts.length >= 5) {
+                stride = parseNumber(parts[4]);
+            }
+            if (parts.length >= 6) {
+                maxSteps = parseNumber(parts[5]);
+            }
+            if (parts.length >= 7) {
+                result = parseNumber(parts[6]);
+            }
+        } catch (NumberFormatException ex) {
+            out.println("Invalid number.");
+            return;
+        }
+        if (lanes < 1 || lanes > MAX_BATCH_LANES) {
+            out.printf("Lane count must be between 1 and %d.%n", MAX_BATCH_LANES);
+            return;
+        }
+        if (!Machine.isValidRange(address, 3) || (result != -1 && !Machine.isValidRange(result, 3))) {
+            out.println("Address outside memory.");
+            return;
+        }
+        if (maxSteps <= 0) {
+            out.println("Step count must be positive.");
+            return;
+        }
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before running a batch.");
+            return;
+        }
+        BatchMachine batch = new BatchMachine(machine, lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            batch.setWord(lane, address, first + lane * stride);
+        }
+        long started = System.nanoTime();
+        long total = batch.run(maxSteps);
+        long nanos = System.nanoTime() - started;
+        int[] states = new int[3];
+        int scalar = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            states[batch.getState(lane)]++;
+            scalar += batch.isScalar(lane) ? 1 : 0;
+        }
+        out.printf("%d lanes: %d halted, %d out of steps, %d faulted, %d left the batch%n",
+                lanes, states[BatchMachine.HALTED], states[BatchMachine.RUNNING], states[BatchMachine.FAULTED], scalar);
+        out.printf("%d instructions in %.3f ms (%.2f MIPS)%n",
+                total, nanos / 1e6, nanos > 0 ? total * 1e3 / nanos : 0.0);
+        out.printf("lane   input    steps  %-6s  PC      state%n", result < 0 ? "A" : String.format("%06X", result));
+        for (int lane = 0; lane < Math.min(lanes, BATCH_LANES_SHOWN); lane++) {
+            int state = batch.getState(lane);
+            String label = state == BatchMachine.HALTED ? "halted"
+                    : state == BatchMachine.FAULTED ? "faulted: " + batch.getFault(lane) : "running";
+            out.printf("%-6d %06X %8d  %06X  %06X  %s%n", lane, (first + lane * stride) & 0xFFFFFF,
+                    batch.getSteps(lane), result < 0 ? batch.getReg(lane, 0) : batch.getWord(lane, result),
+                    batch.getReg(lane, 8), label);
+        }
+    }
+
+    private void runForks(String[] parts) {
+        if (parts.length < 4) {
+            out.println("Usage: fork <n> <addr> <first> [stride] [steps] [result]");
+            return;
+        }
+        int count;
+        int address;
+        int first;
+        int stride = 1;
+        int maxSteps = 1_000_000;
+        int result = -1;
+        try {
+            count = parseNumber(parts[1]);
+            address = parseNumber(parts[2]);
+            first = parseNumber(parts[3]);
+            if (parts.length >= 5) {
+                stride = parseNumber(parts[4]);
+            }
+            if (parts.length >= 6) {
+                maxSteps = parseNumber(parts[5]);
+            }
+            if (parts.length >= 7) {
+                result = parseNumber(parts[6]);
+            }
+        } catch (NumberFormatException ex) {
+            out.println("Invalid number.");
+            return;
+        }
+        if (count < 1 || count > MAX_FORKS) {
+            out.printf("Fork count must be between 1 and %d.%n", MAX_FORKS);
+            return;
+        }
+        if (!Machine.isValidRange(address, 3) || (result != -1 && !Machine.isValidRange(result, 3))) {
+            out.println("Address outside memory.");
+            return;
+        }
+        if (maxSteps <= 0) {
+            out.println("Step count must be positive.");
+            return;
+        }
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before forking.");
+            return;
+        }
+        long started = System.nanoTime();
+        Machine[] forks = new Machine[count];
+        for (int i = 0; i < count; i++) {
+            forks[i] = machine.fork();
+            forks[i].setWord(address, first + i * stride);
+        }
+        long forkNanos = System.nanoTime() - started;
+        int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        java.util.List<java.util.concurrent.Future<String>> states = new java.util.ArrayList<>();
+        long[] steps = new long[count];
+        started = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            int limit = maxSteps;
+            states.add(pool.submit(() -> runFork(forks[index], limit, steps, index)));
+        }
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            try {
+                labels[i] = states.get(i).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                labels[i] = "interrupted";
+            } catch (java.util.concurrent.ExecutionException ex) {
+                labels[i] = "faulted: " + ex.getCause().getMessage();
+            }
+        }
+        pool.shutdown();
+        long nanos = System.nanoTime() - started;
+        long total = 0;
+        long privatePages = 0;
+        for (int i = 0; i < count; i++) {
+            total += steps[i];
+            privatePages += forks[i].getPagedMemory().getPrivatePages();
+        }
+        out.printf("%d forks in %.3f ms (%.1f us each), %d private pages (%d KiB) after running%n",
+                count, forkNanos / 1e6, forkNanos / 1e3 / count, privatePages,
+                privatePages * PagedMemory.PAGE_SIZE / 1024);
+        out.printf("%d instructions on %d threads in %.3f ms (%.2f MIPS)%n",
+                total, threads, nanos / 1e6, nanos > 0 ? total * 1e3 / nanos : 0.0);
+        out.printf("fork   input    steps  %-6s  PC      state%n", result < 0 ? "A" : String.format("%06X", result));
+        for (int i = 0; i < Math.min(count, BATCH_LANES_SHOWN); i++) {
+            out.printf("%-6d %06X %8d  %06X  %06X  %s%n", i, (first + i * stride) & 0xFFFFFF, steps[i],
+                    result < 0 ? forks[i].getA() : forks[i].getWord(result), forks[i].getPC(), labels[i]);
+        }
+    }
+
+    /**
+     * Runs a fork until it jumps to itself, waits for input or has run
+     * {@code maxSteps} instructions; returns its state for the table.
+     */
+    private static String runFork(Machine fork, int maxSteps, long[] steps, int index) {
+        fork.setStopOnHalt(true);
+        int done = fork.run(maxSteps);
+        String state = "running";
+        if (fork.isHalted()) {
+            state = "halted";
+        } else if (fork.getInputWaitDevice() >= 0) {
+            state = "waiting for input on device " + fork.getInputWaitDevice();
+        }
+        steps[index] = done;
+        return state;
+    }
+
+    private void runFuzzer(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: fuzz <device> [seconds] [steps] [dir]");
+            return;
+        }
+        int device;
+        int seconds = 10;
+        int maxSteps = 100_000;
+        try {
+            device = parseNumber(parts[1]);
+            if (parts.length >= 3) {
+                seconds = parseNumber(parts[2]);
+            }
+            if (parts.length >= 4) {
+                maxSteps = parseNumber(parts[3]);
+            }
+        } catch (NumberFormatException ex) {
+            out.println("Invalid number.");
+            return;
+        }
+        if (device < 0 || device >= Machine.DEVICE_COUNT) {
+            out.println("Device number out of range.");
+            return;
+        }
+        if (seconds <= 0 || maxSteps <= 0) {
+            out.println("Duration and step count must be positive.");
+            return;
+        }
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before fuzzing.");
+            return;
+        }
+        Fuzzer fuzzer = new Fuzzer(machine, device, maxSteps, FUZZ_MAX_INPUT);
+        Path dir = null;
+        int seeds = 0;
+        if (parts.length >= 5) {
+            try {
+                dir = resolvePath(parts[4]);
+                // Seeds are the files in dir and the corpus of an earlier run.
+                for (Path source : new Path[] {dir, dir.resolve("corpus")}) {
+                    if (!Files.isDirectory(source)) {
+                        continue;
+                    }
+                    try (java.util.stream.Stream<Path> files = Files.list(source)) {
+                        for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                            if (Files.isRegularFile(file)) {
+                                fuzzer.addSeed(Files.readAllBytes(file));
+                                seeds++;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | InvalidPathException ex) {
+                out.printf("Error reading seeds: %s%n", ex.getMessage());
+                return;
+            }
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        out.printf("Fuzzing device %d for %d s on %d threads from %d seeds...%n", device, seconds, threads, seeds);
+        long started = System.nanoTime();
+        try {
+            fuzzer.run(threads, seconds * 1_000_000_000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fuzzer.stop();
+        }
+        long nanos = System.nanoTime() - started;
+        long executions = fuzzer.getExecutions();
+        java.util.List<byte[]> corpus = fuzzer.getCorpus();
+        java.util.List<Fuzzer.Crash> crashes = fuzzer.getCrashes();
+        out.printf("%d executions in %.1f s (%.0f/s, %.0f/s per thread), %d instructions, %d timeouts%n",
+                executions, nanos / 1e9, executions * 1e9 / nanos, executions * 1e9 / nanos / threads,
+                fuzzer.getInstructions(), fuzzer.getTimeouts());
+        out.printf("%d edges covered, %d corpus entries, %d distinct faults%n",
+                fuzzer.getCoveredEdges(), corpus.size(), crashes.size());
+        for (Fuzzer.Crash crash : crashes) {
+            byte[] input = crash.getInput();
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < Math.min(input.length, 16); i++) {
+                hex.append(String.format("%02X", input[i] & 0xFF));
+            }
+            out.printf("  %06X  %-40s %8d cases  input %s%s (%d bytes)%n", crash.getAddress(), crash.getFault(),
+                    crash.getCount(), hex, input.length > 16 ? "..." : "", input.length);
+        }
+        if (dir != null) {
+            try {
+                Path corpusDir = Files.createDirectories(dir.resolve("corpus"));
+                Path crashDir = Files.createDirectories(dir.resolve("crashes"));
+                for (int i = 0; i < corpus.size(); i++) {
+                    Files.write(corpusDir.resolve(String.format("%06d", i)), corpus.get(i));
+                }
+                for (int i = 0; i < crashes.size(); i++) {
+                    Fuzzer.Crash crash = crashes.get(i);
+                    Files.write(crashDir.resolve(String.format("%03d-%06X", i, crash.getAddress())), crash.getInput());
+                }
+                out.printf("Wrote corpus and crashes under %s%n", dir);
+            } catch (IOException ex) {
+                out.printf("Error writing results: %s%n", ex.getMessage());
+            }
+        }
+    }
+
+    private void handleCpus(String[] parts) {
+        if (parts.length < 2) {
+            int count = multiprocessor == null ? 1 : multiprocessor.getCpuCount();
+            for (int i = 0; i < count; i++) {
+                Machine cpu = multiprocessor == null ? machine : multiprocessor.getCpu(i);
+                Machine.Registers registers = cpu.readRegisters();
+                out.printf("CPU %-2d PC=%06X  A=%06X  X=%06X  CC=%s  instructions=%d%n",
+                        i, registers.getPC(), registers.getA(), registers.getX(),
+                        interpretCondition(registers.getSW()), cpu.getInstructionCount());
+            }
+            return;
+        }
+        int count;
+        try {
+            count = parseNumber(parts[1]);
+        } catch (NumberFormatException ex) {
+            out.println("Invalid CPU count.");
+            return;
+        }
+        if (count < 1 || count > MAX_CPUS) {
+            out.printf("CPU count must be between 1 and %d.%n", MAX_CPUS);
+            return;
+        }
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before changing the CPU count.");
+            return;
+        }
+        if (count > 1 && machine.getLoopIdioms() != null) {
+            out.println("Loop idioms run on a single CPU (use idioms off).");
+            return;
+        }
+        if (multiprocessor != null) {
+            multiprocessor.close();
+            multiprocessor = null;
+        }
+        if (count > 1 && machine.isPaged()) {
+            out.println("A sparse machine runs on a single CPU.");
+            return;
+        }
+        if (count > 1) {
+            multiprocessor = new Multiprocessor(machine, count);
+            multiprocessor.reset(entryPoint);
+        }
+        out.printf("%d CPU%s sharing memory and devices.%n", count, count == 1 ? "" : "s");
+    }
+
     private void performSingleStep() {
         if (machine.isRunning()) {
-            System.out.println("Stop automatic execution before stepping manually.");
+            out.println("Stop automatic execution before stepping manually.");
             return;
         }
         captureUndoPoint("single step");
         int startPC = machine.getPC();
         machine.step();
+        setRegisterVariables(machine.readRegisters());
         int length = machine.getLastInstructionLength();
         if (length <= 0) {
             printStatus();
@@ -199,13 +998,16 @@ public class Simulator {
         int[] bytes = readInstructionBytes(startPC, length);
         String disasm = formatInstructionDescription(bytes, length, machine.getPC());
         String byteDump = formatInstructionBytes(bytes, length);
-        System.out.printf(
+        out.printf(
                 "STEP %06X -> %06X : %s\nbytes %s \n%s%n",
                 startPC,
                 machine.getPC(),
                 disasm,
                 byteDump,
                 formatRegisterSummary());
+        if (machine.getLastBreak() != null) {
+            out.printf("Stopped: %s%n", machine.getLastBreak());
+        }
         printStatus();
     }
 
@@ -418,34 +1220,125 @@ public class Simulator {
                 interpretCondition());
     }
 
-    private void setSpeed(String[] parts) {
+    private void addBreakpoint(String line, String[] parts) {
         if (parts.length < 2) {
-            System.out.println("Usage: speed <kHz>");
+            out.println("Usage: break <addr> [if <cond>] | break if <cond>");
             return;
         }
         try {
-            int value = parseNumber(parts[1]);
-            machine.setSpeed(value);
-            System.out.printf("Speed set to %d kHz.%n", value);
+            Breakpoints.Entry entry;
+            if ("if".equalsIgnoreCase(parts[1])) {
+                entry = machine.addConditionBreakpoint(Condition.compile(conditionText(line), variables));
+            } else {
+                Condition condition = parts.length > 2 ? Condition.compile(conditionText(line), variables) : null;
+                entry = machine.addBreakpoint(parseNumber(parts[1]) & Machine.MAX_ADDRESS, condition);
+            }
+            out.printf("Added %s%n", entry);
         } catch (NumberFormatException ex) {
-            System.out.println("Invalid speed value.");
+            out.println("Invalid address.");
         } catch (IllegalArgumentException ex) {
-            System.out.println(ex.getMessage());
+            out.println(ex.getMessage());
         }
     }
 
-    private void dumpVariableWords(String[] parts) {
-        int count = lastWordCount;
-        int nameStartIndex = 1;
-        if (parts.length >= 2) {
-            Integer maybeCount = tryParseNumber(parts[1]);
-            if (maybeCount != null) {
-                count = maybeCount;
-                nameStartIndex = 2;
+    private void addWatchpoint(String line, String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: watch <addr> [r|w|rw] [if <cond>]");
+            return;
+        }
+        int kinds = Breakpoints.READ | Breakpoints.WRITE;
+        if (parts.length > 2 && !"if".equalsIgnoreCase(parts[2])) {
+            String mode = parts[2].toLowerCase(Locale.ROOT);
+            kinds = 0;
+            if (mode.indexOf('r') >= 0) {
+                kinds |= Breakpoints.READ;
+            }
+            if (mode.indexOf('w') >= 0) {
+                kinds |= Breakpoints.WRITE;
+            }
+            if (kinds == 0 || !mode.matches("[rw]+")) {
+                out.println("Usage: watch <addr> [r|w|rw] [if <cond>]");
+                return;
             }
         }
-
-        java.util.List<String> labels = java.util.Collections.emptyList();
+        try {
+            int address = parseNumber(parts[1]) & Machine.MAX_ADDRESS;
+            Condition condition = line.matches("(?i).*\\sif\\s.*") ? Condition.compile(conditionText(line), variables) : null;
+            out.printf("Added %s%n", machine.addBreakpoint(address, kinds, condition));
+        } catch (NumberFormatException ex) {
+            out.println("Invalid address.");
+        } catch (IllegalArgumentException ex) {
+            out.println(ex.getMessage());
+        }
+    }
+
+    private String conditionText(String line) {
+        java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("(?i)\\sif\\s").matcher(line);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Expected 'if <condition>'.");
+        }
+        return line.substring(matcher.end());
+    }
+
+    private void listBreakpoints() {
+        java.util.List<Breakpoints.Entry> entries = machine.getBreakpoints();
+        if (entries.isEmpty()) {
+            out.println("No breakpoints set.");
+            return;
+        }
+        for (Breakpoints.Entry entry : entries) {
+            out.printf("%s  (hits: %d)%n", entry, entry.getHits());
+        }
+    }
+
+    private void deleteBreakpoint(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: delete <id>|all");
+            return;
+        }
+        if ("all".equalsIgnoreCase(parts[1])) {
+            for (Breakpoints.Entry entry : machine.getBreakpoints()) {
+                machine.removeBreakpoint(entry.getId());
+            }
+            out.println("All breakpoints removed.");
+            return;
+        }
+        Integer id = tryParseNumber(parts[1].startsWith("#") ? parts[1].substring(1) : parts[1]);
+        if (id == null || !machine.removeBreakpoint(id)) {
+            out.println("No such breakpoint.");
+            return;
+        }
+        out.printf("Removed breakpoint #%d%n", id);
+    }
+
+    private void setSpeed(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: speed <kHz>");
+            return;
+        }
+        try {
+            int value = parseNumber(parts[1]);
+            machine.setSpeed(value);
+            out.printf("Speed set to %d kHz.%n", value);
+        } catch (NumberFormatException ex) {
+            out.println("Invalid speed value.");
+        } catch (IllegalArgumentException ex) {
+            out.println(ex.getMessage());
+        }
+    }
+
+    private void dumpVariableWords(String[] parts) {
+        int count = lastWordCount;
+        int nameStartIndex = 1;
+        if (parts.length >= 2) {
+            Integer maybeCount = tryParseNumber(parts[1]);
+            if (maybeCount != null) {
+                count = maybeCount;
+                nameStartIndex = 2;
+            }
+        }
+
+        java.util.List<String> labels = java.util.Collections.emptyList();
         if (parts.length > nameStartIndex) {
             labels = new java.util.ArrayList<>();
             for (int i = nameStartIndex; i < parts.length; i++) {
@@ -455,11 +1348,11 @@ public class Simulator {
 
         int loadLength = machine.getLastLoadLength();
         if (loadLength <= 0) {
-            System.out.println("No program loaded.");
+            out.println("No program loaded.");
             return;
         }
         if (count <= 0) {
-            System.out.println("Count must be positive.");
+            out.println("Count must be positive.");
             return;
         }
 
@@ -469,44 +1362,791 @@ public class Simulator {
         int start = (int) Math.max(loadStart, end - totalBytes);
         start = Math.max(loadStart, start);
         lastWordCount = count;
-        System.out.printf("Data region (last %d words of program):%n", count);
+        out.printf("Data region (last %d words of program):%n", count);
         printWordRange(start, count, labels);
     }
 
     private void printWordRange(int start, int count, java.util.List<String> labels) {
+        int available = (int) Math.min(count, (Machine.MEMORY_SIZE - (long) start) / 3);
+        byte[] window = new byte[Math.max(available, 0) * 3];
+        if (window.length > 0) {
+            machine.readMemory(start, window, 0, window.length);
+        }
         for (int i = 0; i < count; i++) {
             int addr = start + i * 3;
-            if (addr > Machine.MAX_ADDRESS - 2) {
-                System.out.println("Reached end of memory.");
+            if (i >= available) {
+                out.println("Reached end of memory.");
                 break;
             }
-            int word = machine.getWord(addr);
+            int word = ((window[i * 3] & 0xFF) << 16) | ((window[i * 3 + 1] & 0xFF) << 8) | (window[i * 3 + 2] & 0xFF);
             int signed = toSigned24(word);
             String label = (labels != null && i < labels.size()) ? labels.get(i) : null;
             if (label != null) {
-                System.out.printf("%06X: %06X (%d)  %s%n", addr, word, signed, label);
+                out.printf("%06X: %06X (%d)  %s%n", addr, word, signed, label);
+            } else {
+                out.printf("%06X: %06X (%d)\n", addr, word, signed);
+            }
+        }
+    }
+
+    private void printPerformance(String[] parts) {
+        if (parts.length >= 2 && "reset".equalsIgnoreCase(parts[1])) {
+            machine.resetPerfCounters();
+            out.println("Performance counters reset.");
+            return;
+        }
+        PerfCounters.Snapshot perf = machine.getPerfSnapshot();
+        out.printf("Instructions: %d (%.0f IPS)%n",
+                perf.getInstructions(), perf.getInstructionsPerSecond());
+        out.printf("Formats: F1=%d F2=%d F3=%d F4=%d%n",
+                perf.getFormatCount(1), perf.getFormatCount(2), perf.getFormatCount(3), perf.getFormatCount(4));
+        out.printf("Addressing: sic=%d simple=%d immediate=%d indirect=%d indexed=%d pc-rel=%d base-rel=%d%n",
+                perf.getSic(), perf.getSimple(), perf.getImmediate(), perf.getIndirect(),
+                perf.getIndexed(), perf.getPcRelative(), perf.getBaseRelative());
+        out.printf("Memory: reads=%d writes=%d  Devices: in=%d out=%d bytes%n",
+                perf.getMemoryReads(), perf.getMemoryWrites(),
+                perf.getDeviceBytesRead(), perf.getDeviceBytesWritten());
+        out.printf("Code writes: self-modifying=%d host=%d%n",
+                perf.getSelfModifyingWrites(), perf.getHostCodeWrites());
+        java.util.List<Integer> opcodes = new java.util.ArrayList<>();
+        for (int opcode = 0; opcode < 256; opcode++) {
+            if (perf.getOpcodeCount(opcode) > 0) {
+                opcodes.add(opcode);
+            }
+        }
+        opcodes.sort((a, b) -> Long.compare(perf.getOpcodeCount(b), perf.getOpcodeCount(a)));
+        StringBuilder mix = new StringBuilder("Opcode mix:");
+        for (int i = 0; i < opcodes.size() && i < 12; i++) {
+            int opcode = opcodes.get(i);
+            mix.append(String.format(" %s=%d", Machine.opcodeToMnemonic(opcode), perf.getOpcodeCount(opcode)));
+        }
+        out.println(mix);
+    }
+
+    private void printCodeWrites(String[] parts) {
+        if (parts.length >= 2 && "reset".equalsIgnoreCase(parts[1])) {
+            machine.resetCodeWriteCounts();
+            out.println("Code write counts reset.");
+            return;
+        }
+        int codePages = 0;
+        java.util.List<Integer> written = new java.util.ArrayList<>();
+        for (int page = 0; page < MemoryPages.PAGE_COUNT; page++) {
+            if (machine.isCodePage(page)) {
+                codePages++;
+            }
+            if (machine.getCodeWriteCount(page) > 0) {
+                written.add(page);
+            }
+        }
+        PerfCounters.Snapshot perf = machine.getPerfSnapshot();
+        out.printf("Code pages: %d of %d (%d bytes each)%n",
+                codePages, MemoryPages.PAGE_COUNT, MemoryPages.PAGE_SIZE);
+        out.printf("Writes to code: self-modifying=%d host=%d%n",
+                perf.getSelfModifyingWrites(), perf.getHostCodeWrites());
+        written.sort((a, b) -> Long.compare(machine.getCodeWriteCount(b), machine.getCodeWriteCount(a)));
+        for (int i = 0; i < Math.min(written.size(), 10); i++) {
+            int page = written.get(i);
+            out.printf("  %06X-%06X  %d writes%s%n", page << MemoryPages.PAGE_BITS,
+                    ((page + 1) << MemoryPages.PAGE_BITS) - 1, machine.getCodeWriteCount(page),
+                    machine.isCodePage(page) ? "" : "  (cleared)");
+        }
+    }
+
+    private void handleProfile(String[] parts) {
+        String action = parts.length >= 2 ? parts[1].toLowerCase(Locale.ROOT) : "top";
+        if ("on".equals(action)) {
+            Profiler profiler = machine.enableProfiler();
+            out.printf("Profiling %06X-%06X.%n",
+                    profiler.getBase(), profiler.getBase() + profiler.getLength() - 1);
+            return;
+        }
+        if ("off".equals(action)) {
+            machine.disableProfiler();
+            out.println("Profiling disabled.");
+            return;
+        }
+        Profiler profiler = machine.getProfiler();
+        if (profiler == null) {
+            out.println("Profiler is not enabled. Use 'profile on'.");
+            return;
+        }
+        switch (action) {
+            case "reset":
+                profiler.reset();
+                out.println("Profile counters reset.");
+                break;
+            case "top": {
+                int limit = 10;
+                if (parts.length >= 3) {
+                    Integer maybeLimit = tryParseNumber(parts[2]);
+                    if (maybeLimit == null || maybeLimit <= 0) {
+                        out.println("Usage: profile top [n]");
+                        return;
+                    }
+                    limit = maybeLimit;
+                }
+                printHotAddresses(profiler, limit);
+                break;
+            }
+            case "csv":
+                if (parts.length < 3) {
+                    out.println("Usage: profile csv <file>");
+                    return;
+                }
+                try {
+                    profiler.writeCsv(resolvePath(parts[2]));
+                    out.printf("Profile written to %s%n", parts[2]);
+                } catch (IOException | InvalidPathException ex) {
+                    out.printf("Error writing %s: %s%n", parts[2], ex.getMessage());
+                }
+                break;
+            default:
+                out.println("Usage: profile on|off|reset|top [n]|csv <file>");
+                break;
+        }
+    }
+
+    private void handleTrace(String[] parts) {
+        String action = parts.length >= 2 ? parts[1].toLowerCase(Locale.ROOT) : "";
+        switch (action) {
+            case "on": {
+                if (parts.length < 3) {
+                    out.println("Usage: trace on <file>");
+                    return;
+                }
+                if (machine.getTracer() != null) {
+                    out.println("Tracing is already active. Use 'trace off' first.");
+                    return;
+                }
+                try {
+                    machine.setTracer(TraceRecorder.open(resolvePath(parts[2])));
+                    out.printf("Tracing to %s%n", parts[2]);
+                } catch (IOException | InvalidPathException ex) {
+                    out.printf("Error opening %s: %s%n", parts[2], ex.getMessage());
+                }
+                break;
+            }
+            case "off": {
+                TraceRecorder recorder = machine.getTracer();
+                if (recorder == null) {
+                    out.println("Tracing is not active.");
+                    return;
+                }
+                machine.setTracer(null);
+                try {
+                    recorder.close();
+                } catch (IOException ex) {
+                    out.printf("Error writing trace: %s%n", ex.getMessage());
+                }
+                out.printf("Trace closed: %d records, %d dropped.%n",
+                        recorder.getRecordCount(), recorder.getDroppedCount());
+                break;
+            }
+            case "show": {
+                if (parts.length < 3) {
+                    out.println("Usage: trace show <file> [n]");
+                    return;
+                }
+                int limit = Integer.MAX_VALUE;
+                if (parts.length >= 4) {
+                    Integer maybeLimit = tryParseNumber(parts[3]);
+                    if (maybeLimit == null || maybeLimit <= 0) {
+                        out.println("Invalid record count.");
+                        return;
+                    }
+                    limit = maybeLimit;
+                }
+                printTrace(parts[2], limit);
+                break;
+            }
+            default:
+                out.println("Usage: trace on <file>|off|show <file> [n]");
+                break;
+        }
+    }
+
+    private void handleAot(String[] parts) {
+        String action = parts.length >= 2 ? parts[1].toLowerCase(Locale.ROOT) : "";
+        switch (action) {
+            case "":
+                translateProgram();
+                return;
+            case "off":
+                if (aotProgram != null) {
+                    aotProgram.close();
+                    aotProgram = null;
+                }
+                out.println("Translated code dropped.");
+                return;
+            case "source":
+                if (parts.length < 3) {
+                    out.println("Usage: aot source <file>");
+                    return;
+                }
+                if (aotProgram == null) {
+                    out.println("No translated program (use aot).");
+                    return;
+                }
+                try {
+                    Files.writeString(resolvePath(parts[2]), aotProgram.getSource());
+                    out.printf("Wrote %s%n", parts[2]);
+                } catch (IOException | InvalidPathException ex) {
+                    out.printf("Error writing %s: %s%n", parts[2], ex.getMessage());
+                }
+                return;
+            case "run":
+            case "check":
+                break;
+            default:
+                out.println("Usage: aot [run <n>|check <n>|source <file>|off]");
+                return;
+        }
+        if (parts.length < 3) {
+            out.printf("Usage: aot %s <n>%n", action);
+            return;
+        }
+        int steps;
+        try {
+            steps = parseNumber(parts[2]);
+        } catch (NumberFormatException ex) {
+            out.println("Invalid step count.");
+            return;
+        }
+        if (steps <= 0) {
+            out.println("Step count must be positive.");
+            return;
+        }
+        if (aotProgram == null) {
+            out.println("No translated program (use aot).");
+            return;
+        }
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before running manual steps.");
+            return;
+        }
+        if (multiprocessor != null) {
+            out.println("Translated code runs on a single CPU (use cpus 1).");
+            return;
+        }
+        if (aotProgram.isStale()) {
+            out.println("Translated code was overwritten; the interpreter runs everything (use aot again).");
+        }
+        captureUndoPoint("aot " + action + " " + steps + " steps");
+        long translatedBefore = aotProgram.getTranslatedSteps();
+        long started = System.nanoTime();
+        int executed;
+        try {
+            if ("check".equals(action)) {
+                AotProgram.Check check = aotProgram.check(steps);
+                executed = check.getSteps();
+                if (check.getMismatch() != null) {
+                    out.printf("Mismatch after %d instructions in %s%n", executed, check.getMismatch());
+                } else {
+                    out.printf("%d segments (%d instructions) matched the interpreter.%n",
+                            check.getSegments(), check.getTranslated());
+                }
+            } else {
+                executed = aotProgram.run(steps);
+            }
+        } catch (RuntimeException ex) {
+            out.println("Execution halted due to runtime error: " + ex.getMessage());
+            printStatus();
+            return;
+        }
+        long nanos = System.nanoTime() - started;
+        long translated = aotProgram.getTranslatedSteps() - translatedBefore;
+        out.printf("%d instructions (%d translated) in %.3f ms (%.2f MIPS)%n",
+                executed, translated, nanos / 1e6, nanos > 0 ? executed * 1e3 / nanos : 0.0);
+        variables.put("steps", executed);
+        variables.put("stopped", machine.getLastBreak() != null ? 1 : 0);
+        setRegisterVariables(machine.readRegisters());
+        if (machine.getLastBreak() != null) {
+            out.printf("Stopped: %s%n", machine.getLastBreak());
+        } else if (machine.getInputWaitDevice() >= 0) {
+            out.printf("Waiting for input on device %d%n", machine.getInputWaitDevice());
+        }
+        printStatus();
+    }
+
+    private void translateProgram() {
+        if (machine.isRunning()) {
+            out.println("Stop automatic execution before translating.");
+            return;
+        }
+        if (!ensureDisassembled()) {
+            return;
+        }
+        if (aotProgram != null) {
+            aotProgram.close();
+            aotProgram = null;
+        }
+        long started = System.nanoTime();
+        try {
+            aotProgram = AotTranslator.translate(machine, disassembler);
+        } catch (IllegalStateException ex) {
+            out.println(ex.getMessage());
+            return;
+        }
+        out.printf("Translated %d instructions into %d segments in %.1f ms; %d left to the interpreter.%n",
+                aotProgram.getTranslatedInstructions(), aotProgram.getSegmentCount(),
+                (System.nanoTime() - started) / 1e6, aotProgram.getInterpretedInstructions());
+    }
+
+    private void handleHostServices(String[] parts) {
+        if (parts.length >= 2) {
+            boolean enabled;
+            if ("on".equalsIgnoreCase(parts[1])) {
+                enabled = true;
+            } else if ("off".equalsIgnoreCase(parts[1])) {
+                enabled = false;
+            } else {
+                out.println("Usage: svc [on|off]");
+                return;
+            }
+            int count = multiprocessor != null ? multiprocessor.getCpuCount() : 1;
+            for (int i = 0; i < count; i++) {
+                (i == 0 ? machine : multiprocessor.getCpu(i)).setHostServices(enabled);
+            }
+        }
+        out.printf("Host services (SVC 0-6) are %s.%n", machine.isHostServices() ? "on" : "off");
+    }
+
+    private void handleLoopIdioms(String[] parts) {
+        if (parts.length >= 2) {
+            if ("on".equalsIgnoreCase(parts[1])) {
+                if (machine.isPaged()) {
+                    out.println("Loop idioms need the dense memory layout.");
+                    return;
+                }
+                if (multiprocessor != null) {
+                    out.println("Loop idioms run on a single CPU (use cpus 1).");
+                    return;
+                }
+                machine.enableLoopIdioms();
+            } else if ("off".equalsIgnoreCase(parts[1])) {
+                machine.disableLoopIdioms();
+            } else {
+                out.println("Usage: idioms [on|off]");
+                return;
+            }
+        }
+        LoopIdioms idioms = machine.getLoopIdioms();
+        if (idioms == null) {
+            out.println("Loop idioms are off.");
+            return;
+        }
+        java.util.List<LoopIdioms.Loop> loops = idioms.getLoops();
+        out.printf("Loop idioms are on; %d loops recognised.%n", loops.size());
+        for (LoopIdioms.Loop loop : loops) {
+            out.printf("  %06X-%06X %-10s %-24s replaced %d times, %d iterations, %d instructions%n",
+                    loop.getHead(), loop.getEnd(), loop.getKind(), loop.getPattern(),
+                    loop.getReplacements(), loop.getIterations(), loop.getInstructions());
+        }
+    }
+
+    private void handleServer(String[] parts) {
+        if (parts.length >= 2 && "stop".equalsIgnoreCase(parts[1])) {
+            if (debugServer == null) {
+                out.println("Debug server is not running.");
+                return;
+            }
+            debugServer.close();
+            debugServer = null;
+            out.println("Debug server stopped.");
+            return;
+        }
+        if (parts.length < 2 || !"start".equalsIgnoreCase(parts[1])) {
+            out.println("Usage: server start [port|unix:path]|stop");
+            return;
+        }
+        if (debugServer != null) {
+            out.printf("Debug server already listening on %s%n", debugServer.getAddress());
+            return;
+        }
+        String address = parts.length >= 3 ? parts[2] : Integer.toString(DebugServer.DEFAULT_PORT);
+        try {
+            debugServer = DebugServer.open(machine, address);
+            out.printf("Debug server listening on %s%n", debugServer.getAddress());
+        } catch (IOException | IllegalArgumentException | UnsupportedOperationException ex) {
+            out.printf("Error starting debug server on %s: %s%n", address, ex.getMessage());
+        }
+    }
+
+    private void handleRecord(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: record <file>|off");
+            return;
+        }
+        if ("off".equalsIgnoreCase(parts[1])) {
+            if (deviceRecorder == null) {
+                out.println("Device recording is not active.");
+                return;
+            }
+            machine.stop();
+            try {
+                deviceRecorder.close();
+            } catch (IOException ex) {
+                out.printf("Error writing device log: %s%n", ex.getMessage());
+            }
+            out.printf("Device recording stopped: %d events.%n", deviceRecorder.getEventCount());
+            deviceRecorder = null;
+            return;
+        }
+        if (deviceRecorder != null || deviceReplayer != null) {
+            out.println("Stop the active recording or replay first.");
+            return;
+        }
+        try {
+            deviceRecorder = DeviceRecorder.start(machine, resolvePath(parts[1]));
+            out.printf("Recording device input to %s%n", parts[1]);
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Error opening %s: %s%n", parts[1], ex.getMessage());
+        }
+    }
+
+    private void handleReplay(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: replay <file>|off");
+            return;
+        }
+        if ("off".equalsIgnoreCase(parts[1])) {
+            if (deviceReplayer == null) {
+                out.println("Device replay is not active.");
+                return;
+            }
+            machine.stop();
+            deviceReplayer.stop();
+            String divergence = deviceReplayer.getDivergence();
+            out.printf("Device replay stopped: %d events replayed%s.%n", deviceReplayer.getEventCount(),
+                    divergence != null ? ", diverged (" + divergence + ")"
+                            : deviceReplayer.isFinished() ? ", log complete" : ", log not exhausted");
+            deviceReplayer = null;
+            return;
+        }
+        if (deviceRecorder != null || deviceReplayer != null) {
+            out.println("Stop the active recording or replay first.");
+            return;
+        }
+        try {
+            deviceReplayer = DeviceReplayer.start(machine, resolvePath(parts[1]));
+            out.printf("Replaying device input from %s%n", parts[1]);
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Error reading %s: %s%n", parts[1], ex.getMessage());
+        }
+    }
+
+    private void printTrace(String path, int limit) {
+        try (TraceReader reader = new TraceReader(resolvePath(path))) {
+            int shown = 0;
+            while (shown < limit && reader.next()) {
+                int length = reader.getLength();
+                int[] bytes = new int[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = reader.getInstructionByte(i);
+                }
+                int pc = reader.getPC();
+                StringBuilder line = new StringBuilder(String.format("%06X  %-11s %s",
+                        pc, formatInstructionBytes(bytes, length),
+                        formatInstructionDescription(bytes, length, maskAddress(pc + length))));
+                if (reader.getEffectiveAddress() >= 0) {
+                    line.append(String.format("  EA=%06X", reader.getEffectiveAddress()));
+                }
+                String changes = reader.describeChanges();
+                if (!changes.isEmpty()) {
+                    line.append("  ").append(changes);
+                }
+                out.println(line);
+                shown++;
+            }
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Error reading %s: %s%n", path, ex.getMessage());
+        }
+    }
+
+    private void printHotAddresses(Profiler profiler, int limit) {
+        long total = profiler.getTotal();
+        if (total == 0) {
+            out.println("No instructions profiled yet.");
+            return;
+        }
+        out.println("ADDR      COUNT      %  INSTRUCTION");
+        for (int addr : profiler.hotAddresses(limit)) {
+            int count = profiler.getCount(addr);
+            String line = String.format("%06X %8d %6.2f  %s",
+                    addr, count, 100.0 * count / total, describeInstructionAt(addr));
+            int taken = profiler.getTaken(addr);
+            int notTaken = profiler.getNotTaken(addr);
+            if (taken + notTaken > 0) {
+                line += String.format("  (taken %d, not taken %d)", taken, notTaken);
+            }
+            out.println(line);
+        }
+    }
+
+    private void printDisassembly(String[] parts) {
+        if (!ensureDisassembled()) {
+            return;
+        }
+        int from = disassembler.getStart();
+        int to = disassembler.getEnd();
+        try {
+            if (parts.length >= 2) {
+                from = parseNumber(parts[1]);
+            }
+            if (parts.length >= 3) {
+                to = parseNumber(parts[2]);
+            }
+        } catch (NumberFormatException ex) {
+            out.println("Usage: disasm [from [to]]");
+            return;
+        }
+        from = Math.max(from, disassembler.getStart());
+        to = Math.min(to, disassembler.getEnd());
+        int addr = from;
+        while (addr < to && disassembler.kindAt(addr) == Disassembler.OPERAND) {
+            addr++;
+        }
+        while (addr < to) {
+            Disassembler.Instruction insn = disassembler.instructionAt(addr);
+            if (insn != null) {
+                if (disassembler.blockAt(addr) != null) {
+                    out.printf("%06X:%s%n", addr, addr == disassembler.getEntry() ? "  ; entry" : "");
+                }
+                int[] bytes = readInstructionBytes(addr, insn.getLength());
+                out.printf("  %06X  %-11s  %s%n", addr, formatInstructionBytes(bytes, insn.getLength()), insn);
+                addr += insn.getLength();
+                continue;
+            }
+            int runEnd = addr;
+            while (runEnd < to && runEnd - addr < 8 && disassembler.kindAt(runEnd) == Disassembler.DATA) {
+                runEnd++;
+            }
+            int[] bytes = readInstructionBytes(addr, runEnd - addr);
+            StringBuilder hex = new StringBuilder();
+            for (int value : bytes) {
+                hex.append(String.format("%02X", value));
+            }
+            out.printf("  %06X  %-11s  BYTE X'%s'%n", addr, "", hex);
+            addr = runEnd;
+        }
+    }
+
+    private static final int MAX_FIND_RESULTS = 64;
+
+    private void findPatterns(String line) {
+        java.util.List<String> arguments = splitQuoted(line);
+        if (arguments.size() < 2) {
+            out.println("Usage: find <hex|\"text\">...");
+            return;
+        }
+        java.util.List<byte[]> patterns = new java.util.ArrayList<>();
+        try {
+            for (String argument : arguments.subList(1, arguments.size())) {
+                patterns.add(PatternSearch.parse(argument));
+            }
+        } catch (IllegalArgumentException ex) {
+            out.println(ex.getMessage());
+            return;
+        }
+        PatternSearch search = new PatternSearch(patterns);
+        long started = System.nanoTime();
+        java.util.List<PatternSearch.Match> matches =
+                machine.find(search, 0, Machine.MEMORY_SIZE, MAX_FIND_RESULTS + 1);
+        long micros = (System.nanoTime() - started) / 1000;
+        for (int i = 0; i < Math.min(matches.size(), MAX_FIND_RESULTS); i++) {
+            PatternSearch.Match match = matches.get(i);
+            int length = Math.min(16, Machine.MEMORY_SIZE - match.getAddress());
+            out.printf("%06X  %-24s %s%n", match.getAddress(), arguments.get(match.getPattern() + 1),
+                    formatInstructionBytes(readInstructionBytes(match.getAddress(), length), length));
+        }
+        if (matches.size() > MAX_FIND_RESULTS) {
+            out.printf("More than %d matches, showing the first %d (%d us).%n",
+                    MAX_FIND_RESULTS, MAX_FIND_RESULTS, micros);
+        } else {
+            out.printf("%d matches (%d us).%n", matches.size(), micros);
+        }
+    }
+
+    /**
+     * Splits a command line on whitespace, keeping double-quoted arguments
+     * (with their quotes) together.
+     */
+    private static java.util.List<String> splitQuoted(String line) {
+        java.util.List<String> arguments = new java.util.ArrayList<>();
+        int i = 0;
+        while (i < line.length()) {
+            if (Character.isWhitespace(line.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (line.charAt(i) == '"') {
+                int close = line.indexOf('"', i + 1);
+                i = close < 0 ? line.length() : close + 1;
             } else {
-                System.out.printf("%06X: %06X (%d)\n", addr, word, signed);
+                while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+            }
+            arguments.add(line.substring(start, i));
+        }
+        return arguments;
+    }
+
+    private void dumpMemory(String[] parts) {
+        if (parts.length < 3) {
+            out.println("Usage: dump <from> <to>");
+            return;
+        }
+        int from;
+        int to;
+        try {
+            from = parseNumber(parts[1]);
+            to = parseNumber(parts[2]);
+        } catch (NumberFormatException ex) {
+            out.println("Invalid address.");
+            return;
+        }
+        from = Math.max(from, 0);
+        to = Math.min(to, Machine.MEMORY_SIZE);
+        if (from >= to) {
+            out.println("Empty range.");
+            return;
+        }
+        byte[] data = new byte[to - from];
+        machine.readMemory(from, data, 0, data.length);
+        for (int row = from & ~0xF; row < to; row += 16) {
+            StringBuilder hex = new StringBuilder();
+            StringBuilder text = new StringBuilder();
+            for (int addr = row; addr < row + 16; addr++) {
+                if (addr < from || addr >= to) {
+                    hex.append("   ");
+                    text.append(' ');
+                    continue;
+                }
+                int value = data[addr - from] & 0xFF;
+                hex.append(String.format("%02X ", value));
+                text.append(value >= 0x20 && value < 0x7F ? (char) value : '.');
             }
+            out.printf("%06X  %s %s%n", row, hex, text);
         }
     }
 
+    private void saveMemoryImage(String[] parts) {
+        if (parts.length < 2) {
+            if (memoryImages.isEmpty()) {
+                out.println("No saved memory images.");
+            }
+            for (String name : memoryImages.keySet()) {
+                out.println(name);
+            }
+            return;
+        }
+        memoryImages.put(parts[1], machine.captureMemory());
+        out.printf("Saved memory as '%s'.%n", parts[1]);
+    }
+
+    private void diffMemoryImage(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: diff <name>");
+            return;
+        }
+        MemoryPages.Image image = memoryImages.get(parts[1]);
+        if (image == null) {
+            out.printf("No memory image named '%s' (use snap %s).%n", parts[1], parts[1]);
+            return;
+        }
+        MemoryPages.Diff diff = machine.diffMemory(image);
+        for (int[] range : diff.getRanges()) {
+            int length = range[1] - range[0];
+            int shown = Math.min(length, 8);
+            StringBuilder before = new StringBuilder();
+            for (int i = 0; i < shown; i++) {
+                before.append(String.format("%02X", image.getByte(range[0] + i)));
+            }
+            StringBuilder after = new StringBuilder();
+            int[] current = readInstructionBytes(range[0], shown);
+            for (int value : current) {
+                after.append(String.format("%02X", value));
+            }
+            out.printf("%06X-%06X  %5d bytes  %s -> %s%s%n", range[0], range[1] - 1, length,
+                    before, after, length > shown ? " ..." : "");
+        }
+        out.printf("%d changed ranges; %d pages skipped unwritten, %d unchanged by hash, %d compared (%d us).%n",
+                diff.getRanges().size(), diff.getSkippedByVersion(), diff.getSkippedByHash(),
+                diff.getComparedPages(), diff.getNanos() / 1000);
+    }
+
+    private void writeControlFlowGraph(String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: cfg <file.dot>");
+            return;
+        }
+        if (!ensureDisassembled()) {
+            return;
+        }
+        try {
+            disassembler.writeDot(resolvePath(parts[1]));
+            out.printf("Wrote %d basic blocks to %s%n", disassembler.getBlocks().size(), parts[1]);
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Cannot write %s: %s%n", parts[1], ex.getMessage());
+        }
+    }
+
+    /**
+     * Analyses the loaded program on first use; the result stays cached
+     * until the next load, clear or undo.
+     */
+    private boolean ensureDisassembled() {
+        if (machine.getLastLoadLength() <= 0) {
+            out.println("No program loaded.");
+            return false;
+        }
+        if (disassemblerStale) {
+            disassemblerStale = false;
+            disassembler.invalidate();
+        }
+        if (!disassembler.isAnalyzed()) {
+            disassembler.analyze(machine.getLastLoadStart(), machine.getLastLoadLength(), entryPoint);
+        }
+        return true;
+    }
+
+    private String describeInstructionAt(int addr) {
+        int first = machine.getByte(addr);
+        int second = addr < Machine.MAX_ADDRESS ? machine.getByte(addr + 1) : 0;
+        int length = Machine.instructionLength(first, second);
+        if (addr + length - 1 > Machine.MAX_ADDRESS) {
+            length = 1;
+        }
+        int[] bytes = readInstructionBytes(addr, length);
+        return formatInstructionDescription(bytes, length, maskAddress(addr + length));
+    }
+
     private void printRegisters() {
-        System.out.printf("A : %06X    X : %06X    L : %06X%n",
-                machine.getA(), machine.getX(), machine.getL());
-        System.out.printf("B : %06X    S : %06X    T : %06X%n",
-                machine.getB(), machine.getS(), machine.getT());
-        System.out.printf("PC: %06X    SW: %02X (%s)%n",
-                machine.getPC(), machine.getSW() & 0xFF, interpretCondition());
+        Machine.Registers registers = machine.readRegisters();
+        setRegisterVariables(registers);
+        out.printf("A : %06X    X : %06X    L : %06X%n",
+                registers.getA(), registers.getX(), registers.getL());
+        out.printf("B : %06X    S : %06X    T : %06X%n",
+                registers.getB(), registers.getS(), registers.getT());
+        out.printf("PC: %06X    SW: %02X (%s)%n",
+                registers.getPC(), registers.getSW() & 0xFF, interpretCondition(registers.getSW()));
     }
 
     private void printStatus() {
-        System.out.printf("PC=%06X  running=%s  speed=%d kHz  CC=%s%n",
-                machine.getPC(), machine.isRunning(), machine.getSpeed(), interpretCondition());
+        Machine.Registers registers = machine.readRegisters();
+        out.printf("PC=%06X  running=%s  speed=%d kHz  CC=%s%n",
+                registers.getPC(), machine.isRunning(), machine.getSpeed(), interpretCondition(registers.getSW()));
     }
 
     private String interpretCondition() {
-        int sw = machine.getSW() & 0xFF;
+        return interpretCondition(machine.getSW());
+    }
+
+    private String interpretCondition(int value) {
+        int sw = value & 0xFF;
         if (sw == 0x00) {
             return "LT";
         }
@@ -520,9 +2160,126 @@ public class Simulator {
     }
 
     private int parseNumber(String token) {
+        if (token.startsWith("$")) {
+            Integer value = variables.get(token.substring(1));
+            if (value == null) {
+                throw new NumberFormatException("Unknown variable: " + token);
+            }
+            return value;
+        }
         return Integer.decode(token);
     }
 
+    /**
+     * Executes each line of a file as a command; blank lines and lines
+     * starting with '#' are skipped. Returns false if the file could not be
+     * read.
+     */
+    private boolean sourceFile(String path) {
+        if (sourceDepth >= MAX_SOURCE_DEPTH) {
+            out.println("Scripts nested too deeply.");
+            return false;
+        }
+        java.util.List<String> lines;
+        try {
+            lines = Files.readAllLines(resolvePath(path));
+        } catch (IOException | InvalidPathException ex) {
+            out.printf("Cannot read %s: %s%n", path, ex.getMessage());
+            return false;
+        }
+        sourceDepth++;
+        try {
+            for (String raw : lines) {
+                String line = raw.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                handleCommand(line);
+                if (quit) {
+                    break;
+                }
+            }
+        } finally {
+            sourceDepth--;
+        }
+        return true;
+    }
+
+    private void setVariable(String line, String[] parts) {
+        if (parts.length == 1) {
+            if (variables.isEmpty()) {
+                out.println("No variables set.");
+            }
+            for (java.util.Map.Entry<String, Integer> variable : variables.entrySet()) {
+                out.printf("$%s = %d (%06X)%n", variable.getKey(), variable.getValue(),
+                        variable.getValue() & 0xFFFFFF);
+            }
+            return;
+        }
+        if (parts.length < 3) {
+            out.println("Usage: set <name> <expression>");
+            return;
+        }
+        String name = parts[1].startsWith("$") ? parts[1].substring(1) : parts[1];
+        if (!name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            out.println("Invalid variable name: " + parts[1]);
+            return;
+        }
+        String expression = line.trim().split("\\s+", 3)[2];
+        try {
+            variables.put(name, Condition.compileValue(expression, variables).eval(machine));
+        } catch (IllegalArgumentException ex) {
+            out.println(ex.getMessage());
+        }
+    }
+
+    private void checkAssertion(String line, String[] parts) {
+        if (parts.length < 2) {
+            out.println("Usage: assert <condition>");
+            return;
+        }
+        String text = line.substring(parts[0].length()).trim();
+        assertionCount++;
+        boolean holds;
+        try {
+            holds = Condition.compile(text, variables).test(machine);
+        } catch (IllegalArgumentException ex) {
+            out.println(ex.getMessage());
+            holds = false;
+        }
+        if (!holds) {
+            failedAssertions++;
+            err.printf("Assertion failed: %s (PC=%06X)%n", text, machine.getPC());
+        }
+    }
+
+    private void echo(String line) {
+        String text = line.length() > 4 ? line.substring(5) : "";
+        java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("\\$([A-Za-z_][A-Za-z0-9_]*)").matcher(text);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            Integer value = variables.get(matcher.group(1));
+            matcher.appendReplacement(sb, java.util.regex.Matcher.quoteReplacement(
+                    value == null ? matcher.group() : String.valueOf(value)));
+        }
+        matcher.appendTail(sb);
+        out.println(sb);
+    }
+
+    /**
+     * Publishes the registers as $A, $X, $L, $B, $S, $T, $PC and $SW.
+     */
+    private void setRegisterVariables(Machine.Registers registers) {
+        variables.put("A", toSigned24(registers.getA()));
+        variables.put("X", toSigned24(registers.getX()));
+        variables.put("L", toSigned24(registers.getL()));
+        variables.put("B", toSigned24(registers.getB()));
+        variables.put("S", toSigned24(registers.getS()));
+        variables.put("T", toSigned24(registers.getT()));
+        variables.put("PC", registers.getPC());
+        variables.put("SW", registers.getSW());
+    }
+
     private static int toSigned24(int value) {
         int masked = value & 0xFFFFFF;
         if ((masked & 0x800000) != 0) {
@@ -540,6 +2297,9 @@ public class Simulator {
     }
 
     private void captureUndoPoint(String label) {
+        if (!interactive) {
+            return;
+        }
         undoStack.push(machine.createSnapshot());
         undoLabels.push(label);
         // Omejitev globine sklada
@@ -551,13 +2311,14 @@ public class Simulator {
 
     private void undoLastChange() {
         if (undoStack.isEmpty()) {
-            System.out.println("No undo information available yet.");
+            out.println("No undo information available yet.");
             return;
         }
         Machine.Snapshot snapshot = undoStack.pop();
         String label = undoLabels.pop();
         machine.restoreSnapshot(snapshot);
-        System.out.printf("State restored (%s).%n", label);
+        disassembler.invalidate();
+        out.printf("State restored (%s).%n", label);
         printStatus();
     }
 
@@ -0,0 +1,110 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader for trace files written by {@link TraceRecorder}.
+ */
+public final class TraceReader implements Closeable {
+    private static final String[] REGISTER_NAMES = {"A", "X", "L", "B", "S", "T", "SW"};
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(TraceRecorder.RECORD_SIZE * 4096);
+    private final byte[] record = new byte[TraceRecorder.RECORD_SIZE];
+
+    public TraceReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+            // read the complete header
+        }
+        header.flip();
+        if (header.remaining() < 8 || header.getInt() != TraceRecorder.MAGIC) {
+            channel.close();
+            throw new IOException("Not a SIC/XE trace file: " + path);
+        }
+        int version = header.getShort();
+        int recordSize = header.getShort();
+        if (version != TraceRecorder.VERSION || recordSize != TraceRecorder.RECORD_SIZE) {
+            channel.close();
+            throw new IOException("Unsupported trace format version " + version);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Advances to the next record; returns false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        if (buffer.remaining() < TraceRecorder.RECORD_SIZE) {
+            buffer.compact();
+            while (buffer.position() < TraceRecorder.RECORD_SIZE && channel.read(buffer) >= 0) {
+                // fill at least one record
+            }
+            buffer.flip();
+            if (buffer.remaining() < TraceRecorder.RECORD_SIZE) {
+                return false;
+            }
+        }
+        buffer.get(record);
+        return true;
+    }
+
+    public int getPC() {
+        return word(0);
+    }
+
+    public int getLength() {
+        return record[3] & 0xFF;
+    }
+
+    public int getInstructionByte(int index) {
+        return record[4 + index] & 0xFF;
+    }
+
+    /**
+     * Effective address of the operand, or -1 when there was none.
+     */
+    public int getEffectiveAddress() {
+        int address = word(8);
+        return address == TraceRecorder.NO_ADDRESS ? -1 : address;
+    }
+
+    public int getChangedMask() {
+        return record[11] & 0xFF;
+    }
+
+    /**
+     * Formats the changed registers as "A=000005 SW=40".
+     */
+    public String describeChanges() {
+        StringBuilder sb = new StringBuilder();
+        int mask = getChangedMask();
+        int slot = 0;
+        for (int reg = 0; reg < REGISTER_NAMES.length && slot < 2; reg++) {
+            if ((mask & (1 << reg)) == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            int value = word(12 + slot * 3);
+            sb.append(REGISTER_NAMES[reg]).append('=');
+            sb.append(reg == 6 ? String.format("%02X", value & 0xFF) : String.format("%06X", value));
+            slot++;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int word(int offset) {
+        return ((record[offset] & 0xFF) << 16) | ((record[offset + 1] & 0xFF) << 8) | (record[offset + 2] & 0xFF);
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Binary instruction trace writer. Records are filled into a ring of
+ * buffers by the interpreter and written out by a background thread, so the
+ * executing thread never waits for the disk. When every buffer is still
+ * queued for writing, records are dropped and counted instead.
+ *
+ * <p>File layout: an 8 byte header ("SXTR", version, record size) followed
+ * by fixed {@value #RECORD_SIZE} byte records:
+ * <pre>
+ *  0-2   PC of the instruction
+ *  3     instruction length
+ *  4-7   instruction bytes (unused bytes are zero)
+ *  8-10  effective address, FFFFFF when the operand was not a memory address
+ *  11    mask of changed registers (bit 0 A, 1 X, 2 L, 3 B, 4 S, 5 T, 6 SW)
+ *  12-14 new value of the lowest changed register
+ *  15-17 new value of the next changed register
+ *  18-19 reserved
+ * </pre>
+ * No instruction changes more than two of the tracked registers.
+ */
+public final class TraceRecorder implements Closeable {
+    public static final int RECORD_SIZE = 20;
+    public static final int MAGIC = 0x53585452; // "SXTR"
+    public static final int VERSION = 1;
+    public static final int NO_ADDRESS = 0xFFFFFF;
+
+    private static final int RECORDS_PER_BUFFER = 4096;
+    private static final int BUFFER_COUNT = 16;
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final ByteBuffer endMarker = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private ByteBuffer current;
+    private long records;
+    private long dropped;
+    private volatile IOException failure;
+
+    private TraceRecorder(FileChannel channel) {
+        this.channel = channel;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(RECORDS_PER_BUFFER * RECORD_SIZE));
+        }
+        current = free.poll();
+        writer = new Thread(this::writeLoop, "sicxe-trace-writer");
+        writer.setDaemon(true);
+    }
+
+    public static TraceRecorder open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) RECORD_SIZE).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        TraceRecorder recorder = new TraceRecorder(channel);
+        recorder.writer.start();
+        return recorder;
+    }
+
+    void record(int pc, int length, int instruction, int effectiveAddress, int changedMask, int first, int second) {
+        ByteBuffer buffer = current;
+        if (buffer == null || buffer.remaining() < RECORD_SIZE) {
+            buffer = nextBuffer();
+            if (buffer == null) {
+                dropped++;
+                return;
+            }
+        }
+        putWord(buffer, pc);
+        buffer.put((byte) length);
+        buffer.putInt(instruction);
+        putWord(buffer, effectiveAddress);
+        buffer.put((byte) changedMask);
+        putWord(buffer, first);
+        putWord(buffer, second);
+        buffer.putShort((short) 0);
+        records++;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Flushes buffered records, waits for the writer to finish and closes
+     * the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (current != null && current.position() > 0) {
+            current.flip();
+            filled.add(current);
+        }
+        current = null;
+        filled.add(endMarker);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private ByteBuffer nextBuffer() {
+        if (current != null) {
+            current.flip();
+            filled.add(current);
+        }
+        current = free.poll();
+        return current;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == endMarker) {
+                    return;
+                }
+                try {
+                    if (failure == null) {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+                buffer.clear();
+                free.add(buffer);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putWord(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) value);
+    }
+}